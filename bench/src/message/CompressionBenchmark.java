@@ -0,0 +1,131 @@
+package message;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.KeyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The BodyCompressor on what users send: a chat line, a paragraph, a pasted
+ * stack trace, a pasted server log and base64, of which only the encoding compresses.
+ * Compressing and sealing a body is compared with only sealing it, and decoding
+ * a compressed body with decoding the body as it was, so what compression costs
+ * the sender and the reciever is seen. What it saves is in the servers metrics.
+ *
+ * @author Tomas
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+
+	@Param({"chat", "paragraph", "stacktrace", "log", "base64"})
+	String corpus;
+
+	private BodyCompressor compressor;
+	private SessionCipher cipher;
+	private byte[] body;
+	private byte[] packed;
+
+
+	@Setup
+	public void setup() throws Exception{
+		compressor = new BodyCompressor(BodyCompressor.DEFAULT_THRESHOLD);
+		cipher = new SessionCipher(KeyGenerator.getInstance("AES").generateKey(), false);
+		body = BinaryCodec.encodeBody(new Message("user", corpus(corpus, new Random(42))));
+		packed = compressor.compress(body);
+	}// setup end
+
+
+	@Benchmark
+	public byte[] compress(){
+		return compressor.compress(body);
+	}
+
+
+	@Benchmark
+	public SessionBytes seal() throws Exception{
+		return cipher.seal(body);
+	}
+
+
+	@Benchmark
+	public SessionBytes compressAndSeal() throws Exception{
+		return cipher.seal(compressor.compress(body));
+	}
+
+
+	@Benchmark
+	public Object decode() throws Exception{
+		return BinaryCodec.decodeBody(body);
+	}
+
+
+	@Benchmark
+	public Object decodeCompressed() throws Exception{
+		return BinaryCodec.decodeBody(packed);
+	}
+
+
+	/**
+	 * Builds the text of a message, different each time but alike the way real text is.
+	 * @param name is the name of the corpus.
+	 * @param random picks the words, numbers and frames.
+	 * @return the text.
+	 */
+	static String corpus(String name, Random random){
+		StringBuilder text = new StringBuilder();
+		switch(name){
+		case "chat":
+			text.append("anyone seen the build fail on the nio engine since this morning?");
+			break;
+		case "paragraph":
+			String[] words = {"the", "server", "client", "message", "when", "it", "is", "sent", "to", "a",
+					"room", "and", "then", "every", "user", "gets", "key", "after", "joining", "slow"};
+			while(text.length() < 600){
+				text.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? ". " : " ");
+			}
+			break;
+		case "stacktrace":
+			String[] frames = {"server.ClientSession.handle(ClientSession.java:", "server.ServerThread.run(ServerThread.java:",
+					"message.Verifier.convertSealedBytes(Verifier.java:", "message.BinaryCodec.decodeBody(BinaryCodec.java:",
+					"javax.crypto.Cipher.doFinal(Cipher.java:", "java.base/java.lang.Thread.run(Thread.java:",
+					"server.NioEventLoop.run(NioEventLoop.java:", "message.SessionCipher.open(SessionCipher.java:"};
+			text.append("java.io.StreamCorruptedException: Frame ended too early.\n");
+			for(int cause = 0; cause < 3; ++cause){
+				for(int i = 0; i < 20; ++i){
+					text.append("\tat ").append(frames[random.nextInt(frames.length)])
+							.append(100 + random.nextInt(900)).append(")\n");
+				}
+				text.append("Caused by: javax.crypto.AEADBadTagException: Tag mismatch!\n");
+			}
+			break;
+		case "log":
+			String[] lines = {"SERVER HAS %d CLIENTS", "CLIENT DISCONNECTED NICELY", "SERVER SENDS %d MESSAGES FROM THE HISTORY TO user%d",
+					"SERVER RECIEVED THE PUBLIC KEY OF user%d", "SERVER CAN'T QUEUE A MESSAGE FOR user%d, DISCONNECTING"};
+			for(int i = 0; text.length() < 8000; ++i){
+				text.append(String.format("12:%02d:%02d.%03d ", i / 60 % 60, i % 60, random.nextInt(1000)));
+				text.append(String.format(lines[random.nextInt(lines.length)], random.nextInt(500), random.nextInt(500)))
+						.append('\n');
+			}
+			break;
+		case "base64":
+			byte[] bytes = new byte[3000];
+			random.nextBytes(bytes);
+			text.append(Base64.getEncoder().encodeToString(bytes));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown corpus: " + name);
+		}
+		return text.toString();
+	}// corpus end
+
+
+}// CompressionBenchmark end
@@ -0,0 +1,87 @@
+package message;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Handshakes per second on one core, counting the key work of both the client
+ * and the server, which is what limits a server when thousands of clients
+ * reconnect at once.
+ * 'rsa' is the RSA key transport: the client generates a key pair, the server
+ * reads the public key and encrypts the AEAD key with it and the client decrypts it.
+ * 'rsaPooledKeys' is the same with the client key pair taken from a KeyPairPool
+ * that has kept up, so only the encryption and decryption are left.
+ * 'ecdh' is the X25519 handshake: both sides generate an ephemeral key pair and
+ * agree on the key, see KeyExchange.
+ *
+ * @author Tomas
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+public class HandshakeBenchmark {
+
+	private static final String KEY_PAIR_ALGO = "RSA";
+
+	private KeyPairGenerator generator;
+	private KeyPair pooledKeyPair;
+	private Cipher serverCipher;
+	private Cipher clientCipher;
+
+
+	@Setup
+	public void setup() throws Exception{
+		generator = KeyPairGenerator.getInstance(KEY_PAIR_ALGO);
+		pooledKeyPair = generator.generateKeyPair();
+		serverCipher = Cipher.getInstance(KEY_PAIR_ALGO);
+		clientCipher = Cipher.getInstance(KEY_PAIR_ALGO);
+	}// setup end
+
+
+	@Benchmark
+	public SecretKey rsa() throws Exception{
+		return rsaHandshake(generator.generateKeyPair());
+	}
+
+
+	@Benchmark
+	public SecretKey rsaPooledKeys() throws Exception{
+		return rsaHandshake(pooledKeyPair);
+	}
+
+
+	@Benchmark
+	public SecretKey ecdh() throws Exception{
+		KeyExchange client = new KeyExchange(true);
+		KeyExchange server = new KeyExchange(false);
+		server.agree(client.getPublicKey());
+		return client.agree(server.getPublicKey());
+	}
+
+
+	private SecretKey rsaHandshake(KeyPair clientKeyPair) throws Exception{
+		PublicKey clientKey = KeyFactory.getInstance(KEY_PAIR_ALGO).generatePublic(
+				new X509EncodedKeySpec(clientKeyPair.getPublic().getEncoded()));
+		serverCipher.init(Cipher.ENCRYPT_MODE, clientKey);
+		byte[] sent = serverCipher.doFinal(SessionCipher.generateKey().getEncoded());
+		clientCipher.init(Cipher.DECRYPT_MODE, clientKeyPair.getPrivate());
+		return new SecretKeySpec(clientCipher.doFinal(sent), "AES");
+	}// rsaHandshake end
+
+
+}// HandshakeBenchmark end
@@ -0,0 +1,98 @@
+package message;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SignedObject;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SealedObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The Verifier steps of the serialized protocol, one at a time: signing a
+ * Message into a SignedObject, validating it, sealing it into a SealedObject
+ * and opening it again. Each step serializes the object it wraps, so the
+ * time grows with the length of the message as well as with the crypto.
+ * The nested classes run the same benchmarks with 1, 8 and 64 threads
+ * sharing one Verifier, as the sessions on the server do.
+ *
+ * @author Tomas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public abstract class SealedObjectBenchmark {
+
+	private static final String CIPHER_ALGO = "AES";
+	private static final String SIGNATURE_ALGO = "SHA1withRSA";
+
+	@Param({"16", "1024", "16384"})
+	int messageLength;
+
+	private Verifier verifier;
+	private Message message;
+	private SignedObject signed;
+	private SealedObject sealed;
+
+
+	@Setup
+	public void setup() throws Exception{
+		KeyPair kp = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+		verifier = new Verifier(KeyGenerator.getInstance(CIPHER_ALGO).generateKey(), CIPHER_ALGO,
+				kp.getPublic(), kp.getPrivate(), SIGNATURE_ALGO);
+		char[] text = new char[messageLength];
+		Arrays.fill(text, 'x');
+		message = new Message("user", new String(text));
+		signed = verifier.createSignedObject(message);
+		sealed = verifier.createSealedObject(signed);
+	}// setup end
+
+
+	@Benchmark
+	public SignedObject sign() throws Exception{
+		return verifier.createSignedObject(message);
+	}
+
+
+	@Benchmark
+	public boolean validate() throws Exception{
+		return verifier.validateSignedObject(signed);
+	}
+
+
+	@Benchmark
+	public SealedObject seal() throws Exception{
+		return verifier.createSealedObject(signed);
+	}
+
+
+	@Benchmark
+	public SignedObject convert() throws Exception{
+		return verifier.convertSealedObject(sealed);
+	}
+
+
+	@Threads(1)
+	public static class OneThread extends SealedObjectBenchmark {
+	}
+
+
+	@Threads(8)
+	public static class EightThreads extends SealedObjectBenchmark {
+	}
+
+
+	@Threads(64)
+	public static class SixtyFourThreads extends SealedObjectBenchmark {
+	}
+
+
+}// SealedObjectBenchmark end
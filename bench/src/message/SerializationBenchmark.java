@@ -0,0 +1,123 @@
+package message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Java serialization of a Message and a UserListMessage, which every message
+ * of the serialized protocol goes through before it's signed and again when
+ * it's read, compared with the BinaryCodec body of the same message.
+ * 'payload' is the length of the text of the Message, and about the length
+ * of the user list.
+ *
+ * @author Tomas
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+
+	@Param({"16", "1024", "16384"})
+	int payload;
+
+	private Message message;
+	private UserListMessage userList;
+	private byte[] serializedMessage;
+	private byte[] serializedUserList;
+	private byte[] encodedMessage;
+	private byte[] encodedUserList;
+
+
+	@Setup
+	public void setup() throws Exception{
+		char[] text = new char[payload];
+		Arrays.fill(text, 'x');
+		message = new Message("user", new String(text));
+		StringBuilder users = new StringBuilder();
+		for(int i = 0; users.length() < payload; ++i){
+			users.append(' ').append("user").append(i).append(" \n");	//As ClientSession.getUsernames formats it
+		}
+		userList = new UserListMessage(users.toString());
+		serializedMessage = serialize(message);
+		serializedUserList = serialize(userList);
+		encodedMessage = BinaryCodec.encodeBody(message);
+		encodedUserList = BinaryCodec.encodeBody(userList);
+	}// setup end
+
+
+	@Benchmark
+	public byte[] serializeMessage() throws Exception{
+		return serialize(message);
+	}
+
+
+	@Benchmark
+	public Object deserializeMessage() throws Exception{
+		return deserialize(serializedMessage);
+	}
+
+
+	@Benchmark
+	public byte[] serializeUserList() throws Exception{
+		return serialize(userList);
+	}
+
+
+	@Benchmark
+	public Object deserializeUserList() throws Exception{
+		return deserialize(serializedUserList);
+	}
+
+
+	@Benchmark
+	public byte[] encodeMessage() throws Exception{
+		return BinaryCodec.encodeBody(message);
+	}
+
+
+	@Benchmark
+	public Object decodeMessage() throws Exception{
+		return BinaryCodec.decodeBody(encodedMessage);
+	}
+
+
+	@Benchmark
+	public byte[] encodeUserList() throws Exception{
+		return BinaryCodec.encodeBody(userList);
+	}
+
+
+	@Benchmark
+	public Object decodeUserList() throws Exception{
+		return BinaryCodec.decodeBody(encodedUserList);
+	}
+
+
+	private static byte[] serialize(Object o) throws Exception{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+			out.writeObject(o);
+		}
+		return bytes.toByteArray();
+	}// serialize end
+
+
+	private static Object deserialize(byte[] bytes) throws Exception{
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+			return in.readObject();
+		}
+	}// deserialize end
+
+
+}// SerializationBenchmark end
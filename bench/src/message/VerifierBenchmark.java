@@ -0,0 +1,144 @@
+package message;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Compares one Verifier used by many senders at the same time, as every session
+ * on the server does, with the old design where all of them shared one Cipher
+ * and one Signature that were initialized again for every message.
+ * The old instances weren't safe to share at all, so the baseline guards them with
+ * a lock, which is the least it would take to make the old design correct.
+ * 'seal' only encrypts, 'signAndSeal' also makes the RSA signature.
+ * The nested classes run the same benchmarks with 1, 8 and 64 sender threads.
+ *
+ * @author Tomas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public abstract class VerifierBenchmark {
+
+	private static final String CIPHER_ALGO = "AES";
+	private static final String SIGNATURE_ALGO = "SHA1withRSA";
+
+	private Verifier pooled;
+	private SharedVerifier shared;
+	private SignedBytes signed;
+	private Message message;
+
+
+	@Setup
+	public void setup() throws Exception{
+		KeyPair kp = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+		SecretKey key = KeyGenerator.getInstance(CIPHER_ALGO).generateKey();
+		pooled = new Verifier(key, CIPHER_ALGO, kp.getPublic(), kp.getPrivate(), SIGNATURE_ALGO);
+		shared = new SharedVerifier(key, kp.getPrivate());
+		message = new Message("user", "a message of an ordinary length");
+		signed = pooled.createSignedBytes(message);
+	}// setup end
+
+
+	@Benchmark
+	public SealedBytes sharedSeal() throws Exception{
+		return shared.createSealedBytes(signed);
+	}
+
+
+	@Benchmark
+	public SealedBytes pooledSeal() throws Exception{
+		return pooled.createSealedBytes(signed);
+	}
+
+
+	@Benchmark
+	public SealedBytes sharedSignAndSeal() throws Exception{
+		return shared.createSealedBytes(shared.createSignedBytes(message));
+	}
+
+
+	@Benchmark
+	public SealedBytes pooledSignAndSeal() throws Exception{
+		return pooled.createSealedBytes(pooled.createSignedBytes(message));
+	}
+
+
+	@Threads(1)
+	public static class OneSender extends VerifierBenchmark {
+	}
+
+
+	@Threads(8)
+	public static class EightSenders extends VerifierBenchmark {
+	}
+
+
+	@Threads(64)
+	public static class SixtyFourSenders extends VerifierBenchmark {
+	}
+
+
+	/**
+	 * The Verifier as it was before the pools, one Cipher and one Signature
+	 * initialized on every call, with a lock added so it can be shared.
+	 */
+	static class SharedVerifier {
+
+		private SecretKey secretKey;
+		private PrivateKey privateKey;
+		private Cipher cipher;
+		private Signature signature;
+		private ReentrantLock lock;
+
+
+		SharedVerifier(SecretKey secretKey, PrivateKey privateKey) throws Exception{
+			this.secretKey = secretKey;
+			this.privateKey = privateKey;
+			this.cipher = Cipher.getInstance(CIPHER_ALGO);
+			this.signature = Signature.getInstance(SIGNATURE_ALGO);
+			this.lock = new ReentrantLock();
+		}
+
+
+		SignedBytes createSignedBytes(Message m) throws Exception{
+			byte[] body = BinaryCodec.encodeBody(m);
+			lock.lock();
+			try{
+				signature.initSign(privateKey);
+				signature.update(body);
+				return new SignedBytes(body, signature.sign());
+			} finally{
+				lock.unlock();
+			}
+		}
+
+
+		SealedBytes createSealedBytes(SignedBytes signed) throws Exception{
+			byte[] plain = BinaryCodec.joinSigned(signed);
+			lock.lock();
+			try{
+				cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+				return new SealedBytes(cipher.doFinal(plain));
+			} finally{
+				lock.unlock();
+			}
+		}
+
+	}// SharedVerifier end
+
+
+}// VerifierBenchmark end
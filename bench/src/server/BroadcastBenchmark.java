@@ -0,0 +1,79 @@
+package server;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SealedObject;
+import message.Frame;
+import message.FrameCodec;
+import message.Message;
+import message.Verifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the cost of one broadcast when the SealedObject is serialized for
+ * every recipient, as writeObject on each clients stream did, with encoding it
+ * once into a Frame that every recipient shares.
+ * The time per broadcast of 'encodeOnce' should stay flat as the room grows,
+ * apart from handing out the buffer views.
+ *
+ * @author Tomas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	int recipients;
+
+	@Param({"16", "1024"})
+	int messageLength;
+
+	private SealedObject sealed;
+
+
+	@Setup
+	public void setup() throws Exception{
+		KeyPair kp = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+		Verifier sender = new Verifier(KeyGenerator.getInstance("AES").generateKey(),
+				"AES", kp.getPublic(), kp.getPrivate(), "SHA1withRSA");
+		char[] text = new char[messageLength];
+		java.util.Arrays.fill(text, 'x');
+		sealed = sender.createSealedObject(sender.createSignedObject(new Message("user", new String(text))));
+	}// setup end
+
+
+	/**
+	 * The old fan-out, the same object graph is serialized once per recipient.
+	 */
+	@Benchmark
+	public void serializePerRecipient(Blackhole bh) throws Exception{
+		for(int i = 0; i < recipients; ++i){
+			bh.consume(ByteBuffer.wrap(FrameCodec.encode(sealed, FrameCodec.PROTOCOL_SERIALIZED)));
+		}
+	}// serializePerRecipient end
+
+
+	/**
+	 * The new fan-out, one Frame and a buffer view for each recipient.
+	 */
+	@Benchmark
+	public void encodeOnce(Blackhole bh) throws Exception{
+		Frame frame = Frame.of(sealed, FrameCodec.PROTOCOL_SERIALIZED);
+		for(int i = 0; i < recipients; ++i){
+			bh.consume(frame.buffer());
+		}
+	}// encodeOnce end
+
+
+}// BroadcastBenchmark end
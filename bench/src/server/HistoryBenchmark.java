@@ -0,0 +1,101 @@
+package server;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.KeyGenerator;
+import message.BinaryCodec;
+import message.Frame;
+import message.FrameCodec;
+import message.Message;
+import message.SessionCipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The cost the HistoryLog adds to a broadcast. 'broadcast' encodes a message
+ * once and seals it for every recipient in the AEAD session mode, like
+ * ClientSession.deliver, and 'broadcastLogged' also appends the body to the log.
+ * The difference should stay under 5% of 'broadcast', the append is a copy into
+ * a mapped segment while each recipient costs a seal.
+ * 'append' alone is the copy, including opening a new segment now and then.
+ *
+ * @author Tomas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HistoryBenchmark {
+
+	@Param({"1", "10", "100"})
+	int recipients;
+
+	@Param({"16", "1024"})
+	int messageLength;
+
+	private File dir;
+	private HistoryLog history;
+	private SessionCipher[] ciphers;
+	private Message message;
+	private byte[] body;
+
+
+	@Setup
+	public void setup() throws Exception{
+		dir = new File(System.getProperty("java.io.tmpdir"), "history-bench-" + System.nanoTime());
+		history = new HistoryLog(dir, TimeUnit.HOURS.toMillis(1), 1L << 30);
+		ciphers = new SessionCipher[recipients];
+		for(int i = 0; i < recipients; ++i){
+			ciphers[i] = new SessionCipher(KeyGenerator.getInstance("AES").generateKey(), false);
+		}
+		char[] text = new char[messageLength];
+		java.util.Arrays.fill(text, 'x');
+		message = new Message("user", new String(text));
+		body = BinaryCodec.encodeBody(message);
+	}// setup end
+
+
+	@TearDown
+	public void tearDown(){
+		history.close();
+		for(File file : dir.listFiles()){
+			file.delete();
+		}
+		dir.delete();
+	}// tearDown end
+
+
+	@Benchmark
+	public void broadcast(Blackhole bh) throws Exception{
+		seal(BinaryCodec.encodeBody(message), bh);
+	}
+
+
+	@Benchmark
+	public void broadcastLogged(Blackhole bh) throws Exception{
+		byte[] encoded = BinaryCodec.encodeBody(message);
+		history.append(encoded);
+		seal(encoded, bh);
+	}
+
+
+	@Benchmark
+	public long append() throws Exception{
+		return history.append(body);
+	}
+
+
+	private void seal(byte[] encoded, Blackhole bh) throws Exception{
+		for(SessionCipher cipher : ciphers){
+			bh.consume(Frame.of(cipher.seal(encoded), FrameCodec.PROTOCOL_BINARY));
+		}
+	}// seal end
+
+
+}// HistoryBenchmark end
@@ -0,0 +1,90 @@
+package server;
+import java.util.concurrent.TimeUnit;
+import message.Frame;
+import message.KeyPairPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The cost of building the user list the server shows and sends to the clients
+ * without CAP_PRESENCE, which is done every time a user joins or leaves.
+ * The sessions are real ClientSessions in a Servers SessionRegistry, with a
+ * Connection that sends nothing, so the time is the walk over the registry and
+ * the formatting. It should grow linearly with the number of users.
+ *
+ * @author Tomas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UsernamesBenchmark {
+
+	@Param({"10", "100", "1000", "10000"})
+	int users;
+
+	private Server server;
+	private ClientSession session;
+
+
+	@Setup
+	public void setup() throws Exception{
+		ServerConfig config = ServerConfig.fromArgs(new String[]{"-history", "none", "-mailbox", "none"});
+		server = new Server(0, config, new ConsoleServerListener(), new KeyPairPool(Server.KEY_PAIR_ALGO, 1));
+		for(int i = 0; i < users; ++i){
+			session = new ClientSession(server, new NullConnection());
+			session.setUsername("user" + i);
+		}
+	}// setup end
+
+
+	@TearDown
+	public void tearDown(){
+		server.closeAllResources();
+	}
+
+
+	@Benchmark
+	public String getUsernames(){
+		return session.getUsernames();
+	}
+
+
+	/**
+	 * A Connection to a client that is never there.
+	 */
+	static class NullConnection implements Connection {
+
+		private OutboundQueue queue;
+
+
+		NullConnection(){
+			this.queue = new OutboundQueue(1, OutboundQueue.DROP_OLDEST, 0);
+		}
+
+
+		@Override
+		public void send(Frame frame){
+		}
+
+
+		@Override
+		public OutboundQueue getOutboundQueue(){
+			return queue;
+		}
+
+
+		@Override
+		public void close(){
+		}
+
+	}// NullConnection end
+
+
+}// UsernamesBenchmark end
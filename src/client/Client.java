@@ -1,15 +1,17 @@
 package client;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -19,6 +21,8 @@ import java.security.SignedObject;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
@@ -34,125 +38,334 @@ import message.*;
  * Host, Port and Username can be give by the user when the program
  * is started. If no arguments are given 
  * the client default to Host: 127.0.0.1 and Port: 2000.
+ * The loop reading from the server runs on a thread of its own,
+ * optionally a virtual thread.
+ * Everything the client sends uses the protocol chosen in ClientConfig,
+ * frames from the server are decoded whatever protocol they use.
+ * If the server accepts the AEAD session mode offered with the clients public key,
+ * messages are sealed with a SessionCipher instead of being signed with RSA.
+ * In the relay session mode messages from other users arrive as they signed them
+ * and are verified with the keys in the clients UserDirectory.
+ * When the server offers the ECDH handshake the AEAD key is agreed with an
+ * ephemeral X25519 key instead, and the client never needs an RSA key pair.
+ * What the client recieves is handed to a ClientListener, the ClientGUI or a
+ * bot of the LoadGenerator, the client itself never touches a window.
  *    
  * @author Tomas
  * @version 1.0
  */
-class Client extends Thread{
+class Client implements Runnable{
 	
-	private static final String KEY_PAIR_ALGO = "RSA";
+	static final String KEY_PAIR_ALGO = "RSA";
 	private static final String SIGNATURE_ALGO = "SHA1withRSA";
 	private static final String SECRET_KEY_ALGO = "AES";
 	
 	Socket socket;
-	private ObjectOutputStream outputStream;
-	private ObjectInputStream inputStream;
+	private OutputStream outputStream;
+	private DataInputStream inputStream;
 	
 	private PrivateKey clientPrivateKey;
 	private PublicKey clientPublicKey;
 	private PublicKey serverPublicKey;
 	private SecretKey secretKey;
-	private Signature signature;
 	private Cipher cipherKeyPair; 	//used when sending symmetric key to server
-	private Cipher cipherSecretKey; //used when encrypting/decrypting sealed object to/from server
+	private KeyPairPool keys;		//the RSA key pair is only taken if the RSA handshake is used
+	private KeyExchange exchange;	//null unless the ECDH handshake is used
 	
 	private Verifier sender;
 	private Verifier reciever;
+	private SessionCipher sessionCipher;	//null unless the AEAD session mode is used
+	private ReentrantLock sendLock;			//keeps sequence numbers in the order they are sent
+	private ReentrantLock closeLock;		//the reader thread and the GUI or a LoadGenerator may close at once
 	
-	private ClientGUI gui;
+	private ClientListener listener;
 	private String user;
+	private int protocol;
+	private boolean offerAead;
+	private boolean offerRelay;
+	private boolean useEcdh;
+	private UserDirectory directory;		//null unless the relay session mode is used
+	private UserRoster roster;				//the user list built from PresenceMessages
+	private ConcurrentHashMap<String, UserRoster> roomRosters;	//the members of the chat rooms joined
+	private volatile String currentRoom;	//the room text is posted to, null for everyone
+	private volatile boolean roomsAccepted;
+	private volatile boolean privateAccepted;
+	private volatile boolean compressAccepted;
+	private BodyCompressor compressor;		//null unless compression is offered
+	private volatile boolean filesAccepted;
+	private FileTransfers files;			//null unless files are offered
 	private boolean hasKeys;
+	private ReceiveEvent receiving;		//the frame being handled, only used by the reading thread
 	boolean hasServer;
 	
 	
 	/**
 	 *
-	 * Creates clients Public- and PrivateKey, the PublicKey will be sent to the 
-	 * server. Ciphers are created with the same algorithms that are used by the server.  
+	 * Keeps the KeyPairPool the clients Public- and PrivateKey are taken from, the PublicKey
+	 * will be sent to the server unless the ECDH handshake is used. Ciphers are created with the same algorithms that are used by the server.  
 	 * Saves the name of the user that was entered into the 
 	 * ClientGUI. Sets the boolean flag hasServer to true since it's used as a flag 
 	 * to keep the client listening to the server. Sets the boolean hasKeys to false,
 	 * this will be set to true if the client recieves the Servers PublicKey and 
 	 * Symmetric-/SecretKey correctly.
-	 * Initiates a ObjectOutputStream and ObjectInputStream with the
-	 * help of the Socket parameter.
+	 * Initiates the output- and inputstream that frames are written to and
+	 * read from with the help of the Socket parameter.
 	 * @param user is the username that the client has entered.
-	 * @param gui is a refference to the server GUI.
+	 * @param listener is told what the client recieves, usually the ClientGUI.
 	 * @param socket is the socket that is used for communication with server.
+	 * @param config holds the protocol and session mode to use.
+	 * @param keys is the pool of pre-generated key pairs.
 	 * @throws UnsupportedEncodingException
 	 * @throws IOException
 	 * @throws NoSuchAlgorithmException
 	 * @throws NoSuchPaddingException
 	 */
-	Client(String user, ClientGUI gui, Socket socket) throws 
+	Client(String user, ClientListener listener, Socket socket, ClientConfig config, KeyPairPool keys) throws 
 	UnsupportedEncodingException, IOException, NoSuchAlgorithmException, NoSuchPaddingException{
 		this.user = user;
+		this.protocol = config.getProtocol();
+		this.offerAead = config.offersAead();
+		this.offerRelay = config.offersRelay();
+		this.useEcdh = config.usesEcdh();
+		this.compressor = config.offersCompression() ? new BodyCompressor(config.getCompressThreshold()) : null;
+		this.files = config.offersFiles() ? new FileTransfers(this, config.getDownloadDir()) : null;
+		this.keys = keys;
+		this.roster = new UserRoster();
+		this.roomRosters = new ConcurrentHashMap<String, UserRoster>();
+		this.sendLock = new ReentrantLock();
+		this.closeLock = new ReentrantLock();
 		this.hasServer = true;
 		this.hasKeys = false;
-	    this.gui = gui;
+	    this.listener = listener;
 	    
-	    KeyPairGenerator kpGenerator = KeyPairGenerator.getInstance(KEY_PAIR_ALGO);
 	    cipherKeyPair = Cipher.getInstance(KEY_PAIR_ALGO);
-	    cipherSecretKey = Cipher.getInstance(SECRET_KEY_ALGO);
-		KeyPair kp = kpGenerator.generateKeyPair();		
-		clientPrivateKey = kp.getPrivate();
-		clientPublicKey = kp.getPublic();
-		signature = Signature.getInstance(SIGNATURE_ALGO);
+	    Cipher.getInstance(SECRET_KEY_ALGO);		//Fails here rather than after the key exchange
+		Signature.getInstance(SIGNATURE_ALGO);
 		
 	    this.socket = socket;
-	    this.outputStream = new ObjectOutputStream(socket.getOutputStream());
-	    this.inputStream = new ObjectInputStream(socket.getInputStream());
+	    this.outputStream = new BufferedOutputStream(socket.getOutputStream());
+	    this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 	    
 	}// constructor end
 	
 	
+	/**
+	 * Starts the loop that reads from the server.
+	 * @param virtual is true if the loop should run on a virtual thread.
+	 */
+	void start(boolean virtual){
+		ThreadLauncher.start(this, "client-" + user, virtual);
+	}// start end
+	
+	
 	/**
 	 * Sends a Signed and Sealed Message to the server.
 	 * Called from the GUI when the user has entered text.
+	 * '/join room' joins a chat room and posts the following text to it,
+	 * '/leave' leaves it again. Text is sent to everyone when not in a room.
+	 * '/msg user text' sends the text to that user only.
+	 * '/send user path' sends a file to that user, or to everyone if the user is '*'.
 	 * @param text is the content entered by the user.
 	 */
 	void sendMessage(String text){
 		try {
-			SignedObject signed = sender.createSignedObject(new Message(user, text));
-			SealedObject sealed = sender.createSealedObject(signed);
-			outputStream.writeObject(sealed);
-			outputStream.flush();
+			if(text.startsWith("/join ") || text.equals("/leave")){
+				sendRoomCommand(text);
+			}else if(text.startsWith("/msg ")){
+				sendPrivateMessage(text.substring("/msg ".length()).trim());
+			}else if(text.startsWith("/send ")){
+				sendFile(text.substring("/send ".length()).trim());
+			}else if(currentRoom != null){
+				sendSealed(new RoomMessage(RoomMessage.POST, currentRoom, user, text));
+			}else{
+				sendSealed(new Message(user, text));
+			}
 		} catch (InvalidKeyException | SignatureException e) {
 			e.printStackTrace();
-		} catch (IllegalBlockSizeException | IOException e) {
+		} catch (IllegalBlockSizeException | BadPaddingException | IOException e) {
 			e.printStackTrace();
 		} 
 	}// sendMessage end
 	
 	
 	/**
-	 * Disable GUI, making it impossible for the user to enter 
-	 * new input. 
+	 * Sends a PrivateMessage, the server only sends it to the recipient and to
+	 * the other clients of this user. It's shown here since the server doesn't send it back.
+	 * @param command is the recipient and the text, separated by a space.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendPrivateMessage(String command) throws InvalidKeyException, SignatureException, 
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		int space = command.indexOf(' ');
+		if(!privateAccepted){
+			appendMessageToClientWindow(new Message(null, "THE SERVER DOESN'T HAVE PRIVATE MESSAGES."));
+		}else if(space > 0){
+			PrivateMessage pm = new PrivateMessage(user, command.substring(0, space), command.substring(space + 1));
+			appendPrivateMessage(pm);
+			sendSealed(pm);
+		}
+	}// sendPrivateMessage end
+	
+	
+	/**
+	 * Starts sending a file, see FileTransfers.
+	 * @param command is the recipient and the path of the file, separated by a space.
+	 */
+	private void sendFile(String command){
+		int space = command.indexOf(' ');
+		if(!filesAccepted){
+			appendMessageToClientWindow(new Message(null, "THE SERVER DOESN'T HAVE FILE TRANSFERS."));
+		}else if(space > 0){
+			files.send(command.substring(0, space), command.substring(space + 1).trim());
+		}
+	}// sendFile end
+	
+	
+	/**
+	 * Joins or leaves a chat room. The members of the room are shown instead
+	 * of every user while the room is the current one.
+	 * @param command is '/join room' or '/leave'.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendRoomCommand(String command) throws InvalidKeyException, SignatureException, 
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		if(!roomsAccepted){
+			appendMessageToClientWindow(new Message(null, "THE SERVER DOESN'T HAVE CHAT ROOMS."));
+		}else if(command.equals("/leave")){
+			String room = currentRoom;
+			if(room != null){
+				currentRoom = null;
+				roomRosters.remove(room);
+				sendSealed(new RoomMessage(RoomMessage.LEAVE, room, user, null));
+				listener.usersChanged(roster.getUsernames());
+			}
+		}else{
+			String room = command.substring("/join ".length()).trim();
+			roomRosters.put(room, new UserRoster());		//A room joined again starts over
+			currentRoom = room;
+			sendSealed(new RoomMessage(RoomMessage.JOIN, room, user, null));
+		}
+	}// sendRoomCommand end
+	
+	
+	/**
+	 * Seals a message and writes it to the server. The lock keeps the GUI and
+	 * the reader thread from writing at the same time.
+	 * @param m is the Message or DisconnectMessage to send.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendSealed(Serializable m) throws InvalidKeyException, SignatureException, 
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		sendLock.lock();
+		try{
+			FrameCodec.writeFrame(outputStream, seal(m), protocol);
+		} finally{
+			sendLock.unlock();
+		}
+	}// sendSealed end
+	
+	
+	/**
+	 * Sends a FileMessage, called by FileTransfers from the thread sending a file
+	 * or the thread reading from the server.
+	 * @param fm is the FileMessage.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	void sendFileMessage(FileMessage fm) throws InvalidKeyException, SignatureException, 
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		sendSealed(fm);
+	}// sendFileMessage end
+	
+	
+	/**
+	 * Encrypts a message with the clients protocol. Signs it with RSA unless
+	 * the AEAD session mode is used.
+	 * If the server accepted CAP_COMPRESS a large body is compressed first, unless
+	 * the relay session mode is used. A relayed message reaches other clients as it
+	 * was sealed, and they might not read compressed bodies.
+	 * @param m is the Message or DisconnectMessage to seal.
+	 * @return a SessionBytes, SealedObject or SealedBytes.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private Object seal(Serializable m) throws InvalidKeyException, SignatureException, 
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		if(sessionCipher != null){
+			return sessionCipher.seal(pack(BinaryCodec.encodeBody(m)));
+		}else if(protocol == FrameCodec.PROTOCOL_BINARY && directory == null){
+			return sender.createSealedBytes(sender.signBody(pack(BinaryCodec.encodeBody(m))));
+		}else if(protocol == FrameCodec.PROTOCOL_BINARY){
+			return sender.createSealedBytes(sender.createSignedBytes(m));
+		}
+		return sender.createSealedObject(sender.createSignedObject(m));
+	}// seal end
+	
+	
+	/**
+	 * Compresses a body if the server accepted compressed bodies.
+	 * @param body is the body encoded by BinaryCodec.
+	 * @return the body to seal.
+	 */
+	private byte[] pack(byte[] body){
+		return compressAccepted ? compressor.compress(body) : body;
+	}// pack end
+	
+	
+	/**
+	 * Tells the listener that the client is disconnected, the GUI then makes
+	 * it impossible for the user to enter new input. 
 	 * If the server hasn't told the client to disconnect
 	 * the client informs the server that it's leaving.
 	 * Closes Socket, BufferedReader, PrintWriter.
 	 */
 	void closeResources(){
-		gui.disableUserInterface();
+		listener.disconnected();
+		if(files != null){
+			files.close();
+		}
 		if(hasServer && socket != null){	//Not disconnected by GUI or by server
 			disconnectServer();				//try to inform server of disconnect
 		}
-		if(socket != null){
-			try {
-				outputStream.close();
-				inputStream.close();
-				socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		closeLock.lock();
+		try{
+			if(socket != null){
+				try {
+					outputStream.close();
+					inputStream.close();
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				socket = null;
 			}
-			socket = null;
+		} finally{
+			closeLock.unlock();
 		}
 	}// closeResources end
 	
 
 	/**
 	 * A loop retrieving all input sent from the server.
-	 * We catch SocketException in the readObject method 
+	 * We catch SocketException in the readFrame method 
 	 * as it's thrown when the resources are closed. EOFException
 	 * tells us that the server is gone, therefore this exception is also 
 	 * caught, making the client close its resources and exit.
@@ -161,17 +374,25 @@ class Client extends Thread{
 	 * exchanged correctly all other messages are Signed and Sealed, both
 	 * by client and server. If keys can't be exchanged correctly, 
 	 * a DisconnectMessage is sent as a last resort to tell the Server that it 
-	 * should exit. Sealed object are sent to the 'handleSealedObject' method.
+	 * should exit. Sealed object are sent to the 'handleSealedObject' method,
+	 * SealedBytes to 'handleSealedBytes', SessionBytes to 'handleSessionBytes'
+	 * and RelayedBytes to 'handleRelayedBytes'.
+	 * Handling each frame is a ReceiveEvent for the Flight Recorder.
 	 */
 	public void run(){
 		try {
 			while(hasServer){
 				Object obj = null;
 				try{
-					obj = inputStream.readObject();
+					obj = FrameCodec.readFrame(inputStream);
 				}catch(SocketException | EOFException e){
 					hasServer = false;
 				}
+				if(obj == null){
+					continue;
+				}
+				receiving = new ReceiveEvent();
+				receiving.begin();
 				if(obj instanceof KeyMessage){		
 					KeyMessage m = (KeyMessage)obj;
 					handleKeysFromServer(m);
@@ -179,9 +400,23 @@ class Client extends Thread{
 				else if(obj instanceof SealedObject){
 					SealedObject sealed = (SealedObject)obj;
 					handleSealedObject(sealed);
+				}else if(obj instanceof SealedBytes){
+					SealedBytes sealed = (SealedBytes)obj;
+					handleSealedBytes(sealed);
+				}else if(obj instanceof SessionBytes){
+					SessionBytes sealed = (SessionBytes)obj;
+					handleSessionBytes(sealed);
+				}else if(obj instanceof RelayedBytes){
+					RelayedBytes relayed = (RelayedBytes)obj;
+					handleRelayedBytes(relayed);
 				}else if(obj instanceof DisconnectMessage){ 	//Used as a last resort for client to communicate 
 					hasServer = false;							//with server if keys can't be exchanged
 				}
+				if(receiving.shouldCommit()){
+					receiving.username = user;
+					receiving.frameType = obj.getClass().getSimpleName();
+					receiving.commit();
+				}
 			}// while end
 		} catch (ClassNotFoundException | InvalidKeyException e) {
 			e.printStackTrace();
@@ -201,11 +436,7 @@ class Client extends Thread{
 	/**
 	 * Unwraps the SealedObject and verifies the SignedObject.
 	 * If this fails an error message is appended to the users screen.
-	 * After that reacts to the type of Object being sent. 
-	 * DisconnectMessage tells the client to disconnect.
-	 * UserListMessage informs the client that there has been an update in 
-	 * the userlist.
-	 * Normal Messages are appended to the clients screen.
+	 * After that the message is given to 'handleMessage'.
 	 * @param sealed is the object that should be unwrapped, verified and
 	 * handeld.
 	 * @throws InvalidKeyException
@@ -221,14 +452,7 @@ class Client extends Thread{
 		
 		SignedObject signed = reciever.convertSealedObject(sealed);
 		if(reciever.validateSignedObject(signed)){
-			Object object = reciever.convertSignedObject(signed);
-			if(object instanceof DisconnectMessage){
-				hasServer = false;
-			}else if(object instanceof UserListMessage){
-				gui.usersArea.setText(((UserListMessage)object).getUsernames());
-			}else if(object instanceof Message){
-				appendMessageToClientWindow((Message)object);
-			}
+			handleMessage(reciever.convertSignedObject(signed));
 		}else{
 			appendMessageToClientWindow(new Message(null, "CLIENT RECIEVED A SIGNED OBJECT WITH AN INVALID SIGNATURE."));
 		}
@@ -236,22 +460,199 @@ class Client extends Thread{
 	
 	
 	/**
-	 * Appends the content of a Message to the clients screen.
-	 * @param m is the Message that schould be displayed.
+	 * The binary protocols version of 'handleSealedObject'.
+	 * @param sealed is the SealedBytes that should be unwrapped, verified and
+	 * handeld.
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 * @throws SignatureException
 	 */
-	private void appendMessageToClientWindow(Message m){
-		if(m.getUser() == null){ // null when from server
-			gui.outputArea.append(m.getMessage() + "\n");
+	private void handleSealedBytes(SealedBytes sealed) throws InvalidKeyException, 
+	IllegalBlockSizeException, BadPaddingException, IOException, SignatureException{
+		SignedBytes signed = reciever.convertSealedBytes(sealed);
+		if(reciever.validateSignedBytes(signed)){
+			handleMessage(reciever.convertSignedBytes(signed));
+		}else{
+			appendMessageToClientWindow(new Message(null, "CLIENT RECIEVED A SIGNED OBJECT WITH AN INVALID SIGNATURE."));
+		}
+	}// handleSealedBytes end
+	
+	
+	/**
+	 * Opens a message sealed with the sessions key. A message that has been
+	 * changed or replayed fails with an AEADBadTagException and the client exits.
+	 * @param sealed is the SessionBytes that should be opened and handeld.
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void handleSessionBytes(SessionBytes sealed) throws InvalidKeyException, 
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		if(sessionCipher == null){
+			appendMessageToClientWindow(new Message(null, "CLIENT RECIEVED A SESSION MESSAGE WITHOUT A SESSION KEY."));
+			return;
+		}
+		handleMessage(BinaryCodec.decodeBody(sessionCipher.open(sealed)));
+	}// handleSessionBytes end
+	
+	
+	/**
+	 * Opens a message relayed by the server and verifies it with the key of the
+	 * user the server says sent it. The name in the message has to match that users name.
+	 * @param relayed is the RelayedBytes that should be opened, verified and handeld.
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 * @throws SignatureException
+	 */
+	private void handleRelayedBytes(RelayedBytes relayed) throws InvalidKeyException, 
+	IllegalBlockSizeException, BadPaddingException, IOException, SignatureException{
+		Verifier userVerifier = directory == null ? null : directory.getVerifier(relayed.getSender());
+		if(userVerifier == null){
+			appendMessageToClientWindow(new Message(null, "CLIENT RECIEVED A MESSAGE FROM AN UNKNOWN USER."));
+			return;
+		}
+		SignedBytes signed = userVerifier.convertSealedBytes(new SealedBytes(relayed.getCiphertext()));
+		Object object = null;
+		if(userVerifier.validateSignedBytes(signed)){
+			object = userVerifier.convertSignedBytes(signed);
+		}
+		receiving.sessionId = relayed.getSender();
+		if(object instanceof Message 
+				&& directory.getUser(relayed.getSender()).equals(((Message)object).getUser())){
+			receiving.sender = ((Message)object).getUser();
+			appendMessageToClientWindow((Message)object);
 		}else{
-			gui.outputArea.append(m.getUser() + ": " + m.getMessage() + "\n");
+			appendMessageToClientWindow(new Message(null, "CLIENT RECIEVED A SIGNED OBJECT WITH AN INVALID SIGNATURE."));
+		}
+	}// handleRelayedBytes end
+	
+	
+	/**
+	 * Reacts to the type of a verified message.
+	 * DisconnectMessage tells the client to disconnect.
+	 * UserListMessage informs the client that there has been an update in 
+	 * the userlist. A PresenceMessage holds the whole list or only the user
+	 * that joined or left, if the roster missed a change it asks for the whole list.
+	 * The same goes for the members of a chat room, a RoomMessage is a post to the room.
+	 * A PrivateMessage is shown with its sender and recipient.
+	 * Normal Messages are appended to the clients screen.
+	 * DirectoryMessages update the keys used in the relay session mode.
+	 * FileMessages are handed to the FileTransfers.
+	 * @param object is the decrypted and verified message.
+	 */
+	private void handleMessage(Object object){
+		if(object instanceof DisconnectMessage){
+			hasServer = false;
+		}else if(object instanceof DirectoryMessage){
+			if(directory != null){
+				directory.update((DirectoryMessage)object);
+			}
+		}else if(object instanceof UserListMessage){
+			listener.usersChanged(((UserListMessage)object).getUsernames());
+		}else if(object instanceof PresenceMessage){
+			handlePresenceMessage((PresenceMessage)object);
+		}else if(object instanceof RoomMessage){
+			RoomMessage rm = (RoomMessage)object;
+			receiving.sender = rm.getUser();
+			appendMessageToClientWindow(new Message("[" + rm.getRoom() + "] " + rm.getUser(), rm.getMessage()));
+		}else if(object instanceof PrivateMessage){
+			receiving.sender = ((PrivateMessage)object).getUser();
+			appendPrivateMessage((PrivateMessage)object);
+		}else if(object instanceof FileMessage){
+			if(filesAccepted){
+				files.handle((FileMessage)object);
+			}
+		}else if(object instanceof Message){
+			receiving.sender = ((Message)object).getUser();
+			appendMessageToClientWindow((Message)object);
+		}
+	}// handleMessage end
+	
+	
+	/**
+	 * Applies a PresenceMessage to the user list, or to the members of a room.
+	 * Changes to a room that has been left are ignored.
+	 * @param pm is the PresenceMessage sent by the server.
+	 */
+	private void handlePresenceMessage(PresenceMessage pm){
+		String room = pm.getRoom();
+		UserRoster target = room == null ? roster : roomRosters.get(room);
+		if(target == null){
+			return;
+		}
+		if(!target.apply(pm)){
+			requestPresenceSnapshot(room, target.getVersion());
+		}
+		if(room == null ? currentRoom == null : room.equals(currentRoom)){
+			listener.usersChanged(target.getUsernames());
+		}
+	}// handlePresenceMessage end
+	
+	
+	/**
+	 * Asks the server for the whole user list after the roster missed a change.
+	 * @param room is the name of the room, null for every user.
+	 * @param version is the version of the roster, -1 before its first snapshot
+	 * which is sent as 0 since versions on the wire are never negative.
+	 */
+	private void requestPresenceSnapshot(String room, long version){
+		try{
+			sendSealed(new PresenceMessage(PresenceMessage.SNAPSHOT_REQUEST, Math.max(0, version), room));
+			System.out.println("CLIENT REQUESTS THE USER LIST");
+		} catch(IOException | InvalidKeyException e){
+			e.printStackTrace();
+		} catch(IllegalBlockSizeException | BadPaddingException | SignatureException e){
+			e.printStackTrace();
 		}
+	}// requestPresenceSnapshot end
+	
+	
+	/**
+	 * Appends a PrivateMessage to the clients screen, both the ones recieved
+	 * and the ones sent from this or another client of the same user.
+	 * @param pm is the PrivateMessage that should be displayed.
+	 */
+	private void appendPrivateMessage(PrivateMessage pm){
+		appendMessageToClientWindow(new Message("[private] " + pm.getUser() + " -> " + pm.getRecipient(), pm.getMessage()));
+	}// appendPrivateMessage end
+	
+	
+	/**
+	 * Hands a Message to the listener, which appends it to the clients screen.
+	 * @param m is the Message that schould be displayed.
+	 */
+	private void appendMessageToClientWindow(Message m){
+		listener.messageRecieved(m);
 	}// appendMessageToClientWindow end
 	
 	
+	/**
+	 * Shows a notice from the client itself, like the progress of a file.
+	 * @param text is the notice.
+	 */
+	void showNotice(String text){
+		appendMessageToClientWindow(new Message(null, text));
+	}// showNotice end
+	
+	
+	/**
+	 * @return the name of the user.
+	 */
+	String getUser(){
+		return user;
+	}// getUser end
+	
+	
 	/**
 	 * Gets the PublicKey sent from the server.
 	 * If this is successful the Client sends its own PublicKey
-	 * to the server.
+	 * to the server, or its AGREEMENT_KEY if the server offered ECDH.
+	 * The server answers with the SECRET_KEY or its own AGREEMENT_KEY.
 	 * If any of these two operations fail the Client 
 	 * closes its resources as no future communication can be encrypted.
 	 * @param km is the KeyMessage that should be retrieved and saved.
@@ -259,17 +660,19 @@ class Client extends Thread{
 	private void handleKeysFromServer(KeyMessage km){
 		if(km.getKeytype() == KeyMessage.PUBLIC_KEY){
 			if(!getServerPublicKey(km.getKey())){
-				gui.outputArea.setText("FAILED TO GET SERVER KEY 1.\nCONNECTION ABORTED.");
+				listener.connectionFailed("FAILED TO GET SERVER KEY 1.\nCONNECTION ABORTED.");
 				hasServer = false;
-			}else{
+			}else if(!useEcdh || !km.hasCapability(KeyMessage.CAP_ECDH) || !sendAgreementKey()){
 				sendPublicKey();
 			}
-		}else if(km.getKeytype() == KeyMessage.SECRET_KEY){
-			if(!recieveSymmetricKey(km)){
-				gui.outputArea.setText("FAILED TO GET SERVER KEY 2.\nCONNECTION ABORTED.");
+		}else if(km.getKeytype() == KeyMessage.SECRET_KEY || km.getKeytype() == KeyMessage.AGREEMENT_KEY){
+			boolean recieved = km.getKeytype() == KeyMessage.SECRET_KEY ? recieveSymmetricKey(km) : recieveAgreementKey(km);
+			if(!recieved){
+				listener.connectionFailed("FAILED TO GET SERVER KEY 2.\nCONNECTION ABORTED.");
 				hasServer = false;
 			}else{
 				initVerifiers();	 
+				listener.connected();
 			}
 		}
 	}// handleKeyFromServer end
@@ -295,32 +698,64 @@ class Client extends Thread{
 	
 	
 	/**
-	 * Sends the Clients PublicKey after encoding it to a base64 String
-	 * and wrapping it in a KeyMessage.
+	 * Takes the Clients key pair from the KeyPairPool and sends the PublicKey
+	 * after encoding it to a base64 String and wrapping it in a KeyMessage. The AEAD session mode is offered
+	 * with the key if the ClientConfig allows it, and so is the relay session mode.
 	 * @throws IOException
 	 */
 	private boolean sendPublicKey(){
 		try{
+			KeyPair kp = keys.take();		//Only generated here if the pool is empty
+			System.out.println("CLIENT KEYS: " + keys);
+			clientPrivateKey = kp.getPrivate();
+			clientPublicKey = kp.getPublic();
 			String keyText = Base64.getEncoder().
 					encodeToString(clientPublicKey.getEncoded());
-			outputStream.writeObject(new KeyMessage(user, keyText, KeyMessage.PUBLIC_KEY));
-			outputStream.flush();	
+			int capabilities = (offerAead ? KeyMessage.CAP_AEAD : 0) | (offerRelay ? KeyMessage.CAP_RELAY : 0)
+					| KeyMessage.CAP_PRESENCE | KeyMessage.CAP_ROOMS | KeyMessage.CAP_PRIVATE
+					| (compressor != null ? KeyMessage.CAP_COMPRESS : 0) | (files != null ? KeyMessage.CAP_FILES : 0);
+			FrameCodec.writeFrame(outputStream, 
+					new KeyMessage(user, keyText, KeyMessage.PUBLIC_KEY, capabilities), protocol);
 			System.out.println("CLIENT SENDS ITS PUBLIC KEY");
 			return true;
-		} catch(IOException e){
+		} catch(IOException | NoSuchAlgorithmException e){
 			e.printStackTrace();
 		}
 		return false;
 	}// sendPublicKey end
 	
 	
+	/**
+	 * Generates an ephemeral X25519 key pair and sends its public key in an
+	 * AGREEMENT_KEY KeyMessage, offering the AEAD session mode.
+	 * @return true if the key was sent, false if the RSA handshake has to be used.
+	 */
+	private boolean sendAgreementKey(){
+		try{
+			exchange = new KeyExchange(true);
+			FrameCodec.writeFrame(outputStream, new KeyMessage(user, exchange.getPublicKey(),
+					KeyMessage.AGREEMENT_KEY, KeyMessage.CAP_AEAD | KeyMessage.CAP_ECDH | KeyMessage.CAP_PRESENCE
+					| KeyMessage.CAP_ROOMS | KeyMessage.CAP_PRIVATE | (compressor != null ? KeyMessage.CAP_COMPRESS : 0)
+					| (files != null ? KeyMessage.CAP_FILES : 0)), protocol);
+			System.out.println("CLIENT SENDS ITS AGREEMENT KEY");
+			return true;
+		} catch(IOException | NoSuchAlgorithmException e){
+			e.printStackTrace();
+		}
+		exchange = null;
+		return false;
+	}// sendAgreementKey end
+	
+	
 	/**
 	 * Decodes the base64 String sent by the server, turning it into a byte array.
 	 * The decoded byte array is then encrypted with the cipher that was initialized by the
 	 * server using the clients PublicKey. Now the client initializes it with its PrivateKey
 	 * making it possible to use the cipher to decrypt the byte array. Then creating
 	 * the SecretKey from the decryptet byte array that will be used to encrypt and 
-	 * decrypt SealedObjects in all future communication.
+	 * decrypt SealedObjects in all future communication. If the server flagged the
+	 * key with CAP_AEAD it's this connections own key and a SessionCipher is created.
+	 * If it flagged it with CAP_RELAY a UserDirectory is created for the relayed messages.
 	 * @param km is the KeyMessage that contains the base64 decoded String.
 	 * @return true if the operation is successful and false if it fails.
 	 */
@@ -330,8 +765,19 @@ class Client extends Thread{
             byte[] ciphertextBytes = Base64.getDecoder().decode(km.getKey());
             byte[] decryptedBytes = cipherKeyPair.doFinal(ciphertextBytes);            
             secretKey = new SecretKeySpec(decryptedBytes, 0, decryptedBytes.length, SECRET_KEY_ALGO);
+            roomsAccepted = km.hasCapability(KeyMessage.CAP_ROOMS);
+            privateAccepted = km.hasCapability(KeyMessage.CAP_PRIVATE);
+            compressAccepted = compressor != null && km.hasCapability(KeyMessage.CAP_COMPRESS);
+            filesAccepted = files != null && km.hasCapability(KeyMessage.CAP_FILES);
+            if(km.hasCapability(KeyMessage.CAP_AEAD)){
+            	sessionCipher = new SessionCipher(secretKey, true);
+            }else if(km.hasCapability(KeyMessage.CAP_RELAY)){
+            	directory = new UserDirectory(secretKey, KEY_PAIR_ALGO, SECRET_KEY_ALGO, SIGNATURE_ALGO);
+            }
             System.out.println("CLIENT RECIEVED SYMMETRIC KEY FROM SERVER");
             return true;
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+			e.printStackTrace();
 		} catch (IllegalBlockSizeException | IllegalArgumentException e) {
 			e.printStackTrace();
 		} catch (InvalidKeyException | BadPaddingException e) {
@@ -341,6 +787,33 @@ class Client extends Thread{
 	}// recieveSymmetricKey end
 	
 	
+	/**
+	 * Agrees on the AEAD key with the servers ephemeral X25519 key and
+	 * creates the SessionCipher, the connection always uses the AEAD session mode.
+	 * @param km is the AGREEMENT_KEY sent by the server.
+	 * @return true if the operation is successful and false if it fails.
+	 */
+	private boolean recieveAgreementKey(KeyMessage km){
+		if(exchange == null){
+			return false;		//The client didn't send an AGREEMENT_KEY
+		}
+		try{
+			secretKey = exchange.agree(km.getKey());
+			sessionCipher = new SessionCipher(secretKey, true);
+			roomsAccepted = km.hasCapability(KeyMessage.CAP_ROOMS);
+			privateAccepted = km.hasCapability(KeyMessage.CAP_PRIVATE);
+			compressAccepted = compressor != null && km.hasCapability(KeyMessage.CAP_COMPRESS);
+			filesAccepted = files != null && km.hasCapability(KeyMessage.CAP_FILES);
+			exchange = null;
+			System.out.println("CLIENT AGREED ON THE SESSION KEY WITH THE SERVER");
+			return true;
+		} catch(InvalidKeyException | NoSuchAlgorithmException | NoSuchPaddingException e){
+			e.printStackTrace();
+		}
+		return false;
+	}// recieveAgreementKey end
+	
+	
 	 
 	/**
 	 * Sends a message to the server, telling it to disconnect since that is 
@@ -350,17 +823,13 @@ class Client extends Thread{
 	void disconnectServer(){
 		try {
 			if(hasKeys){
-				SignedObject signed = sender.createSignedObject(new DisconnectMessage());
-				SealedObject sealed = sender.createSealedObject(signed);
-				outputStream.writeObject(sealed);
-				outputStream.flush();
+				sendSealed(new DisconnectMessage());
 			}else{
-				outputStream.writeObject(new DisconnectMessage());
-				outputStream.flush();
+				FrameCodec.writeFrame(outputStream, new DisconnectMessage(), protocol);
 			}
 		} catch (IOException | InvalidKeyException e) {
 			e.printStackTrace();
-		} catch (IllegalBlockSizeException | SignatureException e) {
+		} catch (IllegalBlockSizeException | BadPaddingException | SignatureException e) {
 			e.printStackTrace();
 		} 
 	}// disconnectServer end
@@ -373,8 +842,8 @@ class Client extends Thread{
 	 * steps when decrypting and encrypting messages. 
 	 */
 	private void initVerifiers(){
-		sender = new Verifier(secretKey, cipherSecretKey, clientPublicKey, clientPrivateKey, signature);
-		reciever = new Verifier(secretKey, cipherSecretKey, serverPublicKey, clientPrivateKey, signature); 
+		sender = new Verifier(secretKey, SECRET_KEY_ALGO, clientPublicKey, clientPrivateKey, SIGNATURE_ALGO);
+		reciever = new Verifier(secretKey, SECRET_KEY_ALGO, serverPublicKey, null, SIGNATURE_ALGO); 
 		hasKeys = true;
 	}//initVerifiers end
 
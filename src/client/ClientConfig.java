@@ -0,0 +1,233 @@
+package client;
+import java.io.File;
+import message.BodyCompressor;
+import message.FrameCodec;
+
+/**
+ * Settings that are chosen when the client application is started.
+ *
+ * The settings are given as arguments to ClientMain, for example:
+ * 'ClientMain -threads virtual -protocol serialized -session rsa'.
+ *
+ * @author Tomas
+ */
+class ClientConfig {
+
+	private String invalidArgumentMessage = "Invalid client argument: ";
+
+	private boolean virtualThreads;
+	private int protocol;
+	private boolean aead;
+	private boolean relay;
+	private boolean ecdh;
+	private int scrollback;
+	private int compressThreshold;	//0 if compression isn't offered
+	private File downloadDir;		//null if files aren't offered
+
+
+	/**
+	 * Constructs the default settings, a platform thread, the binary protocol
+	 * and the AEAD session mode, with the relay mode offered in case the server
+	 * doesn't accept AEAD. The AEAD key is agreed with ECDH when the server offers it.
+	 * Compression of large messages is offered, and so are files, which are
+	 * saved in the 'downloads' directory.
+	 */
+	ClientConfig(){
+		this.virtualThreads = false;
+		this.protocol = FrameCodec.PROTOCOL_BINARY;
+		this.aead = true;
+		this.relay = true;
+		this.ecdh = true;
+		this.scrollback = 5000;
+		this.compressThreshold = BodyCompressor.DEFAULT_THRESHOLD;
+		this.downloadDir = new File("downloads");
+	}// constructor end
+
+
+	/**
+	 * Parses the arguments given to the application.
+	 * @param args are the arguments given to main.
+	 * @return the settings.
+	 * @throws IllegalArgumentException if an argument is unknown or has an invalid value.
+	 */
+	static ClientConfig fromArgs(String[] args){
+		ClientConfig config = new ClientConfig();
+		for(int i = 0; i < args.length; ++i){
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			config.set(args[i], value);
+			++i;
+		}
+		return config;
+	}// fromArgs end
+
+
+	/**
+	 * Sets one setting.
+	 * @param name is the name of the setting, with or without a leading '-'.
+	 * @param value is the value to use.
+	 */
+	void set(String name, String value){
+		if(value == null){
+			throw new IllegalArgumentException(invalidArgumentMessage + name);
+		}
+		switch(name.startsWith("-") ? name.substring(1) : name){
+		case "threads":
+			if(value.equals("virtual")){
+				virtualThreads = true;
+			}else if(value.equals("platform")){
+				virtualThreads = false;
+			}else{
+				throw new IllegalArgumentException(invalidArgumentMessage + "threads " + value);
+			}
+			break;
+		case "protocol":
+			if(value.equals("binary")){
+				protocol = FrameCodec.PROTOCOL_BINARY;
+			}else if(value.equals("serialized")){
+				protocol = FrameCodec.PROTOCOL_SERIALIZED;
+			}else{
+				throw new IllegalArgumentException(invalidArgumentMessage + "protocol " + value);
+			}
+			break;
+		case "session":
+			if(value.equals("aead")){
+				aead = true;
+				relay = true;
+			}else if(value.equals("relay")){
+				aead = false;
+				relay = true;
+			}else if(value.equals("rsa")){
+				aead = false;
+				relay = false;
+			}else{
+				throw new IllegalArgumentException(invalidArgumentMessage + "session " + value);
+			}
+			break;
+		case "handshake":
+			if(value.equals("ecdh")){
+				ecdh = true;
+			}else if(value.equals("rsa")){
+				ecdh = false;
+			}else{
+				throw new IllegalArgumentException(invalidArgumentMessage + "handshake " + value);
+			}
+			break;
+		case "scrollback":
+			try{
+				scrollback = Integer.parseInt(value);
+			} catch(NumberFormatException e){
+				scrollback = 0;
+			}
+			if(scrollback <= 0){
+				throw new IllegalArgumentException(invalidArgumentMessage + "scrollback " + value);
+			}
+			break;
+		case "compress":
+			if(value.equals("off")){
+				compressThreshold = 0;
+				break;
+			}
+			try{
+				compressThreshold = Integer.parseInt(value);
+			} catch(NumberFormatException e){
+				compressThreshold = 0;
+			}
+			if(compressThreshold <= 0){
+				throw new IllegalArgumentException(invalidArgumentMessage + "compress " + value);
+			}
+			break;
+		case "downloads":
+			downloadDir = value.equals("none") ? null : new File(value);
+			break;
+		default:
+			throw new IllegalArgumentException(invalidArgumentMessage + name);
+		}
+	}// set end
+
+
+	/**
+	 * @return true if the client should read from the server on a virtual thread.
+	 */
+	boolean useVirtualThreads(){
+		return virtualThreads;
+	}
+
+
+	/**
+	 * @return FrameCodec.PROTOCOL_BINARY or PROTOCOL_SERIALIZED.
+	 */
+	int getProtocol(){
+		return protocol;
+	}
+
+
+	/**
+	 * The AEAD session mode is only offered with the binary protocol.
+	 * @return true if the client should offer the AEAD session mode.
+	 */
+	boolean offersAead(){
+		return aead && protocol == FrameCodec.PROTOCOL_BINARY;
+	}
+
+
+	/**
+	 * The ECDH handshake leads to the AEAD session mode, so it needs the same.
+	 * @return true if the client should answer a server offering ECDH with an AGREEMENT_KEY.
+	 */
+	boolean usesEcdh(){
+		return ecdh && offersAead();
+	}
+
+
+	/**
+	 * The relay session mode is only offered with the binary protocol.
+	 * @return true if the client should offer the relay session mode.
+	 */
+	boolean offersRelay(){
+		return relay && protocol == FrameCodec.PROTOCOL_BINARY;
+	}
+
+
+	/**
+	 * @return the number of lines the chat window keeps.
+	 */
+	int getScrollback(){
+		return scrollback;
+	}
+
+
+	/**
+	 * Compressed bodies are only part of the binary protocol.
+	 * @return true if the client should offer CAP_COMPRESS.
+	 */
+	boolean offersCompression(){
+		return compressThreshold > 0 && protocol == FrameCodec.PROTOCOL_BINARY;
+	}
+
+
+	/**
+	 * @return the size in bytes of the smallest message body that is compressed.
+	 */
+	int getCompressThreshold(){
+		return compressThreshold;
+	}
+
+
+	/**
+	 * FileMessages are only part of the binary protocol.
+	 * @return true if the client should offer CAP_FILES.
+	 */
+	boolean offersFiles(){
+		return downloadDir != null && protocol == FrameCodec.PROTOCOL_BINARY;
+	}
+
+
+	/**
+	 * @return the directory recieved files are saved in, null if files aren't offered.
+	 */
+	File getDownloadDir(){
+		return downloadDir;
+	}
+
+
+}// ClientConfig end
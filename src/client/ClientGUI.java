@@ -32,6 +32,9 @@ import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.LineBorder;
+import message.KeyPairPool;
+import message.Message;
+import message.RenderQueue;
 
 /**
  * A simple GUI for the chat client.
@@ -40,7 +43,7 @@ import javax.swing.border.LineBorder;
  * 
  * @author Tomas
  */
-class ClientGUI extends JFrame{
+class ClientGUI extends JFrame implements ClientListener{
 	private static final long serialVersionUID = -8509590566551245416L;
 	private static final String DEFAULT_PORT = "2000";
 	private static final String DEFAULT_HOST = "127.0.0.1";
@@ -48,6 +51,7 @@ class ClientGUI extends JFrame{
 	private static final int START_FRAME_HEIGHT = 275;
 	private static final int ACTIVE_FRAME_WIDTH = 350;
 	private static final int ACTIVE_FRAME_HEIGHT = 400;
+	private static final int KEY_POOL_SIZE = 2;		//a key pair for connecting and one for reconnecting
 	private Color backgroundColor = new Color(93, 93, 93);
 	private Color errorColor = new Color(218, 181, 39);
 	private Color btnHover = new Color(59,57,58);
@@ -55,6 +59,8 @@ class ClientGUI extends JFrame{
 	private Color btnBack = new Color(45,45,45);
 	
 	private boolean disabled;
+	private ClientConfig config;
+	private KeyPairPool keys;
 	private String host;
 	private int port;
 	//CONNECT
@@ -67,17 +73,22 @@ class ClientGUI extends JFrame{
 	JButton sendBtn;
 	private Client client;
 	JTextArea outputArea, usersArea;
+	RenderQueue output, users;		//the only way text is put in the areas once the chat is built
 	
 	
 	/**
 	 * Constructs the start window of the chat client. 
 	 * Calls helper methods setIcons and buildStart.
+	 * Starts generating the clients key pair in the background, so it's
+	 * usually ready before the user has entered a username.
 	 * Adds a WindowListner listening to window closing event. 
 	 * Closes the server connection if the client is connected to a server.
 	 * If not, just closes window.
-	 * 
+	 * @param config holds the settings given when the client was started.
 	 */
-	public ClientGUI(){
+	public ClientGUI(ClientConfig config){
+		this.config = config;
+		this.keys = new KeyPairPool(Client.KEY_PAIR_ALGO, KEY_POOL_SIZE).start();
 	    setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
 	    setResizable(false);
 	    this.disabled = false;
@@ -221,12 +232,14 @@ class ClientGUI extends JFrame{
         scrollContent.setPreferredSize(new Dimension(235,366));
         outputArea.setLineWrap(true);
 	    scrollContent.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+	    output = new RenderQueue(outputArea, config.getScrollback());
         
 	    JScrollPane scrollUsers = new JScrollPane(usersArea = new JTextArea());
 	    contentPane.add(scrollUsers);
 	    scrollUsers.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
 	    usersArea.setLineWrap(true);
 	    usersArea.setEditable (false);
+	    users = new RenderQueue(usersArea, Integer.MAX_VALUE);
 	    layout.putConstraint(SpringLayout.WEST, scrollUsers, 5, SpringLayout.EAST, scrollContent);
         layout.putConstraint(SpringLayout.NORTH, scrollUsers, 5, SpringLayout.NORTH, contentPane);
         scrollUsers.setPreferredSize(new Dimension(101,366));
@@ -295,7 +308,7 @@ class ClientGUI extends JFrame{
     		messageToUser.setText("All fields have to be filled.");
     	}else if(connect(host, portString, user)){
 			buildChat();
-			client.start();
+			client.start(config.useVirtualThreads());
     	}
 	}// validateAndConnect end
 	
@@ -320,7 +333,7 @@ class ClientGUI extends JFrame{
 					throw new IllegalArgumentException("Port has to be a number between 0 and 65535.");
 				}
 				host = enteredHost;
-				client = new Client(user, this, new Socket(host, port));
+				client = new Client(user, this, new Socket(host, port), config, keys);
 				return true;
 			} catch(NumberFormatException e) {
 				messageToUser.setText("Port has to be a number.");
@@ -391,6 +404,44 @@ class ClientGUI extends JFrame{
 	}// setIcons end
 	
 	
+	@Override
+	public void connected(){
+		//The chat is already shown
+	}
+
+
+	/**
+	 * Appends the content of a Message to the chat, through the RenderQueue
+	 * so it is shown with the next frame.
+	 */
+	@Override
+	public void messageRecieved(Message m){
+		if(m.getUser() == null){ // null when from server
+			output.append(m.getMessage());
+		}else{
+			output.append(m.getUser() + ": " + m.getMessage());
+		}
+	}// messageRecieved end
+
+
+	@Override
+	public void usersChanged(String usernames){
+		users.setText(usernames);
+	}
+
+
+	@Override
+	public void connectionFailed(String reason){
+		output.setText(reason);
+	}
+
+
+	@Override
+	public void disconnected(){
+		disableUserInterface();
+	}
+
+
 	/**
 	 * Remove the possibility for the user to enter input.
 	 * This is done when the user is disconnected and the GUI isn't closed.
@@ -401,7 +452,7 @@ class ClientGUI extends JFrame{
 		disabled = true;
 		inputField.setEnabled(false);
 		sendBtn.setEnabled(false);
-		usersArea.setText("");
+		users.setText("");
 		requestFocus();
 	}// disableUserInterface end
 	
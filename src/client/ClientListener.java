@@ -0,0 +1,48 @@
+package client;
+import message.Message;
+
+/**
+ * Told by the Client about what it recieves from the server, instead of the
+ * client writing to a window. ClientGUI shows it in its window, and the bots
+ * of the LoadGenerator use it to measure the server, so a Client runs the
+ * same protocol with or without a GUI.
+ * The methods are called from the thread reading from the server, except for
+ * the messages the client shows itself, which come from the thread that sent them.
+ *
+ * @author Tomas
+ */
+interface ClientListener {
+
+	/**
+	 * The keys have been exchanged with the server and messages can be sent.
+	 */
+	void connected();
+
+
+	/**
+	 * A message to show, from a user or from the server.
+	 * @param m is the Message, its user is null when it's from the server.
+	 */
+	void messageRecieved(Message m);
+
+
+	/**
+	 * The users in the chat, or in the current chat room, have changed.
+	 * @param usernames are the names of the users, one on each line.
+	 */
+	void usersChanged(String usernames);
+
+
+	/**
+	 * The keys couldn't be exchanged and the client is disconnecting.
+	 * @param reason is the text to show instead of the chat.
+	 */
+	void connectionFailed(String reason);
+
+
+	/**
+	 * The client has disconnected from the server, or the server from the client.
+	 */
+	void disconnected();
+
+}// ClientListener end
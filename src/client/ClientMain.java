@@ -8,11 +8,21 @@ public class ClientMain {
 	 * Creates a connection using Sockets. If a successful connection 
 	 * is initiated a Chat Client is started. If a connection can't be
 	 * established the program shows an error message to the user.
-	 * 
+	 * The arguments are described in ClientConfig.
+	 * 'ClientMain -threads virtual' reads from the server on a virtual thread.
+	 * 'ClientMain -protocol serialized' uses the legacy Java serialization.
 	 */
 	public static void main(String [] args){
-		
-		new ClientGUI();
+		ClientConfig config;
+		try{
+			config = ClientConfig.fromArgs(args);
+		} catch(IllegalArgumentException e){
+			System.err.println(e.getMessage());
+			System.err.println("Usage: ClientMain [-threads platform|virtual] [-protocol binary|serialized] "
+					+ "[-session aead|relay|rsa] [-handshake ecdh|rsa] [-scrollback lines] [-downloads dir|none]");
+			return;
+		}
+		new ClientGUI(config);
 		
 	}
 	
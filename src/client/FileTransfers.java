@@ -0,0 +1,409 @@
+package client;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import message.FileMessage;
+import message.ThreadLauncher;
+
+/**
+ * The files the client sends and recieves, see FileMessage.
+ * Each file sent is read from disk on a thread of its own, a chunk at a time,
+ * and never more than WINDOW chunks ahead of what the server has ACKed. Each
+ * chunk is sent with the Clients send lock, so messages the user writes go out
+ * between the chunks instead of after the whole file.
+ * Files offered by the server are recieved into a '.part' file in the download
+ * directory, named after the transfer, and renamed when complete. A transfer that
+ * was stopped by a disconnect continues from the bytes already on disk.
+ *
+ * @author Tomas
+ */
+class FileTransfers {
+
+	private static final String PART_SUFFIX = ".part";
+	private static final long ACCEPT_TIMEOUT = 30;		//seconds to wait for the server to ACCEPT an OFFER
+
+	private Client client;
+	private File downloadDir;
+	private ConcurrentHashMap<Long, Upload> uploads;
+	private ConcurrentHashMap<Long, Download> downloads;	//only used by the thread reading from the server
+
+
+	/**
+	 * @param client is the Client the FileMessages are sent with.
+	 * @param downloadDir is the directory recieved files are saved in.
+	 */
+	FileTransfers(Client client, File downloadDir){
+		this.client = client;
+		this.downloadDir = downloadDir;
+		this.uploads = new ConcurrentHashMap<Long, Upload>();
+		this.downloads = new ConcurrentHashMap<Long, Download>();
+	}// constructor end
+
+
+	/**
+	 * Starts sending a file on a thread of its own.
+	 * @param recipient is the user to send it to, or FileMessage.EVERYONE.
+	 * @param path is the path of the file.
+	 */
+	void send(String recipient, String path){
+		File file = new File(path);
+		if(!file.isFile() || !file.canRead()){
+			client.showNotice("CAN'T READ THE FILE " + path);
+			return;
+		}
+		long id = transferId(recipient, file);
+		Upload upload = new Upload(id, recipient, file, file.length());
+		if(uploads.putIfAbsent(id, upload) != null){
+			client.showNotice(file.getName() + " IS ALREADY BEING SENT");
+			return;
+		}
+		ThreadLauncher.start(upload, "upload-" + Long.toHexString(id), false);
+	}// send end
+
+
+	/**
+	 * Handles a FileMessage from the server, called by the thread reading from it.
+	 * @param fm is the FileMessage.
+	 */
+	void handle(FileMessage fm){
+		Upload upload = uploads.get(fm.getId());
+		switch(fm.getType()){
+		case FileMessage.ACCEPT:
+		case FileMessage.ACK:
+			if(upload != null){
+				upload.acked(fm.getPosition());
+			}
+			break;
+		case FileMessage.CANCEL:
+			Download download = downloads.remove(fm.getId());
+			if(download != null){
+				download.close();
+				client.showNotice("RECIEVING " + download.name + " WAS CANCELLED: " + fm.getName());
+			}
+			if(upload != null){
+				upload.cancel(fm.getName());
+			}
+			break;
+		case FileMessage.OFFER:
+			startDownload(fm);
+			break;
+		case FileMessage.CHUNK:
+			recieveChunk(fm);
+			break;
+		default:
+			break;
+		}
+	}// handle end
+
+
+	/**
+	 * Opens the '.part' file of a file offered by the server, creating it if this
+	 * is the first try, and REQUESTs the file from the bytes already in it.
+	 * @param fm is the OFFER.
+	 */
+	private void startDownload(FileMessage fm){
+		Download old = downloads.remove(fm.getId());		//Offered again, the server starts over from the REQUEST
+		if(old != null){
+			old.close();
+		}
+		String name = FileMessage.safeName(fm.getName());
+		long size = fm.getPosition();
+		File part = new File(downloadDir, Long.toHexString(fm.getId()) + PART_SUFFIX);
+		try{
+			if(!downloadDir.isDirectory() && !downloadDir.mkdirs()){
+				throw new IOException("Can't create the download directory " + downloadDir);
+			}
+			FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			long written = Math.min(channel.size(), size);
+			channel.truncate(written);
+			Download download = new Download(fm.getId(), fm.getUser(), name, size, part, channel, written);
+			downloads.put(download.id, download);
+			client.showNotice(fm.getUser() + " SENDS " + name + " (" + size + " BYTES)"
+					+ (written > 0 ? ", CONTINUING FROM BYTE " + written : ""));
+			client.sendFileMessage(new FileMessage(FileMessage.REQUEST, download.id, written));
+			if(written == size){
+				finishDownload(download);
+			}
+		} catch(Exception e){
+			e.printStackTrace();
+			client.showNotice("CAN'T SAVE " + name + " FROM " + fm.getUser());
+		}
+	}// startDownload end
+
+
+	/**
+	 * Writes a chunk of a file being recieved and ACKs it. The server sends the
+	 * chunks in order, a chunk that doesn't follow the last one is dropped.
+	 * A chunk after a gap means the server dropped one from a full queue, the
+	 * file is then REQUESTed again from the missing chunk, once for each gap.
+	 * @param fm is the CHUNK.
+	 */
+	private void recieveChunk(FileMessage fm){
+		Download download = downloads.get(fm.getId());
+		byte[] data = fm.getData();
+		if(download == null || data == null){
+			return;
+		}
+		try{
+			if(fm.getPosition() > download.written && download.requested != download.written){
+				download.requested = download.written;
+				client.sendFileMessage(new FileMessage(FileMessage.REQUEST, download.id, download.written));
+				return;
+			}
+			if(fm.getPosition() != download.written || data.length > download.size - download.written){
+				return;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while(buffer.hasRemaining()){
+				download.channel.write(buffer, download.written + buffer.position());
+			}
+			download.written += data.length;
+			client.sendFileMessage(new FileMessage(FileMessage.ACK, download.id, download.written));
+			if(download.written == download.size){
+				finishDownload(download);
+			}
+		} catch(Exception e){
+			e.printStackTrace();
+			downloads.remove(download.id);
+			download.close();
+			client.showNotice("CAN'T SAVE " + download.name + " FROM " + download.sender);
+		}
+	}// recieveChunk end
+
+
+	/**
+	 * Renames a complete '.part' file to the name it was sent with, with a
+	 * number added if a file with that name is already in the directory.
+	 * @param download is the complete download.
+	 * @throws IOException if the file can't be renamed.
+	 */
+	private void finishDownload(Download download) throws IOException{
+		downloads.remove(download.id);
+		download.channel.close();
+		int dot = download.name.lastIndexOf('.');
+		String base = dot > 0 ? download.name.substring(0, dot) : download.name;
+		String extension = dot > 0 ? download.name.substring(dot) : "";
+		File target = new File(downloadDir, download.name);
+		for(int i = 1; target.exists(); ++i){
+			target = new File(downloadDir, base + " (" + i + ")" + extension);
+		}
+		if(!download.part.renameTo(target)){
+			throw new IOException("Can't rename " + download.part + " to " + target);
+		}
+		client.showNotice("RECIEVED " + download.name + " FROM " + download.sender + ", SAVED AS " + target.getPath());
+	}// finishDownload end
+
+
+	/**
+	 * Stops every upload and closes every download, the '.part' files are kept
+	 * so the files continue when the client connects again.
+	 */
+	void close(){
+		for(Upload upload : uploads.values()){
+			upload.cancel(null);
+		}
+		for(Download download : downloads.values()){
+			download.close();
+		}
+		downloads.clear();
+	}// close end
+
+
+	/**
+	 * Chooses the ID of a transfer from the recipient and the file, so the same
+	 * file sent again to the same recipient resumes the transfer on the server.
+	 * @param recipient is the user the file is sent to.
+	 * @param file is the file.
+	 * @return the ID, never negative since the binary protocol only has positive numbers.
+	 */
+	private long transferId(String recipient, File file){
+		String key = client.getUser() + "\n" + recipient + "\n" + file.getAbsolutePath() + "\n"
+				+ file.length() + "\n" + file.lastModified();
+		try{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			return ByteBuffer.wrap(digest).getLong() & Long.MAX_VALUE;
+		} catch(NoSuchAlgorithmException e){
+			return (key.hashCode() * 31L + System.nanoTime()) & Long.MAX_VALUE;
+		}
+	}// transferId end
+
+
+	/**
+	 * A file being sent to the server. The thread sending it waits on 'changed'
+	 * for the server to ACCEPT it and to ACK the chunks sent.
+	 */
+	private class Upload implements Runnable {
+
+		private final long id;
+		private final String recipient;
+		private final File file;
+		private final long size;
+		private final ReentrantLock lock;
+		private final Condition changed;
+		private long acked;			//-1 until the server ACCEPTs the file, guarded by lock
+		private boolean cancelled;	//guarded by lock
+		private String reason;		//why the server cancelled, guarded by lock
+
+
+		private Upload(long id, String recipient, File file, long size){
+			this.id = id;
+			this.recipient = recipient;
+			this.file = file;
+			this.size = size;
+			this.lock = new ReentrantLock();
+			this.changed = lock.newCondition();
+			this.acked = -1;
+		}// constructor end
+
+
+		/**
+		 * Offers the file, then sends it from the offset the server ACCEPTed.
+		 */
+		@Override
+		public void run(){
+			String name = file.getName();
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+				client.sendFileMessage(new FileMessage(FileMessage.OFFER, id, null, recipient, name, size, null));
+				long sent = awaitWindow(-1);
+				if(sent < 0){
+					return;
+				}
+				client.showNotice("SENDING " + name + " (" + size + " BYTES) TO " + recipient
+						+ (sent > 0 ? ", CONTINUING FROM BYTE " + sent : ""));
+				while(sent < size){
+					if(awaitWindow(sent) < 0){
+						return;
+					}
+					ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FileMessage.CHUNK_SIZE, size - sent));
+					while(buffer.hasRemaining()){
+						if(channel.read(buffer, sent + buffer.position()) < 0){
+							throw new IOException(name + " got shorter while it was sent");
+						}
+					}
+					client.sendFileMessage(new FileMessage(FileMessage.CHUNK, id, null, null, null, sent, buffer.array()));
+					sent += buffer.capacity();
+				}
+				if(awaitWindow(size) >= 0){
+					client.showNotice("SENT " + name + " TO THE SERVER");
+				}
+			} catch(Exception e){
+				e.printStackTrace();
+				client.showNotice("CAN'T SEND " + name);
+			} finally{
+				uploads.remove(id, this);
+			}
+		}// run end
+
+
+		/**
+		 * Waits until the server has ACCEPTed the file and no more than WINDOW
+		 * chunks are unACKed, or until everything is ACKed once the whole file is sent.
+		 * @param sent is the bytes sent, -1 while waiting for the ACCEPT.
+		 * @return the bytes ACKed, -1 if the upload was cancelled or the server didn't answer.
+		 * @throws InterruptedException
+		 */
+		private long awaitWindow(long sent) throws InterruptedException{
+			lock.lock();
+			try{
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ACCEPT_TIMEOUT);
+				while(!cancelled && (acked < 0 || (sent == size ? acked < size
+						: sent - acked >= (long) FileMessage.WINDOW * FileMessage.CHUNK_SIZE))){
+					long left = deadline - System.nanoTime();
+					if(left <= 0){
+						cancelled = true;
+						reason = "THE SERVER DIDN'T ANSWER";
+						break;
+					}
+					changed.awaitNanos(left);
+				}
+				if(cancelled){
+					if(reason != null){
+						client.showNotice("SENDING " + file.getName() + " WAS CANCELLED: " + reason);
+					}
+					return -1;
+				}
+				return acked;
+			} finally{
+				lock.unlock();
+			}
+		}// awaitWindow end
+
+
+		private void acked(long position){
+			lock.lock();
+			try{
+				if(position > acked && position <= size){
+					acked = position;
+					changed.signalAll();
+				}
+			} finally{
+				lock.unlock();
+			}
+		}// acked end
+
+
+		/**
+		 * @param reason is why the server cancelled, null if the client did.
+		 */
+		private void cancel(String reason){
+			lock.lock();
+			try{
+				cancelled = true;
+				this.reason = reason;
+				changed.signalAll();
+			} finally{
+				lock.unlock();
+			}
+		}// cancel end
+
+	}// Upload end
+
+
+	/**
+	 * A file being recieved from the server into its '.part' file.
+	 */
+	private static class Download {
+
+		private final long id;
+		private final String sender;
+		private final String name;
+		private final long size;
+		private final File part;
+		private final FileChannel channel;
+		private long written;
+		private long requested;		//the position the file was last REQUESTed from
+
+
+		private Download(long id, String sender, String name, long size, File part, FileChannel channel, long written){
+			this.id = id;
+			this.sender = sender;
+			this.name = name;
+			this.size = size;
+			this.part = part;
+			this.channel = channel;
+			this.written = written;
+			this.requested = written;
+		}// constructor end
+
+
+		private void close(){
+			try{
+				channel.close();
+			} catch(IOException e){
+				//The part file is kept either way
+			}
+		}// close end
+
+	}// Download end
+
+
+}// FileTransfers end
@@ -0,0 +1,308 @@
+package client;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import message.Histogram;
+import message.KeyPairPool;
+import message.Message;
+
+/**
+ * Puts load on a running server from one JVM. Opens a number of bots, each a
+ * Client without a GUI, waits until they have all exchanged keys and then has
+ * every bot send messages of a chosen size at a chosen rate for a while.
+ *
+ * The time each handshake took, from opening the socket until the keys are
+ * exchanged, and the time from sending a message until each bot recieves it
+ * are counted in Histograms and printed with the throughput when the run ends.
+ * A bot puts the time it should have sent a message in the message, so a bot
+ * that falls behind its rate adds the time it fell behind to the latency
+ * rather than hiding it.
+ *
+ * The arguments are the settings below followed by any ClientConfig settings, for example:
+ * 'LoadGenerator -port 2000 -bots 1000 -rate 0.5 -size 64 -duration 30 -handshake rsa'.
+ *
+ * @author Tomas
+ */
+public class LoadGenerator {
+
+	static final String USAGE = "Usage: LoadGenerator [-host address] [-port n] [-bots n] [-rate messages/s] "
+			+ "[-size bytes] [-duration seconds] [-ramp seconds] [ClientConfig settings]";
+	private static final String TAG = "#";				//Starts the text of a bots message, followed by the time
+	private static final long HANDSHAKE_TIMEOUT_MILLIS = 60000;
+	private static final long DRAIN_MILLIS = 2000;		//Time for the last messages to arrive
+
+	private String host = "127.0.0.1";
+	private int port = 2000;
+	private int bots = 100;
+	private double rate = 1;		//Messages per second from each bot
+	private int size = 64;			//Characters in each message, including the time
+	private int duration = 10;		//Seconds of sending
+	private int ramp = 0;			//Seconds over which the bots connect
+	private ClientConfig config = new ClientConfig();
+
+	private Histogram handshakes;	//Microseconds
+	private Histogram latencies;	//Microseconds
+	private AtomicLong sent;
+	private AtomicLong recieved;
+	private AtomicLong failed;
+	private volatile boolean measuring;
+	private CountDownLatch ready;
+
+
+	public static void main(String[] args){
+		LoadGenerator generator = new LoadGenerator();
+		try{
+			for(int i = 0; i < args.length; i += 2){
+				generator.set(args[i], i + 1 < args.length ? args[i + 1] : null);
+			}
+		} catch(IllegalArgumentException e){
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return;
+		}
+		try{
+			generator.run();
+		} catch(InterruptedException e){
+			e.printStackTrace();
+		}
+	}// main end
+
+
+	/**
+	 * Sets one setting, the ones that aren't the LoadGenerators own are given to the ClientConfig.
+	 * @param name is the name of the setting, with or without a leading '-'.
+	 * @param value is the value to use.
+	 * @throws IllegalArgumentException if the setting is unknown or the value is invalid.
+	 */
+	void set(String name, String value){
+		if(value == null){
+			throw new IllegalArgumentException("Invalid load generator argument: " + name);
+		}
+		try{
+			switch(name.startsWith("-") ? name.substring(1) : name){
+			case "host":
+				host = value;
+				break;
+			case "port":
+				port = Integer.parseInt(value);
+				break;
+			case "bots":
+				bots = Integer.parseInt(value);
+				break;
+			case "rate":
+				rate = Double.parseDouble(value);
+				break;
+			case "size":
+				size = Integer.parseInt(value);
+				break;
+			case "duration":
+				duration = Integer.parseInt(value);
+				break;
+			case "ramp":
+				ramp = Integer.parseInt(value);
+				break;
+			default:
+				config.set(name, value);
+				return;
+			}
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Invalid load generator argument: " + name + " " + value);
+		}
+		if(port < 0 || port > 65535 || bots <= 0 || rate <= 0 || size <= 0 || duration <= 0 || ramp < 0){
+			throw new IllegalArgumentException("Invalid load generator argument: " + name + " " + value);
+		}
+	}// set end
+
+
+	/**
+	 * Connects the bots, lets them send for the duration and prints the results.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	void run() throws InterruptedException{
+		handshakes = new Histogram();
+		latencies = new Histogram();
+		sent = new AtomicLong();
+		recieved = new AtomicLong();
+		failed = new AtomicLong();
+		ready = new CountDownLatch(bots);
+		KeyPairPool keys = new KeyPairPool(Client.KEY_PAIR_ALGO, 1);	//Not started, only used by the RSA handshake
+		List<Bot> started = new ArrayList<Bot>();
+
+		long rampNanos = TimeUnit.SECONDS.toNanos(ramp) / bots;
+		for(int i = 0; i < bots; ++i){
+			Bot bot = new Bot("bot" + i);
+			if(bot.connect(keys)){
+				started.add(bot);
+			}
+			if(rampNanos > 0){
+				TimeUnit.NANOSECONDS.sleep(rampNanos);
+			}
+		}
+		if(!ready.await(HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)){
+			System.out.println("LOAD " + ready.getCount() + " BOTS HAVEN'T EXCHANGED KEYS, SENDING ANYWAY");
+		}
+		int connected = (int) handshakes.getCount();
+		System.out.println("LOAD HANDSHAKE MICROSECONDS: " + handshakes);
+
+		ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+				Runtime.getRuntime().availableProcessors(), runnable -> {
+					Thread thread = new Thread(runnable, "load-sender");
+					thread.setDaemon(true);
+					return thread;
+				});
+		long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		measuring = true;
+		long start = System.nanoTime();
+		for(Bot bot : started){
+			bot.startSending(senders, period);
+		}
+		TimeUnit.SECONDS.sleep(duration);
+		senders.shutdownNow();
+		long sendNanos = System.nanoTime() - start;
+		Thread.sleep(DRAIN_MILLIS);
+		measuring = false;
+
+		double seconds = sendNanos / 1e9;
+		System.out.println("LOAD BOTS: " + bots + ", connected " + connected + ", failed " + failed.get());
+		System.out.println(String.format("LOAD SENT: %d messages, %.1f/s", sent.get(), sent.get() / seconds));
+		System.out.println(String.format("LOAD RECIEVED: %d of %d messages, %.1f/s", recieved.get(),
+				sent.get() * connected, recieved.get() / seconds));
+		System.out.println("LOAD LATENCY MICROSECONDS: " + latencies);
+		for(Bot bot : started){
+			bot.client.disconnectServer();		//The server closes the connection and the bots thread ends
+		}
+		Thread.sleep(DRAIN_MILLIS);
+		for(Bot bot : started){
+			if(bot.client.hasServer){
+				bot.client.closeResources();
+			}
+		}
+	}// run end
+
+
+	/**
+	 * One simulated user, a Client and the ClientListener measuring what it recieves.
+	 */
+	private class Bot implements ClientListener, Runnable {
+
+		private String name;
+		private Client client;
+		private long connectStart;
+		private long nextSend;		//The time the next message should be sent
+		private String padding;
+		private AtomicBoolean handshakeDone;	//connected, failed or disconnected first
+
+
+		Bot(String name){
+			this.name = name;
+			this.handshakeDone = new AtomicBoolean();
+			StringBuilder text = new StringBuilder();
+			while(text.length() < size){
+				text.append('x');
+			}
+			this.padding = text.toString();
+		}
+
+
+		/**
+		 * Opens the socket and starts the client, the keys are exchanged on the clients thread.
+		 * @return true if the client was started.
+		 */
+		boolean connect(KeyPairPool keys){
+			connectStart = System.nanoTime();
+			try{
+				client = new Client(name, this, new Socket(host, port), config, keys);
+				client.start(config.useVirtualThreads());
+				return true;
+			} catch(Exception e){
+				System.out.println("LOAD " + name + " COULDN'T CONNECT: " + e);
+				handshakeFailed();
+				return false;
+			}
+		}// connect end
+
+
+		void startSending(ScheduledExecutorService senders, long period){
+			long offset = ThreadLocalRandom.current().nextLong(period);		//Spreads the bots over the period
+			nextSend = System.nanoTime() + offset;
+			senders.scheduleAtFixedRate(this, offset, period, TimeUnit.NANOSECONDS);
+		}
+
+
+		/**
+		 * Sends one message, stamped with the time it should have been sent.
+		 */
+		@Override
+		public void run(){
+			if(!client.hasServer){
+				return;
+			}
+			String stamp = TAG + nextSend + " ";
+			nextSend += (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			client.sendMessage(stamp + padding.substring(Math.min(stamp.length(), padding.length())));
+			sent.incrementAndGet();
+		}// run end
+
+
+		@Override
+		public void connected(){
+			if(handshakeDone.compareAndSet(false, true)){
+				handshakes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - connectStart));
+				ready.countDown();
+			}
+		}
+
+
+		private void handshakeFailed(){
+			if(handshakeDone.compareAndSet(false, true)){
+				failed.incrementAndGet();
+				ready.countDown();
+			}
+		}
+
+
+		@Override
+		public void messageRecieved(Message m){
+			String text = m.getMessage();
+			if(!measuring || m.getUser() == null || !text.startsWith(TAG)){
+				return;
+			}
+			int space = text.indexOf(' ');
+			try{
+				long sentAt = Long.parseLong(text, TAG.length(), space < 0 ? text.length() : space, 10);
+				latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+				recieved.incrementAndGet();
+			} catch(NumberFormatException e){
+				//Someone else's message
+			}
+		}// messageRecieved end
+
+
+		@Override
+		public void usersChanged(String usernames){
+		}
+
+
+		@Override
+		public void connectionFailed(String reason){
+			System.out.println("LOAD " + name + ": " + reason);
+			handshakeFailed();
+		}
+
+
+		@Override
+		public void disconnected(){
+			handshakeFailed();		//Only counted if it happens before the keys are exchanged
+		}
+
+	}// Bot end
+
+
+}// LoadGenerator end
@@ -0,0 +1,37 @@
+package client;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event for the client handling one frame from the server,
+ * from decoding it until it has been handed to the ClientListener.
+ * The session ID is the session of the user that sent the message on the server,
+ * which the client only knows for relayed messages.
+ *
+ * @author Tomas
+ */
+@Name("securechat.Receive")
+@Label("Receive")
+@Category({"SecureChat", "Client"})
+@Description("The client decrypting, verifying and showing a message")
+@StackTrace(false)
+class ReceiveEvent extends jdk.jfr.Event {
+
+	@Label("Username")
+	@Description("The user of this client")
+	String username;
+
+	@Label("Session ID")
+	@Description("The session of the sender on the server, 0 if not known")
+	int sessionId;
+
+	@Label("Sender")
+	String sender;
+
+	@Label("Frame Type")
+	String frameType;
+
+}// ReceiveEvent end
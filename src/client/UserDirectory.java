@@ -0,0 +1,92 @@
+package client;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.HashMap;
+import javax.crypto.SecretKey;
+import message.DirectoryMessage;
+import message.Verifier;
+
+/**
+ * The keys of the users whose messages the server relays, used in the relay
+ * session mode. Filled in from the DirectoryMessages sent by the server.
+ * Every user gets a Verifier of its own that checks signatures with the users
+ * PublicKey, so a key is only parsed once and not for every message.
+ * Only used by the thread reading from the server.
+ *
+ * @author Tomas
+ */
+class UserDirectory {
+
+	private String keyPairAlgo;
+	private String secretKeyAlgo;
+	private String signatureAlgo;
+	private SecretKey secretKey;
+	private HashMap<Integer, String> users;
+	private HashMap<Integer, Verifier> verifiers;
+
+
+	/**
+	 * Creates an empty directory.
+	 * @param secretKey is the shared Symmetric-/SecretKey relayed messages are sealed with.
+	 * @param keyPairAlgo is the algorithm of the users keys.
+	 * @param secretKeyAlgo is the algorithm used with the SecretKey.
+	 * @param signatureAlgo is the Signature algorithm.
+	 */
+	UserDirectory(SecretKey secretKey, String keyPairAlgo, String secretKeyAlgo, String signatureAlgo){
+		this.secretKey = secretKey;
+		this.keyPairAlgo = keyPairAlgo;
+		this.secretKeyAlgo = secretKeyAlgo;
+		this.signatureAlgo = signatureAlgo;
+		this.users = new HashMap<Integer, String>();
+		this.verifiers = new HashMap<Integer, Verifier>();
+	}// constructor end
+
+
+	/**
+	 * Adds the users that joined and removes the ones that left.
+	 * An entry with a key that can't be read is skipped, messages from
+	 * that user then show up as coming from an unknown user.
+	 * @param dm is the DirectoryMessage sent by the server.
+	 */
+	void update(DirectoryMessage dm){
+		for(DirectoryMessage.Entry entry : dm.getEntries()){
+			if(entry.getKey() == null){
+				users.remove(entry.getId());
+				verifiers.remove(entry.getId());
+				continue;
+			}
+			try{
+				byte[] keyBytes = Base64.getDecoder().decode(entry.getKey());
+				PublicKey key = KeyFactory.getInstance(keyPairAlgo).generatePublic(new X509EncodedKeySpec(keyBytes));
+				users.put(entry.getId(), entry.getUser());
+				verifiers.put(entry.getId(), new Verifier(secretKey, secretKeyAlgo, key, null, signatureAlgo));
+			} catch(NoSuchAlgorithmException | InvalidKeySpecException | IllegalArgumentException e){
+				e.printStackTrace();
+			}
+		}
+	}// update end
+
+
+	/**
+	 * @param id is the session ID of a user.
+	 * @return the users name, null if the user isn't known.
+	 */
+	String getUser(int id){
+		return users.get(id);
+	}// getUser end
+
+
+	/**
+	 * @param id is the session ID of a user.
+	 * @return a Verifier checking signatures with the users key, null if the user isn't known.
+	 */
+	Verifier getVerifier(int id){
+		return verifiers.get(id);
+	}// getVerifier end
+
+
+}// UserDirectory end
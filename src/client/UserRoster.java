@@ -0,0 +1,91 @@
+package client;
+import java.util.LinkedHashMap;
+import message.PresenceMessage;
+
+/**
+ * The users connected to the server, kept up to date with the PresenceMessages
+ * the server sends instead of the whole user list. Users are kept in the order
+ * they joined, the same order as in the servers list.
+ * A change is only applied if its version follows the version of the roster,
+ * anything else means a change was missed and the roster waits for a snapshot.
+ * Only used by the thread reading from the server.
+ *
+ * @author Tomas
+ */
+class UserRoster {
+
+	private LinkedHashMap<Integer, String> users;
+	private long version;
+	private boolean awaitingSnapshot;
+
+
+	/**
+	 * Creates an empty roster, waiting for the snapshot sent when the client joins.
+	 */
+	UserRoster(){
+		this.users = new LinkedHashMap<Integer, String>();
+		this.version = -1;		//No version follows it, a change before the snapshot asks for it again
+		this.awaitingSnapshot = false;
+	}// constructor end
+
+
+	/**
+	 * Applies a snapshot or a change. An old change is ignored, it's already
+	 * part of a snapshot.
+	 * @param pm is the PresenceMessage sent by the server.
+	 * @return false if a change was missed and a snapshot should be requested,
+	 * true otherwise.
+	 */
+	boolean apply(PresenceMessage pm){
+		if(pm.getType() == PresenceMessage.SNAPSHOT){
+			if(pm.getVersion() >= version){
+				users.clear();
+				for(PresenceMessage.Entry entry : pm.getEntries()){
+					users.put(entry.getId(), entry.getUser());
+				}
+				version = pm.getVersion();
+				awaitingSnapshot = false;
+			}
+			return true;
+		}
+		if(pm.getVersion() <= version){
+			return true;
+		}
+		if(pm.getVersion() != version + 1 || awaitingSnapshot){
+			boolean request = !awaitingSnapshot;		//Requested once, the changes until it arrives are ignored
+			awaitingSnapshot = true;
+			return !request;
+		}
+		for(PresenceMessage.Entry entry : pm.getEntries()){
+			if(pm.getType() == PresenceMessage.JOINED){
+				users.put(entry.getId(), entry.getUser());
+			}else if(pm.getType() == PresenceMessage.LEFT){
+				users.remove(entry.getId());
+			}
+		}
+		version = pm.getVersion();
+		return true;
+	}// apply end
+
+
+	/**
+	 * @return the version of the last change applied.
+	 */
+	long getVersion(){
+		return version;
+	}
+
+
+	/**
+	 * @return the users formatted like the UserListMessage, one name on each line.
+	 */
+	String getUsernames(){
+		StringBuilder text = new StringBuilder();
+		for(String user : users.values()){
+			text.append(' ').append(user).append(" \n");
+		}
+		return text.toString();
+	}// getUsernames end
+
+
+}// UserRoster end
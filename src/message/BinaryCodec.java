@@ -0,0 +1,559 @@
+package message;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * The compact binary protocol, used by both Client and Server instead of Java
+ * serialization unless the legacy protocol is chosen.
+ * A binary frame payload starts with the protocol version and a type byte,
+ * followed by the fields of that type. Lengths are written as varints, strings
+ * as UTF-8 and keys, ciphertext and signatures as raw bytes.
+ *
+ * Wire types:
+ * KEY			key type, user, raw key bytes, capabilities
+ * DISCONNECT	no fields, only sent when keys couldn't be exchanged
+ * SEALED		ciphertext of a signed body, see Verifier.createSealedBytes
+ * SESSION		sequence number, AES-GCM ciphertext of a body, see SessionCipher
+ * RELAYED		senders session ID, ciphertext of the senders signed body
+ *
+ * Body types, what is signed and encrypted inside SEALED:
+ * MESSAGE		user, message
+ * USER_LIST	usernames
+ * DISCONNECT	no fields
+ * DIRECTORY	entries of session ID, user and raw key bytes, empty if the user has left
+ * COMPRESSED	size of the body, the body deflated, see BodyCompressor
+ * FILE			type, transfer ID, user, recipient, name, size or offset, chunk data
+ */
+public class BinaryCodec {
+
+	public static final byte VERSION = 1;
+
+	static final byte TYPE_KEY = 1;
+	static final byte TYPE_DISCONNECT = 2;
+	static final byte TYPE_SEALED = 3;
+	static final byte TYPE_SESSION = 4;
+	static final byte TYPE_RELAYED = 5;
+
+	static final byte BODY_MESSAGE = 1;
+	static final byte BODY_USER_LIST = 2;
+	static final byte BODY_DISCONNECT = 3;
+	static final byte BODY_DIRECTORY = 4;
+	static final byte BODY_PRESENCE = 5;
+	static final byte BODY_ROOM = 6;
+	static final byte BODY_PRIVATE = 7;
+	static final byte BODY_COMPRESSED = 8;
+	static final byte BODY_FILE = 9;
+
+
+	/**
+	 * Encodes an object sent in the clear or as ciphertext.
+	 * @param obj is a KeyMessage, DisconnectMessage, SealedBytes, SessionBytes or RelayedBytes.
+	 * @param out is where the payload is written.
+	 * @throws IOException if the type isn't part of the binary protocol.
+	 */
+	static void encode(Object obj, Writer out) throws IOException{
+		out.writeByte(VERSION);
+		if(obj instanceof KeyMessage){
+			KeyMessage km = (KeyMessage) obj;
+			out.writeByte(TYPE_KEY);
+			out.writeByte(km.getKeytype());
+			out.writeString(km.getUser());
+			out.writeBytes(java.util.Base64.getDecoder().decode(km.getKey()));
+			out.writeVarInt(km.getCapabilities());
+		}else if(obj instanceof DisconnectMessage){
+			out.writeByte(TYPE_DISCONNECT);
+		}else if(obj instanceof SealedBytes){
+			out.writeByte(TYPE_SEALED);
+			out.writeBytes(((SealedBytes) obj).getCiphertext());
+		}else if(obj instanceof SessionBytes){
+			SessionBytes sb = (SessionBytes) obj;
+			out.writeByte(TYPE_SESSION);
+			out.writeVarLong(sb.getSequence());
+			out.writeBytes(sb.getCiphertext());
+		}else if(obj instanceof RelayedBytes){
+			RelayedBytes rb = (RelayedBytes) obj;
+			out.writeByte(TYPE_RELAYED);
+			out.writeVarInt(rb.getSender());
+			out.writeBytes(rb.getCiphertext());
+		}else{
+			throw new IOException("Can't encode " + obj.getClass().getName() + " in the binary protocol.");
+		}
+	}// encode end
+
+
+	/**
+	 * Decodes a binary frame payload.
+	 * @return a KeyMessage, DisconnectMessage, SealedBytes, SessionBytes or RelayedBytes.
+	 * @throws IOException if the payload is corrupt or has an unknown version.
+	 */
+	static Object decode(byte[] data, int offset, int length) throws IOException{
+		Reader in = new Reader(data, offset, length);
+		int version = in.readByte();
+		if(version != VERSION){
+			throw new StreamCorruptedException("Unsupported protocol version: " + version);
+		}
+		Object obj;
+		int type = in.readByte();
+		switch(type){
+		case TYPE_KEY:
+			int keyType = in.readByte();
+			String user = in.readString();
+			String key = java.util.Base64.getEncoder().encodeToString(in.readBytes());
+			int capabilities = in.remaining() > 0 ? in.readVarInt() : 0;	//Not sent by the first binary clients
+			try{
+				obj = new KeyMessage(user, key, keyType, capabilities);
+			} catch(IllegalArgumentException e){
+				throw new StreamCorruptedException(e.getMessage());
+			}
+			break;
+		case TYPE_DISCONNECT:
+			obj = new DisconnectMessage();
+			break;
+		case TYPE_SEALED:
+			obj = new SealedBytes(in.readBytes());
+			break;
+		case TYPE_SESSION:
+			long sequence = in.readVarLong();
+			obj = new SessionBytes(sequence, in.readBytes());
+			break;
+		case TYPE_RELAYED:
+			int sender = in.readVarInt();
+			obj = new RelayedBytes(sender, in.readBytes());
+			break;
+		default:
+			throw new StreamCorruptedException("Unknown frame type: " + type);
+		}
+		in.end();
+		return obj;
+	}// decode end
+
+
+	/**
+	 * Encodes what is signed and then encrypted.
+	 * @param m is a Message, PrivateMessage, UserListMessage, DisconnectMessage, DirectoryMessage,
+	 * PresenceMessage, RoomMessage or FileMessage.
+	 * @return the body.
+	 * @throws IOException if the type isn't part of the binary protocol.
+	 */
+	public static byte[] encodeBody(Object m) throws IOException{
+		Writer out = new Writer(64);
+		if(m instanceof PrivateMessage){
+			out.writeByte(BODY_PRIVATE);
+			out.writeString(((PrivateMessage) m).getUser());
+			out.writeString(((PrivateMessage) m).getRecipient());
+			out.writeString(((PrivateMessage) m).getMessage());
+		}else if(m instanceof Message){
+			out.writeByte(BODY_MESSAGE);
+			out.writeString(((Message) m).getUser());
+			out.writeString(((Message) m).getMessage());
+		}else if(m instanceof UserListMessage){
+			out.writeByte(BODY_USER_LIST);
+			out.writeString(((UserListMessage) m).getUsernames());
+		}else if(m instanceof DisconnectMessage){
+			out.writeByte(BODY_DISCONNECT);
+		}else if(m instanceof DirectoryMessage){
+			out.writeByte(BODY_DIRECTORY);
+			java.util.List<DirectoryMessage.Entry> entries = ((DirectoryMessage) m).getEntries();
+			out.writeVarInt(entries.size());
+			for(DirectoryMessage.Entry entry : entries){
+				out.writeVarInt(entry.getId());
+				out.writeString(entry.getUser());
+				String key = entry.getKey();
+				out.writeBytes(key == null ? new byte[0] : java.util.Base64.getDecoder().decode(key));
+			}
+		}else if(m instanceof PresenceMessage){
+			PresenceMessage pm = (PresenceMessage) m;
+			out.writeByte(BODY_PRESENCE);
+			out.writeByte(pm.getType());
+			out.writeVarLong(pm.getVersion());
+			out.writeString(pm.getRoom());
+			out.writeVarInt(pm.getEntries().size());
+			for(PresenceMessage.Entry entry : pm.getEntries()){
+				out.writeVarInt(entry.getId());
+				out.writeString(entry.getUser());
+			}
+		}else if(m instanceof RoomMessage){
+			RoomMessage rm = (RoomMessage) m;
+			out.writeByte(BODY_ROOM);
+			out.writeByte(rm.getType());
+			out.writeString(rm.getRoom());
+			out.writeString(rm.getUser());
+			out.writeString(rm.getMessage());
+		}else if(m instanceof FileMessage){
+			FileMessage fm = (FileMessage) m;
+			byte[] data = fm.getData();
+			out = new Writer(64 + (data == null ? 0 : data.length));
+			out.writeByte(BODY_FILE);
+			out.writeByte(fm.getType());
+			out.writeVarLong(fm.getId());
+			out.writeString(fm.getUser());
+			out.writeString(fm.getRecipient());
+			out.writeString(fm.getName());
+			out.writeVarLong(fm.getPosition());
+			out.writeBytes(data == null ? new byte[0] : data);
+		}else{
+			throw new IOException("Can't encode " + m.getClass().getName() + " in the binary protocol.");
+		}
+		return out.toByteArray();
+	}// encodeBody end
+
+
+	/**
+	 * Decodes a body that has been decrypted and verified.
+	 * @param body is the body.
+	 * @return the Message, PrivateMessage, UserListMessage, DisconnectMessage, DirectoryMessage,
+	 * PresenceMessage, RoomMessage or FileMessage.
+	 * @throws IOException if the body is corrupt.
+	 */
+	public static Object decodeBody(byte[] body) throws IOException{
+		if(body.length > 0 && body[0] == BODY_COMPRESSED){
+			Reader in = new Reader(body, 1, body.length - 1);
+			int size = in.readVarInt();
+			int offset = body.length - in.remaining();
+			body = BodyCompressor.inflate(body, offset, in.remaining(), size);
+			if(body.length > 0 && body[0] == BODY_COMPRESSED){
+				throw new StreamCorruptedException("Compressed body inside a compressed body.");
+			}
+		}
+		Reader in = new Reader(body, 0, body.length);
+		Object m;
+		int type = in.readByte();
+		switch(type){
+		case BODY_MESSAGE:
+			String user = in.readString();
+			m = new Message(user, in.readString());
+			break;
+		case BODY_USER_LIST:
+			m = new UserListMessage(in.readString());
+			break;
+		case BODY_DISCONNECT:
+			m = new DisconnectMessage();
+			break;
+		case BODY_DIRECTORY:
+			DirectoryMessage dm = new DirectoryMessage();
+			int count = in.readVarInt();
+			for(int i = 0; i < count; ++i){
+				int id = in.readVarInt();
+				String name = in.readString();
+				byte[] key = in.readBytes();
+				dm.add(id, name, key.length == 0 ? null : java.util.Base64.getEncoder().encodeToString(key));
+			}
+			m = dm;
+			break;
+		case BODY_PRESENCE:
+			int presenceType = in.readByte();
+			long version = in.readVarLong();
+			PresenceMessage pm;
+			try{
+				pm = new PresenceMessage(presenceType, version, in.readString());
+			} catch(IllegalArgumentException e){
+				throw new StreamCorruptedException(e.getMessage());
+			}
+			int users = in.readVarInt();
+			for(int i = 0; i < users; ++i){
+				int id = in.readVarInt();
+				pm.add(id, in.readString());
+			}
+			m = pm;
+			break;
+		case BODY_PRIVATE:
+			String sender = in.readString();
+			String recipient = in.readString();
+			m = new PrivateMessage(sender, recipient, in.readString());
+			break;
+		case BODY_ROOM:
+			int roomType = in.readByte();
+			String room = in.readString();
+			String poster = in.readString();
+			try{
+				m = new RoomMessage(roomType, room, poster, in.readString());
+			} catch(IllegalArgumentException e){
+				throw new StreamCorruptedException(e.getMessage());
+			}
+			break;
+		case BODY_FILE:
+			int fileType = in.readByte();
+			long id = in.readVarLong();
+			String from = in.readString();
+			String to = in.readString();
+			String name = in.readString();
+			long position = in.readVarLong();
+			byte[] data = in.readBytes();
+			try{
+				m = new FileMessage(fileType, id, from, to, name, position, fileType == FileMessage.CHUNK ? data : null);
+			} catch(IllegalArgumentException e){
+				throw new StreamCorruptedException(e.getMessage());
+			}
+			break;
+		default:
+			throw new StreamCorruptedException("Unknown body type: " + type);
+		}
+		in.end();
+		return m;
+	}// decodeBody end
+
+
+	/**
+	 * Deflates a body into a COMPRESSED body.
+	 * @param body is the encoded body.
+	 * @param deflater is a raw Deflater, reset by the caller afterwards.
+	 * @return the compressed body, null if it isn't smaller than the body.
+	 */
+	static byte[] deflateBody(byte[] body, Deflater deflater){
+		Writer out = new Writer(body.length);
+		out.writeByte(BODY_COMPRESSED);
+		out.writeVarInt(body.length);
+		deflater.setInput(body);
+		deflater.finish();
+		byte[] buf = out.array();
+		int count = out.size();
+		while(!deflater.finished()){
+			if(count == buf.length){
+				return null;	//No smaller
+			}
+			count += deflater.deflate(buf, count, buf.length - count);
+		}
+		return Arrays.copyOf(buf, count);
+	}// deflateBody end
+
+
+	/**
+	 * Joins a body and its signature into the plaintext that is encrypted.
+	 * @param signed is the signed body.
+	 * @return the length of the body, the body and the signature.
+	 */
+	static byte[] joinSigned(SignedBytes signed){
+		byte[] body = signed.getBody();
+		byte[] sig = signed.getSignature();
+		Writer out = new Writer(body.length + sig.length + 5);
+		out.writeBytes(body);
+		out.writeRaw(sig, 0, sig.length);
+		return out.toByteArray();
+	}// joinSigned end
+
+
+	/**
+	 * Splits decrypted plaintext into a body and its signature.
+	 * @param plain is the decrypted plaintext.
+	 * @return the signed body, not yet validated.
+	 * @throws IOException if the plaintext is corrupt.
+	 */
+	static SignedBytes splitSigned(byte[] plain) throws IOException{
+		Reader in = new Reader(plain, 0, plain.length);
+		byte[] body = in.readBytes();
+		return new SignedBytes(body, in.readRest());
+	}// splitSigned end
+
+
+	/**
+	 * A growable byte array with the primitive writes used by the protocol.
+	 */
+	static class Writer {
+
+		private byte[] buf;
+		private int count;
+
+
+		Writer(int size){
+			buf = new byte[size];
+		}
+
+
+		/**
+		 * Leaves room at the start, used for the frame header.
+		 */
+		void skip(int n){
+			ensure(n);
+			count += n;
+		}
+
+
+		void writeByte(int b){
+			ensure(1);
+			buf[count++] = (byte) b;
+		}
+
+
+		void writeVarInt(int value){
+			while((value & ~0x7F) != 0){
+				writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			writeByte(value);
+		}
+
+
+		void writeVarLong(long value){
+			while((value & ~0x7FL) != 0){
+				writeByte((int)(value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+
+		void writeRaw(byte[] b, int off, int len){
+			ensure(len);
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+
+		/**
+		 * Writes a length and then the bytes.
+		 */
+		void writeBytes(byte[] b){
+			writeVarInt(b.length);
+			writeRaw(b, 0, b.length);
+		}
+
+
+		/**
+		 * Writes a String as UTF-8, null is written as length 0 and
+		 * every other length is stored plus one.
+		 */
+		void writeString(String s){
+			if(s == null){
+				writeVarInt(0);
+				return;
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(b.length + 1);
+			writeRaw(b, 0, b.length);
+		}
+
+
+		int size(){
+			return count;
+		}
+
+
+		byte[] array(){
+			return buf;
+		}
+
+
+		byte[] toByteArray(){
+			return count == buf.length ? buf : Arrays.copyOf(buf, count);
+		}
+
+
+		private void ensure(int n){
+			if(count + n > buf.length){
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+			}
+		}
+
+	}// Writer end
+
+
+	/**
+	 * Reads the primitives written by Writer, checking every length against
+	 * what's left so a corrupt frame can't make it read out of bounds.
+	 */
+	static class Reader {
+
+		private byte[] buf;
+		private int pos;
+		private int end;
+
+
+		Reader(byte[] buf, int offset, int length){
+			this.buf = buf;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+
+		int readByte() throws StreamCorruptedException{
+			need(1);
+			return buf[pos++];
+		}
+
+
+		int readVarInt() throws StreamCorruptedException{
+			int value = 0;
+			for(int shift = 0; shift < 35; shift += 7){
+				int b = readByte();
+				value |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0){
+					if(value < 0){
+						break;
+					}
+					return value;
+				}
+			}
+			throw new StreamCorruptedException("Invalid length in frame.");
+		}
+
+
+		long readVarLong() throws StreamCorruptedException{
+			long value = 0;
+			for(int shift = 0; shift < 63; shift += 7){
+				int b = readByte();
+				value |= (long)(b & 0x7F) << shift;
+				if((b & 0x80) == 0){
+					return value;
+				}
+			}
+			throw new StreamCorruptedException("Invalid number in frame.");
+		}
+
+
+		byte[] readBytes() throws StreamCorruptedException{
+			int length = readVarInt();
+			need(length);
+			byte[] b = Arrays.copyOfRange(buf, pos, pos + length);
+			pos += length;
+			return b;
+		}
+
+
+		String readString() throws StreamCorruptedException{
+			int length = readVarInt();
+			if(length == 0){
+				return null;
+			}
+			--length;
+			need(length);
+			String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+
+
+		int remaining(){
+			return end - pos;
+		}
+
+
+		byte[] readRest(){
+			byte[] b = Arrays.copyOfRange(buf, pos, end);
+			pos = end;
+			return b;
+		}
+
+
+		/**
+		 * Checks that the whole payload has been read.
+		 */
+		void end() throws StreamCorruptedException{
+			if(pos != end){
+				throw new StreamCorruptedException((end - pos) + " unexpected bytes at the end of frame.");
+			}
+		}
+
+
+		private void need(int n) throws StreamCorruptedException{
+			if(n < 0 || end - pos < n){
+				throw new StreamCorruptedException("Frame ended too early.");
+			}
+		}
+
+	}// Reader end
+
+
+}
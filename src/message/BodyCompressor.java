@@ -0,0 +1,185 @@
+package message;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses bodies encoded by BinaryCodec before they are signed and encrypted,
+ * once both sides have agreed on KeyMessage.CAP_COMPRESS. Pasted logs and stack
+ * traces shrink 5-10 times, a chat line doesn't, so bodies under the threshold
+ * are sent as they are. So is a body that doesn't get smaller.
+ * A compressed body is a body of its own, BinaryCodec.decodeBody inflates it.
+ * The Deflaters and Inflaters are pooled like the Ciphers of a CryptoPool,
+ * each holds native memory that is only freed by 'end'.
+ * The counters show how much was saved and what it cost.
+ *
+ * @author Tomas
+ */
+public class BodyCompressor {
+
+	public static final int DEFAULT_THRESHOLD = 256;
+	private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	private int threshold;
+	private ConcurrentLinkedQueue<Deflater> deflaters;
+	private LongAdder compressed;
+	private LongAdder skipped;
+	private LongAdder bytesIn;
+	private LongAdder bytesOut;
+	private Histogram nanos;
+
+
+	/**
+	 * @param threshold is the size in bytes a body must have to be compressed.
+	 */
+	public BodyCompressor(int threshold){
+		this.threshold = threshold;
+		this.deflaters = new ConcurrentLinkedQueue<Deflater>();
+		this.compressed = new LongAdder();
+		this.skipped = new LongAdder();
+		this.bytesIn = new LongAdder();
+		this.bytesOut = new LongAdder();
+		this.nanos = new Histogram();
+	}// constructor end
+
+
+	/**
+	 * Compresses a body if it's at least as large as the threshold, may be called from any thread.
+	 * @param body is a body encoded by BinaryCodec.
+	 * @return the compressed body, or the same body if it's too small or didn't get smaller.
+	 */
+	public byte[] compress(byte[] body){
+		if(body.length < threshold){
+			skipped.increment();
+			return body;
+		}
+		long start = System.nanoTime();
+		Deflater deflater = deflaters.poll();
+		if(deflater == null){
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		byte[] packed;
+		try{
+			packed = BinaryCodec.deflateBody(body, deflater);
+		} finally{
+			deflater.reset();
+			deflaters.offer(deflater);
+		}
+		nanos.record(System.nanoTime() - start);
+		if(packed == null){
+			skipped.increment();
+			return body;
+		}
+		compressed.increment();
+		bytesIn.add(body.length);
+		bytesOut.add(packed.length);
+		return packed;
+	}// compress end
+
+
+	/**
+	 * Inflates the deflated part of a compressed body.
+	 * @param data holds the deflated bytes.
+	 * @param offset is where they start.
+	 * @param length is the number of deflated bytes.
+	 * @param size is the size of the body before it was compressed.
+	 * @return the body.
+	 * @throws StreamCorruptedException if the bytes don't inflate to exactly 'size' bytes.
+	 */
+	static byte[] inflate(byte[] data, int offset, int length, int size) throws StreamCorruptedException{
+		if(size > FrameCodec.MAX_FRAME_SIZE){
+			throw new StreamCorruptedException("Compressed body too large: " + size);
+		}
+		Inflater inflater = inflaters.poll();
+		if(inflater == null){
+			inflater = new Inflater(true);
+		}
+		try{
+			inflater.setInput(data, offset, length);
+			byte[] body = new byte[size];
+			int n = 0;
+			while(n < size && !inflater.finished()){
+				int read = inflater.inflate(body, n, size - n);
+				if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+					break;
+				}
+				n += read;
+			}
+			if(n != size || !inflater.finished()){
+				throw new StreamCorruptedException("Compressed body doesn't match its size.");
+			}
+			return body;
+		} catch(DataFormatException e){
+			throw new StreamCorruptedException("Corrupt compressed body: " + e.getMessage());
+		} finally{
+			inflater.reset();
+			inflaters.offer(inflater);
+		}
+	}// inflate end
+
+
+	public int getThreshold(){
+		return threshold;
+	}
+
+
+	/**
+	 * @return the number of bodies sent compressed.
+	 */
+	public long getCompressed(){
+		return compressed.sum();
+	}
+
+
+	/**
+	 * @return the number of bodies sent as they were, too small or not smaller compressed.
+	 */
+	public long getSkipped(){
+		return skipped.sum();
+	}
+
+
+	/**
+	 * @return the bytes of the compressed bodies before they were compressed.
+	 */
+	public long getBytesIn(){
+		return bytesIn.sum();
+	}
+
+
+	/**
+	 * @return the bytes of the compressed bodies.
+	 */
+	public long getBytesOut(){
+		return bytesOut.sum();
+	}
+
+
+	/**
+	 * @return the original size of the compressed bodies divided by their compressed size, 1 if none.
+	 */
+	public double getRatio(){
+		long out = bytesOut.sum();
+		return out == 0 ? 1 : (double) bytesIn.sum() / out;
+	}
+
+
+	/**
+	 * @return the time spent compressing each body that was at least as large as the threshold.
+	 */
+	public Histogram getNanos(){
+		return nanos;
+	}
+
+
+	@Override
+	public String toString(){
+		return String.format("%d compressed, %d skipped, %d to %d bytes (%.1fx), nanoseconds: %s",
+				getCompressed(), getSkipped(), getBytesIn(), getBytesOut(), getRatio(), nanos.snapshot());
+	}// toString end
+
+
+}// BodyCompressor end
@@ -0,0 +1,140 @@
+package message;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * A pool of Cipher or Signature instances that are already initialized for one
+ * key and one mode. Cipher and Signature aren't thread safe, so a thread takes
+ * an instance with 'acquire', uses it and gives it back with 'release'.
+ * Since the instances stay initialized the key schedule isn't redone for every
+ * message, a Cipher or Signature returns to its initialized state after doFinal,
+ * sign or verify.
+ * The pool grows to the number of threads using it at the same time, which works
+ * for virtual threads as well where a ThreadLocal would create one per message.
+ *
+ * @param <T> is Cipher or Signature.
+ */
+public class CryptoPool<T> {
+
+	/**
+	 * Creates a new initialized instance for the pool.
+	 */
+	interface Factory<T> {
+		T create() throws InvalidKeyException;
+	}
+
+	private ConcurrentLinkedQueue<T> idle;
+	private Factory<T> factory;
+	private AtomicInteger created;
+
+
+	private CryptoPool(Factory<T> factory){
+		this.idle = new ConcurrentLinkedQueue<T>();
+		this.factory = factory;
+		this.created = new AtomicInteger();
+	}// constructor end
+
+
+	/**
+	 * Creates a pool of Ciphers initialized with a secret key.
+	 * @param algorithm is the Cipher algorithm, for example "AES".
+	 * @param mode is Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+	 * @param key is the key to initialize with.
+	 * @return an empty pool.
+	 */
+	public static CryptoPool<Cipher> ciphers(String algorithm, int mode, SecretKey key){
+		return new CryptoPool<Cipher>(() -> {
+			Cipher cipher;
+			try{
+				cipher = Cipher.getInstance(algorithm);
+			} catch(NoSuchAlgorithmException | NoSuchPaddingException e){
+				throw new IllegalStateException(e);		//Checked when the keys were exchanged
+			}
+			cipher.init(mode, key);
+			return cipher;
+		});
+	}// ciphers end
+
+
+	/**
+	 * Creates a pool of Signatures initialized for signing.
+	 * @param algorithm is the Signature algorithm, for example "SHA1withRSA".
+	 * @param key is the key to sign with.
+	 * @return an empty pool.
+	 */
+	public static CryptoPool<Signature> signers(String algorithm, PrivateKey key){
+		return new CryptoPool<Signature>(() -> {
+			Signature signature = newSignature(algorithm);
+			signature.initSign(key);
+			return signature;
+		});
+	}// signers end
+
+
+	/**
+	 * Creates a pool of Signatures initialized for verifying.
+	 * @param algorithm is the Signature algorithm, for example "SHA1withRSA".
+	 * @param key is the key to verify with.
+	 * @return an empty pool.
+	 */
+	public static CryptoPool<Signature> verifiers(String algorithm, PublicKey key){
+		return new CryptoPool<Signature>(() -> {
+			Signature signature = newSignature(algorithm);
+			signature.initVerify(key);
+			return signature;
+		});
+	}// verifiers end
+
+
+	private static Signature newSignature(String algorithm){
+		try{
+			return Signature.getInstance(algorithm);
+		} catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);		//Checked when the keys were exchanged
+		}
+	}// newSignature end
+
+
+	/**
+	 * Takes an idle instance, or creates one if all are in use.
+	 * @return an initialized instance that only the caller uses until it's released.
+	 * @throws InvalidKeyException if the pools key can't be used.
+	 */
+	public T acquire() throws InvalidKeyException{
+		T instance = idle.poll();
+		if(instance == null){
+			instance = factory.create();
+			created.incrementAndGet();
+		}
+		return instance;
+	}// acquire end
+
+
+	/**
+	 * Gives an instance back to the pool. An instance that threw an exception
+	 * in the middle of an operation shouldn't be released, it may not be reset.
+	 * @param instance is the instance taken with 'acquire'.
+	 */
+	public void release(T instance){
+		idle.offer(instance);
+	}// release end
+
+
+	/**
+	 * @return the number of instances the pool has created, the most that
+	 * have been in use at the same time.
+	 */
+	public int created(){
+		return created.get();
+	}
+
+
+}// CryptoPool end
@@ -0,0 +1,67 @@
+package message;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sent by Server to the clients that use the relay session mode, see
+ * KeyMessage.CAP_RELAY. Lists the session ID, username and PublicKey of the
+ * users whose signed messages are relayed, so that clients can verify them
+ * without the server signing them again.
+ * An entry without a key tells the clients that the user has left.
+ * Sent signed and sealed like every other message from the server.
+ */
+public class DirectoryMessage implements Serializable{
+
+	private static final long serialVersionUID = 2271645538153208711L;
+	private List<Entry> entries;
+
+	public DirectoryMessage(){
+		this.entries = new ArrayList<Entry>();
+	}
+	
+	/**
+	 * Adds an entry.
+	 * @param id is the session ID the server attests relayed messages with.
+	 * @param user is the users name.
+	 * @param key is a base64 representation of the users PublicKey, null if the user has left.
+	 */
+	public void add(int id, String user, String key){
+		entries.add(new Entry(id, user, key));
+	}
+	
+	public List<Entry> getEntries(){
+		return entries;
+	}
+	
+	
+	/**
+	 * One user in the directory.
+	 */
+	public static class Entry implements Serializable{
+		
+		private static final long serialVersionUID = -3185392468013418872L;
+		private int id;
+		private String user;
+		private String key;
+		
+		Entry(int id, String user, String key){
+			this.id = id;
+			this.user = user;
+			this.key = key;
+		}
+		
+		public int getId(){
+			return id;
+		}
+		
+		public String getUser(){
+			return user;
+		}
+		
+		public String getKey(){
+			return key;
+		}
+	}// Entry end
+	
+}
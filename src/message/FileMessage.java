@@ -0,0 +1,122 @@
+package message;
+import java.io.Serializable;
+
+/**
+ * Used to send a file to a user, or to everyone, in chunks. Static final ints
+ * are used to indicate what the message is, the same way as in RoomMessage.
+ *
+ * The sender OFFERs the file to the server with its size and is ACCEPTed with
+ * the offset to send from, which is where an earlier try stopped. It then sends
+ * CHUNKs of at most CHUNK_SIZE bytes, and the server ACKs each one with the bytes
+ * it has so far. No more than WINDOW chunks are sent ahead of the last ACK.
+ * When the whole file is on the server it OFFERs it to the recipients, which
+ * REQUEST it from the bytes they already have. The server then sends the CHUNKs
+ * and the recipient ACKs them, the same way. Either side may CANCEL a transfer,
+ * the name is then the reason.
+ * The ID of a transfer is chosen by the sender from the file, so a file sent
+ * again after a disconnect resumes the same transfer. IDs and positions are
+ * never negative.
+ */
+public class FileMessage implements Serializable{
+
+	private static final long serialVersionUID = 6217410523977512031L;
+	public static final int OFFER = 1;
+	public static final int ACCEPT = 2;
+	public static final int CHUNK = 3;
+	public static final int ACK = 4;
+	public static final int REQUEST = 5;
+	public static final int CANCEL = 6;
+	public static final String EVERYONE = "*";		//The recipient of a file sent to everyone
+	public static final int CHUNK_SIZE = 32 * 1024;
+	public static final int WINDOW = 8;				//Chunks sent ahead of the last ACK
+	private static final String invalidTypeMessage = "Invalid file message type argument. Use static variables to define type.";
+	private int type;
+	private long id;
+	private String user;
+	private String recipient;
+	private String name;
+	private long position;
+	private byte[] data;
+
+	/**
+	 * Constructs a FileMessage.
+	 * @param type is OFFER, ACCEPT, CHUNK, ACK, REQUEST or CANCEL.
+	 * @param id is the ID of the transfer.
+	 * @param user is the name of the user sending the file, set by the server.
+	 * @param recipient is the user the file is sent to or EVERYONE, only used by an OFFER.
+	 * @param name is the name of the file, or the reason of a CANCEL.
+	 * @param position is the size of the file for an OFFER, otherwise an offset in the file.
+	 * @param data is the content of a CHUNK, null for the other types.
+	 */
+	public FileMessage(int type, long id, String user, String recipient, String name, long position, byte[] data){
+		if(type < OFFER || type > CANCEL){
+			throw new IllegalArgumentException(invalidTypeMessage);
+		}
+		this.type = type;
+		this.id = id;
+		this.user = user;
+		this.recipient = recipient;
+		this.name = name;
+		this.position = position;
+		this.data = data;
+	}
+
+	/**
+	 * Constructs an ACCEPT, ACK or REQUEST.
+	 * @param type is ACCEPT, ACK or REQUEST.
+	 * @param id is the ID of the transfer.
+	 * @param position is the offset in the file.
+	 */
+	public FileMessage(int type, long id, long position){
+		this(type, id, null, null, null, position, null);
+	}
+
+	public int getType(){
+		return type;
+	}
+
+	public long getId(){
+		return id;
+	}
+
+	public String getUser(){
+		return user;
+	}
+
+	public String getRecipient(){
+		return recipient;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public long getPosition(){
+		return position;
+	}
+
+	public byte[] getData(){
+		return data;
+	}
+
+	/**
+	 * Keeps only the last part of a path, so a name from the other side can't
+	 * point outside the directory it's saved in.
+	 * @param name is the name given by the sender.
+	 * @return a file name without directories, "file" if nothing is left.
+	 */
+	public static String safeName(String name){
+		if(name == null){
+			return "file";
+		}
+		String safe = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).trim();
+		if(safe.length() > 200){
+			safe = safe.substring(safe.length() - 200);
+		}
+		if(safe.isEmpty() || safe.equals(".") || safe.equals("..")){
+			return "file";
+		}
+		return safe;
+	}
+
+}
@@ -0,0 +1,84 @@
+package message;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded frame, ready to be written to one or many sockets.
+ * The object is serialized once when the Frame is created and the bytes are
+ * never changed after that. A broadcast can therefore hand the same Frame to
+ * every recipient, the cost of encoding a message doesn't grow with the number
+ * of users in the chat.
+ */
+public final class Frame {
+
+	private final byte[] bytes;
+
+
+	private Frame(byte[] bytes){
+		this.bytes = bytes;
+	}
+
+
+	/**
+	 * Encodes an object into a Frame.
+	 * @param obj is the object to encode.
+	 * @param protocol is FrameCodec.PROTOCOL_BINARY or PROTOCOL_SERIALIZED.
+	 * @return the Frame.
+	 * @throws IOException if the object can't be encoded.
+	 */
+	public static Frame of(Object obj, int protocol) throws IOException{
+		return new Frame(FrameCodec.encode(obj, protocol));
+	}// of end
+
+
+	/**
+	 * Joins frames into one, written to the socket with a single write.
+	 * The client reads them one by one as if they were sent apart.
+	 * @param frames are the frames in the order they are read.
+	 * @return a Frame holding all of them.
+	 */
+	public static Frame concat(Frame[] frames){
+		int size = 0;
+		for(Frame frame : frames){
+			size += frame.bytes.length;
+		}
+		byte[] bytes = new byte[size];
+		int position = 0;
+		for(Frame frame : frames){
+			System.arraycopy(frame.bytes, 0, bytes, position, frame.bytes.length);
+			position += frame.bytes.length;
+		}
+		return new Frame(bytes);
+	}// concat end
+
+
+	/**
+	 * Gives a recipient its own read only view of the bytes. The views share
+	 * the bytes but each has its own position, nothing is copied.
+	 * @return a buffer positioned at the start of the frame.
+	 */
+	public ByteBuffer buffer(){
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}// buffer end
+
+
+	/**
+	 * Writes the whole frame to a stream.
+	 * @param out is the stream to write to.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException{
+		out.write(bytes);
+	}// writeTo end
+
+
+	/**
+	 * @return the size of the frame in bytes, header included.
+	 */
+	public int size(){
+		return bytes.length;
+	}// size end
+
+
+}
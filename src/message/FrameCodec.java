@@ -0,0 +1,170 @@
+package message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Used by both Client and Server to put objects on the wire.
+ * Every object is encoded on its own and sent as a frame: a four byte
+ * length followed by the payload. Since the length is known up front
+ * the receiver can tell where a message ends without parking a thread in
+ * ObjectInputStream.readObject(), which is what the non-blocking server engine needs.
+ * 
+ * Static final ints are used to indicate the protocol of the payload. The binary
+ * protocol is the default, PROTOCOL_SERIALIZED is the legacy Java serialization.
+ * A serialized payload always starts with the serialization magic 0xACED, which
+ * no binary payload does, so a frame can always be decoded whatever the
+ * protocol of the sender.
+ */
+public class FrameCodec {
+
+	public static final int HEADER_SIZE = 4;
+	public static final int MAX_FRAME_SIZE = 1024 * 1024;
+	public static final int PROTOCOL_BINARY = 0;
+	public static final int PROTOCOL_SERIALIZED = 1;
+	public static final int PROTOCOLS = 2;
+	private static final byte SERIALIZATION_MAGIC = (byte) 0xAC;
+
+
+	/**
+	 * Serializes an object into a complete frame, header included,
+	 * using the legacy protocol.
+	 * @param obj is the object to encode.
+	 * @return the frame, ready to be written to a socket.
+	 * @throws IOException if the object can't be serialized.
+	 */
+	public static byte[] encode(Object obj) throws IOException{
+		return encode(obj, PROTOCOL_SERIALIZED);
+	}// encode end
+
+
+	/**
+	 * Encodes an object into a complete frame, header included.
+	 * @param obj is the object to encode.
+	 * @param protocol is PROTOCOL_BINARY or PROTOCOL_SERIALIZED.
+	 * @return the frame, ready to be written to a socket.
+	 * @throws IOException if the object can't be encoded.
+	 */
+	public static byte[] encode(Object obj, int protocol) throws IOException{
+		byte[] frame;
+		if(protocol == PROTOCOL_BINARY){
+			BinaryCodec.Writer out = new BinaryCodec.Writer(128);
+			out.skip(HEADER_SIZE);			//Placeholder for the length
+			BinaryCodec.encode(obj, out);
+			frame = out.toByteArray();
+		}else{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			for(int i = 0; i < HEADER_SIZE; ++i){
+				bytes.write(0);				//Placeholder for the length
+			}
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(obj);
+			out.close();
+			frame = bytes.toByteArray();
+		}
+		int length = frame.length - HEADER_SIZE;
+		if(length > MAX_FRAME_SIZE){
+			throw new IOException("Frame of " + length + " bytes exceeds the maximum frame size.");
+		}
+		frame[0] = (byte)(length >>> 24);
+		frame[1] = (byte)(length >>> 16);
+		frame[2] = (byte)(length >>> 8);
+		frame[3] = (byte)length;
+		return frame;
+	}// encode end
+
+
+	/**
+	 * Tells which protocol a payload was encoded with.
+	 * @param data is the array holding the payload.
+	 * @param offset is where the payload starts, after the header.
+	 * @return PROTOCOL_BINARY or PROTOCOL_SERIALIZED.
+	 */
+	public static int protocolOf(byte[] data, int offset){
+		return data[offset] == SERIALIZATION_MAGIC ? PROTOCOL_SERIALIZED : PROTOCOL_BINARY;
+	}// protocolOf end
+
+
+	/**
+	 * Decodes the payload of a frame, whichever protocol it was encoded with.
+	 * @param data is the array holding the payload.
+	 * @param offset is where the payload starts, after the header.
+	 * @param length is the payload length given by the header.
+	 * @return the decoded object.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Object decode(byte[] data, int offset, int length)
+			throws IOException, ClassNotFoundException{
+		if(length == 0){
+			throw new StreamCorruptedException("Empty frame.");
+		}
+		if(protocolOf(data, offset) == PROTOCOL_BINARY){
+			return BinaryCodec.decode(data, offset, length);
+		}
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		return in.readObject();
+	}// decode end
+
+
+	/**
+	 * Checks a length read from a frame header.
+	 * @param length is the payload length.
+	 * @throws StreamCorruptedException if the length can't belong to a valid frame.
+	 */
+	public static void checkLength(int length) throws StreamCorruptedException{
+		if(length < 0 || length > MAX_FRAME_SIZE){
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		}
+	}// checkLength end
+
+
+	/**
+	 * Encodes an object and writes it as one frame, then flushes the stream.
+	 * @param out is the stream to write to.
+	 * @param obj is the object to send.
+	 * @param protocol is PROTOCOL_BINARY or PROTOCOL_SERIALIZED.
+	 * @throws IOException
+	 */
+	public static void writeFrame(OutputStream out, Object obj, int protocol) throws IOException{
+		out.write(encode(obj, protocol));
+		out.flush();
+	}// writeFrame end
+
+
+	/**
+	 * Blocks until a whole frame has been read and returns its payload.
+	 * @param in is the stream to read from.
+	 * @return the payload, to be given to decode.
+	 * @throws java.io.EOFException if the other side has closed the connection.
+	 * @throws IOException
+	 */
+	public static byte[] readPayload(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		checkLength(length);
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}// readPayload end
+
+
+	/**
+	 * Blocks until a whole frame has been read and returns the decoded object.
+	 * @param in is the stream to read from.
+	 * @return the decoded object.
+	 * @throws java.io.EOFException if the other side has closed the connection.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Object readFrame(DataInputStream in) throws IOException, ClassNotFoundException{
+		byte[] payload = readPayload(in);
+		return decode(payload, 0, payload.length);
+	}// readFrame end
+
+
+}
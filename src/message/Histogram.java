@@ -0,0 +1,229 @@
+package message;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts values, like latencies in microseconds, in buckets so percentiles can
+ * be read while any number of threads keep recording, without a lock.
+ * Values under 16 have a bucket each, larger values share a bucket with the
+ * values that have the same highest 5 bits, so a percentile is at most about
+ * 6% over the value it stands for. The buckets take the same memory however
+ * many values are recorded.
+ * Recording is one increment of a bucket and of the sum, and a compare of the
+ * largest value, reading does the counting.
+ *
+ * @author Tomas
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;			//16 buckets for each power of two
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+	private LongAdder sum;
+	private AtomicLong max;
+
+
+	public Histogram(){
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}// constructor end
+
+
+	/**
+	 * Records a value, may be called from any thread.
+	 * @param value is the value, negative values are recorded as 0.
+	 */
+	public void record(long value){
+		if(value < 0){
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		sum.add(value);
+		if(value > max.get()){
+			max.accumulateAndGet(value, Math::max);
+		}
+	}// record end
+
+
+	/**
+	 * @return the number of values recorded.
+	 */
+	public long getCount(){
+		long count = 0;
+		for(int i = 0; i < BUCKETS; ++i){
+			count += counts.get(i);
+		}
+		return count;
+	}// getCount end
+
+
+	/**
+	 * @return the largest value recorded, 0 if none are.
+	 */
+	public long getMax(){
+		return max.get();
+	}
+
+
+	/**
+	 * Reads a percentile from the buckets.
+	 * @param percentile is between 0 and 100, 99 for the 99th percentile.
+	 * @return the highest value in the bucket holding the percentile, never more
+	 * than the largest value recorded, 0 if no values are recorded.
+	 */
+	public long getPercentile(double percentile){
+		return snapshot().getPercentile(percentile);
+	}
+
+
+	/**
+	 * Copies the counts, so several percentiles are read from the same values.
+	 * Values recorded while it's copied may or may not be counted.
+	 * @return the copy.
+	 */
+	public Snapshot snapshot(){
+		return new Snapshot(this);
+	}
+
+
+	/**
+	 * Forgets every value recorded. Values recorded at the same time may be partly kept.
+	 */
+	public void reset(){
+		for(int i = 0; i < BUCKETS; ++i){
+			counts.set(i, 0);
+		}
+		sum.reset();
+		max.set(0);
+	}// reset end
+
+
+	/**
+	 * @param value is a value that isn't negative.
+	 * @return the index of the bucket the value is counted in.
+	 */
+	static int bucket(long value){
+		if(value < SUB_BUCKETS){
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);		//At least SUB_BITS
+		int top = (int) (value >>> (exponent - SUB_BITS));			//Between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+	}// bucket end
+
+
+	/**
+	 * @param bucket is the index of a bucket.
+	 * @return the highest value counted in the bucket.
+	 */
+	static long highestValue(int bucket){
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}// highestValue end
+
+
+	/**
+	 * @return the count, mean, 50th, 90th, 99th and 99.9th percentile and the largest value.
+	 */
+	@Override
+	public String toString(){
+		return snapshot().toString();
+	}
+
+
+	/**
+	 * The values of a Histogram at one moment. The getters make it an open type,
+	 * so it's shown as composite data by JMX.
+	 */
+	public static class Snapshot {
+
+		private long[] counts;
+		private long count;
+		private long sum;
+		private long max;
+
+
+		private Snapshot(Histogram histogram){
+			this.counts = new long[BUCKETS];
+			for(int i = 0; i < BUCKETS; ++i){
+				counts[i] = histogram.counts.get(i);
+				count += counts[i];
+			}
+			this.sum = histogram.sum.sum();
+			this.max = histogram.max.get();
+		}// constructor end
+
+
+		public long getCount(){
+			return count;
+		}
+
+
+		public double getMean(){
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+
+		public long getMax(){
+			return max;
+		}
+
+
+		public long getP50(){
+			return getPercentile(50);
+		}
+
+
+		public long getP90(){
+			return getPercentile(90);
+		}
+
+
+		public long getP99(){
+			return getPercentile(99);
+		}
+
+
+		public long getP999(){
+			return getPercentile(99.9);
+		}
+
+
+		/**
+		 * @param percentile is between 0 and 100.
+		 * @return the highest value in the bucket holding the percentile, at most the largest value.
+		 */
+		long getPercentile(double percentile){
+			if(count == 0){
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; ++i){
+				seen += counts[i];
+				if(seen >= rank){
+					return Math.min(highestValue(i), max);
+				}
+			}
+			return max;
+		}// getPercentile end
+
+
+		@Override
+		public String toString(){
+			return String.format("n %d, mean %.1f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d", count, getMean(),
+					getP50(), getP90(), getP99(), getP999(), max);
+		}// toString end
+
+	}// Snapshot end
+
+
+}// Histogram end
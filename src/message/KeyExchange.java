@@ -0,0 +1,91 @@
+package message;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Used by both Client and Server when the ECDH handshake has been negotiated,
+ * see KeyMessage.CAP_ECDH. Each side generates an ephemeral X25519 key pair for
+ * the connection and sends the public key in an AGREEMENT_KEY KeyMessage.
+ * Both then agree on the same secret and derive the connections AES key from it,
+ * so no RSA key pair has to be generated and no key is encrypted with RSA.
+ *
+ * The key is the SHA-256 hash of the secret and both public keys, the clients first,
+ * cut to the length of a SessionCipher key. The key pair is thrown away with the
+ * KeyExchange, a later connection can't be decrypted with it.
+ */
+public class KeyExchange {
+
+	public static final String ALGO = "X25519";
+	private static final String DIGEST_ALGO = "SHA-256";
+	private static final String KEY_ALGO = "AES";
+	private static final int KEY_BYTES = 16;
+
+	private KeyPair keyPair;
+	private boolean client;
+
+
+	/**
+	 * Generates the ephemeral key pair for one connection.
+	 * @param client is true on the client side and false on the server side.
+	 * @throws NoSuchAlgorithmException if X25519 isn't available.
+	 */
+	public KeyExchange(boolean client) throws NoSuchAlgorithmException{
+		this.keyPair = KeyPairGenerator.getInstance(ALGO).generateKeyPair();
+		this.client = client;
+	}// constructor end
+
+
+	/**
+	 * @return the public key to send to the other side, base64 encoded like the
+	 * keys in every other KeyMessage.
+	 */
+	public String getPublicKey(){
+		return Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+	}// getPublicKey end
+
+
+	/**
+	 * Agrees on the secret with the other sides public key and derives the connections key.
+	 * @param peerKey is the base64 encoded public key the other side sent.
+	 * @return the key to create the SessionCipher with.
+	 * @throws InvalidKeyException if the other sides key isn't a valid X25519 key.
+	 * @throws NoSuchAlgorithmException
+	 */
+	public SecretKey agree(String peerKey) throws InvalidKeyException, NoSuchAlgorithmException{
+		byte[] peerBytes;
+		PublicKey peer;
+		try{
+			peerBytes = Base64.getDecoder().decode(peerKey);
+			peer = KeyFactory.getInstance(ALGO).generatePublic(new X509EncodedKeySpec(peerBytes));
+		} catch(IllegalArgumentException | InvalidKeySpecException e){
+			throw new InvalidKeyException(e);
+		}
+		KeyAgreement agreement = KeyAgreement.getInstance(ALGO);
+		agreement.init(keyPair.getPrivate());
+		agreement.doPhase(peer, true);		//Throws if the peer sent a point of small order
+		byte[] secret = agreement.generateSecret();
+
+		byte[] ownBytes = keyPair.getPublic().getEncoded();
+		MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGO);
+		digest.update(secret);
+		digest.update(client ? ownBytes : peerBytes);
+		digest.update(client ? peerBytes : ownBytes);
+		byte[] keyBytes = Arrays.copyOf(digest.digest(), KEY_BYTES);
+		Arrays.fill(secret, (byte)0);
+		return new SecretKeySpec(keyBytes, KEY_ALGO);
+	}// agree end
+
+
+}// KeyExchange end
@@ -6,6 +6,12 @@ import java.io.Serializable;
  * Static final ints are used to indicate what kind of key it is.
  * These public static ints should be used when creating the
  * KeyMessage.
+ * The capabilities are flags used to negotiate optional features. The client
+ * offers them with its public key and the server answers with the ones it
+ * accepts together with the Symmetric-/SecretKey.
+ * A server that offers CAP_ECDH with its PublicKey can instead be answered
+ * with an AGREEMENT_KEY, an ephemeral key used by KeyExchange, and then answers
+ * with an AGREEMENT_KEY of its own. No SECRET_KEY is sent in that case.
  *
  */
 public class KeyMessage implements Serializable{
@@ -13,8 +19,18 @@ public class KeyMessage implements Serializable{
 	private static final long serialVersionUID = 494833997187472293L;
 	public static final int SECRET_KEY = 1;	 
 	public static final int PUBLIC_KEY = 2;
+	public static final int AGREEMENT_KEY = 3;
+	public static final int CAP_AEAD = 1;		//Session messages use AES-GCM instead of RSA signatures
+	public static final int CAP_RELAY = 2;		//Signed messages are relayed, not signed again by the server
+	public static final int CAP_ECDH = 4;		//The AEAD key is agreed with X25519 instead of sent with RSA
+	public static final int CAP_PRESENCE = 8;	//The user list is sent as PresenceMessages instead of UserListMessages
+	public static final int CAP_ROOMS = 16;		//RoomMessages may be sent, needs CAP_PRESENCE
+	public static final int CAP_PRIVATE = 32;	//PrivateMessages may be sent and recieved
+	public static final int CAP_COMPRESS = 64;	//Large bodies may be compressed, see BodyCompressor
+	public static final int CAP_FILES = 128;	//Files may be sent and recieved as FileMessages
 	private String user, key;
 	private int keyType;
+	private int capabilities;
 	private String invalidTypeMessage = "Invalid key type argument. Use static variables to define type.";
 	 
 	/**
@@ -25,12 +41,24 @@ public class KeyMessage implements Serializable{
 	 * @param type determines what type of Key that is being sent.
 	 */
 	public KeyMessage(String user, String key, int type){
+		this(user, key, type, 0);
+	}
+	
+	/**
+	 * Constructs a KeyMessage offering or accepting capabilities.
+	 * @param user is the username of the client. This is not used by the Server.
+	 * @param key is a base64 representation of a keys byte array.
+	 * @param type determines what type of Key that is being sent.
+	 * @param capabilities are the CAP_ flags, combined with '|'.
+	 */
+	public KeyMessage(String user, String key, int type, int capabilities){
 		this.user = user;
 		this.key = key;
 		if(!validKeytype(type)){
 			throw new IllegalArgumentException(invalidTypeMessage);
 		}
 		this.keyType = type;
+		this.capabilities = capabilities;
 	}
 	
 	/**
@@ -51,8 +79,21 @@ public class KeyMessage implements Serializable{
 		return keyType;
 	}
 	
+	/**
+	 * A KeyMessage from an older peer has no capabilities.
+	 * @param capability is one of the CAP_ flags.
+	 * @return true if the flag is set.
+	 */
+	public boolean hasCapability(int capability){
+		return (capabilities & capability) != 0;
+	}
+	
+	public int getCapabilities(){
+		return capabilities;
+	}
+	
 	private boolean validKeytype(int type){
-		if(type == SECRET_KEY || type == PUBLIC_KEY){
+		if(type == SECRET_KEY || type == PUBLIC_KEY || type == AGREEMENT_KEY){
 			return true;
 		}
 		return false;
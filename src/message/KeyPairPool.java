@@ -0,0 +1,133 @@
+package message;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Used by both Client and Server to get key pairs without waiting for them.
+ * Generating an RSA key pair takes hundreds of milliseconds, so a background
+ * thread generates them ahead of time into a bounded pool and 'take' usually
+ * returns at once. If the pool is empty the key pair is generated by the caller.
+ * Keeps count of how many takes that found a key pair waiting (hits) and how
+ * many that had to generate one (misses).
+ */
+public class KeyPairPool {
+
+	private String algorithm;
+	private ArrayBlockingQueue<KeyPair> pool;
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private volatile Thread filler;
+
+
+	/**
+	 * Creates an empty pool, 'start' begins filling it.
+	 * @param algorithm is the key pair algorithm, for example "RSA".
+	 * @param capacity is the number of key pairs kept ready.
+	 */
+	public KeyPairPool(String algorithm, int capacity){
+		this.algorithm = algorithm;
+		this.pool = new ArrayBlockingQueue<KeyPair>(capacity);
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}// constructor end
+
+
+	/**
+	 * Starts the background thread. It's a daemon thread with low priority,
+	 * it never keeps the application running or competes with the GUI.
+	 * @return this pool.
+	 */
+	public KeyPairPool start(){
+		if(filler == null){
+			Thread thread = new Thread(this::fill, "keypair-pool-" + algorithm);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			filler = thread;
+			thread.start();
+		}
+		return this;
+	}// start end
+
+
+	/**
+	 * Stops the background thread, the key pairs already generated can still be taken.
+	 */
+	public void stop(){
+		Thread thread = filler;
+		if(thread != null){
+			thread.interrupt();
+		}
+	}// stop end
+
+
+	/**
+	 * Keeps the pool full, waits while it is.
+	 */
+	private void fill(){
+		try{
+			KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+			while(!Thread.currentThread().isInterrupted()){
+				pool.put(generator.generateKeyPair());
+			}
+		} catch(InterruptedException e){
+			//Stopped
+		} catch(NoSuchAlgorithmException e){
+			//'take' throws it to the caller instead
+		}
+	}// fill end
+
+
+	/**
+	 * Takes a key pair from the pool, or generates one if the pool is empty.
+	 * A key pair is never handed out twice.
+	 * @return a new key pair.
+	 * @throws NoSuchAlgorithmException if the algorithm isn't available.
+	 */
+	public KeyPair take() throws NoSuchAlgorithmException{
+		KeyPair kp = pool.poll();
+		if(kp != null){
+			hits.incrementAndGet();
+			return kp;
+		}
+		misses.incrementAndGet();
+		return KeyPairGenerator.getInstance(algorithm).generateKeyPair();
+	}// take end
+
+
+	/**
+	 * @return the number of key pairs ready to be taken.
+	 */
+	public int available(){
+		return pool.size();
+	}
+
+
+	/**
+	 * @return the number of takes that got a key pair from the pool.
+	 */
+	public long hits(){
+		return hits.get();
+	}
+
+
+	/**
+	 * @return the number of takes that had to generate a key pair.
+	 */
+	public long misses(){
+		return misses.get();
+	}
+
+
+	/**
+	 * @return the counters, formatted for the log.
+	 */
+	@Override
+	public String toString(){
+		return algorithm + " key pairs: available " + available() + ", hits " + hits() + ", misses " + misses();
+	}// toString end
+
+
+}// KeyPairPool end
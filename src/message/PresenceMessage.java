@@ -0,0 +1,109 @@
+package message;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sent by Server to the clients that offered KeyMessage.CAP_PRESENCE, instead of
+ * a UserListMessage with every username each time a user joins or leaves.
+ * A JOINED or LEFT message only holds the user that joined or left, a SNAPSHOT
+ * holds every connected user and is sent to a client when it joins.
+ * Every change has a version one larger than the one before, so a client that
+ * sees a version it didn't expect knows that it missed a change, and then sends
+ * a SNAPSHOT_REQUEST to get the whole list again.
+ * Users are identified by their session ID since two users may have the same name.
+ * The members of a chat room are sent the same way, with the name of the room
+ * and a version of their own. Without a room the message is about every user.
+ */
+public class PresenceMessage implements Serializable{
+
+	private static final long serialVersionUID = -4361170527263811854L;
+	public static final int SNAPSHOT = 1;
+	public static final int JOINED = 2;
+	public static final int LEFT = 3;
+	public static final int SNAPSHOT_REQUEST = 4;
+	private int type;
+	private long version;
+	private String room;
+	private List<Entry> entries;
+	private static final String invalidTypeMessage = "Invalid presence type argument. Use static variables to define type.";
+
+	/**
+	 * Constructs a PresenceMessage without users.
+	 * @param type is SNAPSHOT, JOINED, LEFT or SNAPSHOT_REQUEST.
+	 * @param version is the version of the user list after this change,
+	 * or the version the client has for a SNAPSHOT_REQUEST.
+	 */
+	public PresenceMessage(int type, long version){
+		this(type, version, null);
+	}
+
+	/**
+	 * Constructs a PresenceMessage about the members of a chat room.
+	 * @param type is SNAPSHOT, JOINED, LEFT or SNAPSHOT_REQUEST.
+	 * @param version is the version of the rooms members after this change.
+	 * @param room is the name of the room, null for every user.
+	 */
+	public PresenceMessage(int type, long version, String room){
+		if(type < SNAPSHOT || type > SNAPSHOT_REQUEST){
+			throw new IllegalArgumentException(invalidTypeMessage);
+		}
+		this.type = type;
+		this.version = version;
+		this.room = room;
+		this.entries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Adds a user.
+	 * @param id is the users session ID.
+	 * @param user is the users name.
+	 */
+	public void add(int id, String user){
+		entries.add(new Entry(id, user));
+	}
+
+	public int getType(){
+		return type;
+	}
+
+	public long getVersion(){
+		return version;
+	}
+
+	/**
+	 * @return the name of the chat room, null if the message is about every user.
+	 */
+	public String getRoom(){
+		return room;
+	}
+
+	public List<Entry> getEntries(){
+		return entries;
+	}
+
+
+	/**
+	 * One user that joined or left, or is connected in a SNAPSHOT.
+	 */
+	public static class Entry implements Serializable{
+
+		private static final long serialVersionUID = 7720155948211536013L;
+		private int id;
+		private String user;
+
+		Entry(int id, String user){
+			this.id = id;
+			this.user = user;
+		}
+
+		public int getId(){
+			return id;
+		}
+
+		public String getUser(){
+			return user;
+		}
+	}// Entry end
+
+}
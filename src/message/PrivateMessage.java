@@ -0,0 +1,22 @@
+package message;
+
+/**
+ * A Message to one user only. The server sends it to every session of the
+ * recipient and to the senders other sessions, no one else gets it.
+ * The server sets 'user' to the name of the sender.
+ */
+public class PrivateMessage extends Message{
+
+	private static final long serialVersionUID = 3395868416807254792L;
+	private String recipient;
+
+	public PrivateMessage(String user, String recipient, String message){
+		super(user, message);
+		this.recipient = recipient;
+	}
+
+	public String getRecipient(){
+		return recipient;
+	}//getRecipient end
+
+}
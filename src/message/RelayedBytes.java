@@ -0,0 +1,27 @@
+package message;
+
+/**
+ * A message relayed by the server exactly as the sending client sealed it.
+ * Holds the senders session ID, attested by the server, and the ciphertext of
+ * the SignedBytes the client created. The receiver looks the sender up in its
+ * directory, see DirectoryMessage, and verifies the signature with that key.
+ */
+public class RelayedBytes {
+
+	private int sender;
+	private byte[] ciphertext;
+
+	public RelayedBytes(int sender, byte[] ciphertext){
+		this.sender = sender;
+		this.ciphertext = ciphertext;
+	}
+	
+	public int getSender(){
+		return sender;
+	}
+	
+	public byte[] getCiphertext(){
+		return ciphertext;
+	}
+	
+}
@@ -0,0 +1,152 @@
+package message;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Shows text in a JTextArea for the threads reading from the network, used by
+ * both the client and the server GUI. Lines are queued and a Swing Timer adds
+ * every line queued during a frame to the text area in one update on the event
+ * dispatch thread, instead of one update for each line from whatever thread
+ * recieved it. A busy chat then costs at most one update per frame.
+ *
+ * The text area keeps at most a number of lines, the oldest lines are removed
+ * when new ones are added. The queue is bounded the same way, a line that
+ * would be removed as soon as it's shown is dropped from the queue instead.
+ * The memory used stays the same however long the application runs.
+ *
+ * @author Tomas
+ */
+public class RenderQueue {
+
+	public static final int FRAME_MILLIS = 40;		//At most 25 updates a second
+
+	private JTextArea area;
+	private int maxLines;
+	private ArrayDeque<String> pending;		//guarded by lock
+	private String replacement;				//replaces the whole text, null if it's kept
+	private boolean scheduled;				//the timer has been started for the pending text
+	private ReentrantLock lock;
+	private Timer timer;
+
+
+	/**
+	 * Creates a queue showing text in a text area.
+	 * @param area is the text area.
+	 * @param maxLines is the number of lines the text area keeps.
+	 */
+	public RenderQueue(JTextArea area, int maxLines){
+		this.area = area;
+		this.maxLines = maxLines;
+		this.pending = new ArrayDeque<String>();
+		this.lock = new ReentrantLock();
+		this.timer = new Timer(FRAME_MILLIS, event -> render());
+		this.timer.setRepeats(false);
+		this.timer.setCoalesce(false);		//A start during a long render must still lead to a render
+	}// constructor end
+
+
+	/**
+	 * Queues a line, shown with the next frame. May be called from any thread.
+	 * @param line is the text without a line break.
+	 */
+	public void append(String line){
+		boolean start;
+		lock.lock();
+		try{
+			if(pending.size() >= maxLines){
+				pending.pollFirst();		//Would be removed from the text area anyway
+			}
+			pending.addLast(line);
+			start = schedule();
+		} finally{
+			lock.unlock();
+		}
+		if(start){
+			timer.start();
+		}
+	}// append end
+
+
+	/**
+	 * Replaces the whole text with the next frame, lines queued before are
+	 * dropped. May be called from any thread. Only the last text set during
+	 * a frame is shown, a list that changes often is only shown once per frame.
+	 * @param text is the new text.
+	 */
+	public void setText(String text){
+		boolean start;
+		lock.lock();
+		try{
+			pending.clear();
+			replacement = text;
+			start = schedule();
+		} finally{
+			lock.unlock();
+		}
+		if(start){
+			timer.start();
+		}
+	}// setText end
+
+
+	/**
+	 * Called with the lock held.
+	 * @return true if the timer has to be started.
+	 */
+	private boolean schedule(){
+		if(scheduled){
+			return false;
+		}
+		scheduled = true;
+		return true;
+	}// schedule end
+
+
+	/**
+	 * Shows what has been queued, on the event dispatch thread, and removes
+	 * the lines over the limit from the start of the text.
+	 */
+	private void render(){
+		String text;
+		StringBuilder lines = new StringBuilder();
+		lock.lock();
+		try{
+			text = replacement;
+			replacement = null;
+			for(String line : pending){
+				lines.append(line).append('\n');
+			}
+			pending.clear();
+			scheduled = false;
+		} finally{
+			lock.unlock();
+		}
+		if(text != null){
+			area.setText(text);
+		}
+		if(lines.length() > 0){
+			area.append(lines.toString());
+		}
+		int excess = area.getLineCount() - 1 - maxLines;		//The text ends with a line break
+		if(excess > 0){
+			try{
+				area.replaceRange("", 0, area.getLineEndOffset(excess - 1));
+			} catch(BadLocationException e){
+				e.printStackTrace();
+			}
+		}
+	}// render end
+
+
+	/**
+	 * @return the number of lines the text area keeps.
+	 */
+	public int getMaxLines(){
+		return maxLines;
+	}
+
+
+}// RenderQueue end
@@ -0,0 +1,56 @@
+package message;
+import java.io.Serializable;
+
+/**
+ * Used to join, leave and post to a chat room. Static final ints are used to
+ * indicate what the client wants to do, the same way as in KeyMessage.
+ * A POST is sent back by the server to every member of the room, with the
+ * name of the user that posted it. The members of a room are sent as
+ * PresenceMessages with the rooms name.
+ */
+public class RoomMessage implements Serializable{
+
+	private static final long serialVersionUID = -2304513379021657341L;
+	public static final int JOIN = 1;
+	public static final int LEAVE = 2;
+	public static final int POST = 3;
+	private static final String invalidTypeMessage = "Invalid room message type argument. Use static variables to define type.";
+	private int type;
+	private String room;
+	private String user;
+	private String message;
+
+	/**
+	 * Constructs a RoomMessage.
+	 * @param type is JOIN, LEAVE or POST.
+	 * @param room is the name of the room.
+	 * @param user is the name of the user posting, set by the server.
+	 * @param message is the text posted, null unless the type is POST.
+	 */
+	public RoomMessage(int type, String room, String user, String message){
+		if(type < JOIN || type > POST){
+			throw new IllegalArgumentException(invalidTypeMessage);
+		}
+		this.type = type;
+		this.room = room;
+		this.user = user;
+		this.message = message;
+	}
+
+	public int getType(){
+		return type;
+	}
+
+	public String getRoom(){
+		return room;
+	}
+
+	public String getUser(){
+		return user;
+	}
+
+	public String getMessage(){
+		return message;
+	}
+
+}
@@ -0,0 +1,20 @@
+package message;
+
+/**
+ * The binary protocols counterpart to SealedObject.
+ * Holds the ciphertext of a SignedBytes, encrypted with the shared
+ * Symmetric-/SecretKey. Created and opened by Verifier.
+ */
+public class SealedBytes {
+
+	private byte[] ciphertext;
+
+	public SealedBytes(byte[] ciphertext){
+		this.ciphertext = ciphertext;
+	}
+	
+	public byte[] getCiphertext(){
+		return ciphertext;
+	}
+	
+}
@@ -0,0 +1,27 @@
+package message;
+
+/**
+ * A message sealed with the sessions AES-GCM key, see SessionCipher.
+ * Holds the sequence number the nonce was made from and the ciphertext,
+ * which ends with the authentication tag. No signature is needed, the tag
+ * already proves that the message was sealed with the sessions key.
+ */
+public class SessionBytes {
+
+	private long sequence;
+	private byte[] ciphertext;
+
+	public SessionBytes(long sequence, byte[] ciphertext){
+		this.sequence = sequence;
+		this.ciphertext = ciphertext;
+	}
+	
+	public long getSequence(){
+		return sequence;
+	}
+	
+	public byte[] getCiphertext(){
+		return ciphertext;
+	}
+	
+}
@@ -0,0 +1,137 @@
+package message;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Used by both Client and Server when the AEAD session mode has been negotiated,
+ * see KeyMessage.CAP_AEAD. Every connection then gets a key of its own and
+ * messages are sealed with AES-GCM, the authentication tag replaces the RSA
+ * signature. RSA is only used to send the key in the handshake.
+ *
+ * The nonce is made from the direction and a sequence number that grows with
+ * every message, so a nonce is never used twice with the same key. The sequence
+ * number is sent along with the ciphertext since a full outbound queue may drop
+ * messages. A message with a sequence number that isn't larger than the last one
+ * opened is rejected, which stops replays.
+ *
+ * Seal and open each use a Cipher of their own since they are called by
+ * different threads. Seal has to be called by one thread at a time and the
+ * SessionBytes have to be sent in the same order as they were sealed.
+ */
+public class SessionCipher {
+
+	private static final String ALGO = "AES/GCM/NoPadding";
+	private static final String KEY_ALGO = "AES";
+	private static final int KEY_BYTES = 16;
+	private static final int TAG_BITS = 128;
+	private static final int NONCE_BYTES = 12;
+	private static final int CLIENT_TO_SERVER = 1;
+	private static final int SERVER_TO_CLIENT = 2;
+	private static final SecureRandom random = new SecureRandom();
+
+	private SecretKey key;
+	private Cipher sealCipher;
+	private Cipher openCipher;
+	private int sealDirection;
+	private int openDirection;
+	private long sealSequence;
+	private long openSequence;
+
+
+	/**
+	 * Creates the ciphers for one side of a connection.
+	 * @param key is the connections key.
+	 * @param client is true on the client side and false on the server side.
+	 * @throws NoSuchAlgorithmException if AES-GCM isn't available.
+	 * @throws NoSuchPaddingException
+	 */
+	public SessionCipher(SecretKey key, boolean client) throws NoSuchAlgorithmException,
+	NoSuchPaddingException{
+		this.key = key;
+		this.sealCipher = Cipher.getInstance(ALGO);
+		this.openCipher = Cipher.getInstance(ALGO);
+		this.sealDirection = client ? CLIENT_TO_SERVER : SERVER_TO_CLIENT;
+		this.openDirection = client ? SERVER_TO_CLIENT : CLIENT_TO_SERVER;
+		this.sealSequence = 0;
+		this.openSequence = 0;
+	}// constructor end
+
+
+	/**
+	 * Generates a new key for one connection.
+	 * @return a random AES key.
+	 */
+	public static SecretKey generateKey(){
+		byte[] keyBytes = new byte[KEY_BYTES];
+		random.nextBytes(keyBytes);
+		return new SecretKeySpec(keyBytes, KEY_ALGO);
+	}// generateKey end
+
+
+	/**
+	 * Encrypts and authenticates a body with the next sequence number.
+	 * @param body is the encoded message, see BinaryCodec.encodeBody.
+	 * @return the SessionBytes to send.
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	public SessionBytes seal(byte[] body) throws InvalidKeyException,
+	IllegalBlockSizeException, BadPaddingException{
+		long sequence = ++sealSequence;
+		init(sealCipher, Cipher.ENCRYPT_MODE, sealDirection, sequence);
+		return new SessionBytes(sequence, sealCipher.doFinal(body));
+	}// seal end
+
+
+	/**
+	 * Checks the sequence number and the authentication tag and decrypts the body.
+	 * @param sealed is the SessionBytes sent by the other side.
+	 * @return the body, to be given to BinaryCodec.decodeBody.
+	 * @throws AEADBadTagException if the message has been changed, was sealed with
+	 * another key or is replayed.
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	public byte[] open(SessionBytes sealed) throws InvalidKeyException,
+	IllegalBlockSizeException, BadPaddingException{
+		long sequence = sealed.getSequence();
+		if(sequence <= openSequence){
+			throw new AEADBadTagException("Sequence number " + sequence + " has already been used.");
+		}
+		init(openCipher, Cipher.DECRYPT_MODE, openDirection, sequence);
+		byte[] body = openCipher.doFinal(sealed.getCiphertext());
+		openSequence = sequence;
+		return body;
+	}// open end
+
+
+	private void init(Cipher cipher, int mode, int direction, long sequence) throws InvalidKeyException{
+		byte[] nonce = new byte[NONCE_BYTES];
+		nonce[0] = (byte)(direction >>> 24);
+		nonce[1] = (byte)(direction >>> 16);
+		nonce[2] = (byte)(direction >>> 8);
+		nonce[3] = (byte)direction;
+		for(int i = 0; i < 8; ++i){
+			nonce[NONCE_BYTES - 1 - i] = (byte)(sequence >>> (8 * i));
+		}
+		try{
+			cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, nonce));
+		} catch(InvalidAlgorithmParameterException e){
+			throw new InvalidKeyException(e);	//Only if the nonce is reused, which the sequence prevents
+		}
+	}// init end
+
+
+}// SessionCipher end
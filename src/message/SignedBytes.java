@@ -0,0 +1,26 @@
+package message;
+
+/**
+ * The binary protocols counterpart to SignedObject.
+ * Holds an encoded body and the signature made over exactly those bytes.
+ * Created and validated by Verifier.
+ */
+public class SignedBytes {
+
+	private byte[] body;
+	private byte[] signature;
+
+	public SignedBytes(byte[] body, byte[] signature){
+		this.body = body;
+		this.signature = signature;
+	}
+	
+	public byte[] getBody(){
+		return body;
+	}
+	
+	public byte[] getSignature(){
+		return signature;
+	}
+	
+}
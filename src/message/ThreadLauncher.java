@@ -0,0 +1,83 @@
+package message;
+import java.lang.reflect.Method;
+
+/**
+ * Used by both Client and Server to start the threads that block on a socket.
+ * A thread can be started as a virtual thread, which makes it cheap to keep
+ * tens of thousands of idle connections. Virtual threads need Java 21, the
+ * builder is therefore looked up at runtime and on older runtimes a platform
+ * thread is started instead.
+ */
+public class ThreadLauncher {
+
+	private static final Method OF_VIRTUAL = findOfVirtual();
+	private static boolean warned = false;
+
+
+	/**
+	 * @return true if the running JVM can start virtual threads.
+	 */
+	public static boolean virtualThreadsAvailable(){
+		return OF_VIRTUAL != null;
+	}// virtualThreadsAvailable end
+
+
+	/**
+	 * Starts a thread running the task.
+	 * @param task is what the thread should run.
+	 * @param name is the name of the thread.
+	 * @param virtual is true if a virtual thread should be used when available.
+	 * @return the started thread.
+	 */
+	public static Thread start(Runnable task, String name, boolean virtual){
+		Thread thread = null;
+		if(virtual){
+			thread = newVirtualThread(task, name);
+		}
+		if(thread == null){
+			thread = new Thread(task, name);
+		}
+		thread.start();
+		return thread;
+	}// start end
+
+
+	/**
+	 * Creates an unstarted virtual thread through Thread.ofVirtual().
+	 * @return the thread, or null if virtual threads aren't available.
+	 */
+	private static Thread newVirtualThread(Runnable task, String name){
+		if(OF_VIRTUAL == null){
+			warnOnce();
+			return null;
+		}
+		try{
+			Object builder = OF_VIRTUAL.invoke(null);
+			Class<?> builderClass = OF_VIRTUAL.getReturnType();
+			builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+			return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, task);
+		} catch(ReflectiveOperationException e){
+			e.printStackTrace();
+			return null;
+		}
+	}// newVirtualThread end
+
+
+	private static synchronized void warnOnce(){
+		if(!warned){
+			warned = true;
+			System.err.println("Virtual threads need Java 21 or later, using platform threads.");
+		}
+	}// warnOnce end
+
+
+	private static Method findOfVirtual(){
+		try{
+			return Thread.class.getMethod("ofVirtual");
+		} catch(NoSuchMethodException e){
+			return null;
+		}
+	}// findOfVirtual end
+
+
+}
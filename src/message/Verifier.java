@@ -1,5 +1,6 @@
 package message;
 import java.io.IOException;
+import java.io.Serializable;
 import java.security.InvalidKeyException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -18,24 +19,41 @@ import javax.crypto.SecretKey;
  * Since the process is shared it was less redundant to create a class for these
  * common processes.
  * By using the shared Symmetric-/SecretKey SealedObjects are encrypted and decrypted.
- * Used in combination with the Cipher 'cipherSecretKey'.
- * The PrivateKey is used together with the Signature to create SignedObjects. 
- * The Signature is also used to validated SignedObjects but with the PublicKey.
+ * The PrivateKey is used together with a Signature to create SignedObjects. 
+ * A Signature is also used to validated SignedObjects but with the PublicKey.
+ * The binary protocol uses SignedBytes and SealedBytes instead, created the
+ * same way but signing and encrypting the encoded bytes directly.
+ *
+ * A Verifier can be used by many threads at the same time. The Ciphers and
+ * Signatures are taken from CryptoPools that keep them initialized for the
+ * Verifiers keys, one pool for each key and mode.
  */
 public class Verifier {
 
-	private SecretKey secretKey;
 	private PrivateKey privateKey;
-	private Cipher cipherSecretKey;
 	private PublicKey publicKey;
-	private Signature signature;
+	private CryptoPool<Cipher> encrypters;
+	private CryptoPool<Cipher> decrypters;
+	private CryptoPool<Signature> signers;
+	private CryptoPool<Signature> verifiers;
 	
-	public Verifier(SecretKey secKey, Cipher c, PublicKey pubKey, PrivateKey priKey, Signature sig){
-		this.secretKey = secKey;
+	/**
+	 * Creates a Verifier. The pools are empty until the first message.
+	 * @param secKey is the shared Symmetric-/SecretKey.
+	 * @param cipherAlgo is the algorithm used with the SecretKey.
+	 * @param pubKey is the key signatures are validated with.
+	 * @param priKey is the key signatures are created with, may be null if
+	 * the Verifier only validates.
+	 * @param signatureAlgo is the Signature algorithm.
+	 */
+	public Verifier(SecretKey secKey, String cipherAlgo, PublicKey pubKey, PrivateKey priKey, 
+			String signatureAlgo){
 		this.privateKey = priKey;
-		this.cipherSecretKey = c;
 		this.publicKey = pubKey;
-		this.signature = sig;
+		this.encrypters = CryptoPool.ciphers(cipherAlgo, Cipher.ENCRYPT_MODE, secKey);
+		this.decrypters = CryptoPool.ciphers(cipherAlgo, Cipher.DECRYPT_MODE, secKey);
+		this.signers = CryptoPool.signers(signatureAlgo, priKey);
+		this.verifiers = CryptoPool.verifiers(signatureAlgo, pubKey);
 	}
 	
 	/**
@@ -45,7 +63,9 @@ public class Verifier {
 	 */
 	public SignedObject createSignedObject(Message m) 
 			throws InvalidKeyException, SignatureException, IOException{
+		Signature signature = signers.acquire();
 		SignedObject signedobj = new SignedObject(m, privateKey, signature);
+		signers.release(signature);
 		return signedobj;
 	}// createSignedObject end
 	
@@ -57,7 +77,9 @@ public class Verifier {
 	 */
 	public SignedObject createSignedObject(DisconnectMessage m) 
 			throws InvalidKeyException, SignatureException, IOException{
+		Signature signature = signers.acquire();
 		SignedObject signedobj = new SignedObject(m, privateKey, signature);
+		signers.release(signature);
 		return signedobj;
 	}// createSignedObject end
 	
@@ -69,7 +91,24 @@ public class Verifier {
 	 */
 	public SignedObject createSignedObject(UserListMessage m) 
 			throws InvalidKeyException, SignatureException, IOException{
+		Signature signature = signers.acquire();
 		SignedObject signedobj = new SignedObject(m, privateKey, signature);
+		signers.release(signature);
+		return signedobj;
+	}// createSignedObject end
+	
+	
+	/**
+	 * Creates a SignedObject from any of the messages above when the type
+	 * isn't known until runtime.
+	 * @param m is the Message to sign.
+	 * @return a SignedObject.
+	 */
+	public SignedObject createSignedObject(Serializable m) 
+			throws InvalidKeyException, SignatureException, IOException{
+		Signature signature = signers.acquire();
+		SignedObject signedobj = new SignedObject(m, privateKey, signature);
+		signers.release(signature);
 		return signedobj;
 	}// createSignedObject end
 	
@@ -97,7 +136,10 @@ public class Verifier {
 	 */
 	public boolean validateSignedObject(SignedObject so) 
 			throws InvalidKeyException, SignatureException{
-		return so.verify(publicKey, signature);
+		Signature signature = verifiers.acquire();
+		boolean valid = so.verify(publicKey, signature);
+		verifiers.release(signature);
+		return valid;
 	}// validateSignedObject end
 	
 	
@@ -111,8 +153,10 @@ public class Verifier {
 	 */
 	public SealedObject createSealedObject(SignedObject signed) 
 			throws IllegalBlockSizeException, IOException, InvalidKeyException{
-		cipherSecretKey.init(Cipher.ENCRYPT_MODE, secretKey);
-		return new SealedObject(signed, cipherSecretKey);
+		Cipher cipher = encrypters.acquire();
+		SealedObject sealed = new SealedObject(signed, cipher);
+		encrypters.release(cipher);
+		return sealed;
 	}// createSealedObject end
 	
 	
@@ -129,12 +173,104 @@ public class Verifier {
 	public SignedObject convertSealedObject(SealedObject sealed) 
 			throws InvalidKeyException, ClassNotFoundException, IllegalBlockSizeException, 
 			BadPaddingException, IOException{ 
-		cipherSecretKey.init(Cipher.DECRYPT_MODE, secretKey);
-		return (SignedObject) sealed.getObject(cipherSecretKey);
-		
+		Cipher cipher = decrypters.acquire();
+		SignedObject signed = (SignedObject) sealed.getObject(cipher);
+		decrypters.release(cipher);
+		return signed;
 	}// convertSealedObject end
 	
 	
 	
 	
+	/**
+	 * Creates a SignedBytes from the given Message, UserListMessage or DisconnectMessage.
+	 * @param m is the message to sign.
+	 * @return a SignedBytes holding the encoded message and its signature.
+	 * @throws IOException if the message can't be encoded.
+	 */
+	public SignedBytes createSignedBytes(Object m) 
+			throws InvalidKeyException, SignatureException, IOException{
+		return signBody(BinaryCodec.encodeBody(m));
+	}// createSignedBytes end
+	
+	
+	/**
+	 * Signs a body that is already encoded, or compressed by a BodyCompressor.
+	 * @param body is the body encoded by BinaryCodec.
+	 * @return a SignedBytes holding the body and its signature.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 */
+	public SignedBytes signBody(byte[] body) throws InvalidKeyException, SignatureException{
+		Signature signature = signers.acquire();
+		signature.update(body);
+		byte[] sig = signature.sign();
+		signers.release(signature);
+		return new SignedBytes(body, sig);
+	}// signBody end
+	
+	
+	/**
+	 * Converts a SignedBytes into a Object.
+	 * @param sb is the SignedBytes that should be converted to an Object.
+	 * @return an Object.
+	 * @throws IOException
+	 */
+	public Object convertSignedBytes(SignedBytes sb) throws IOException{
+		return BinaryCodec.decodeBody(sb.getBody());
+	}// convertSignedBytes end
+	
+	
+	/**
+	 * Validates a SignedBytes.
+	 * @param sb is the SignedBytes that should be validated.
+	 * @return true if the signature is the valid signature for the body.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 */
+	public boolean validateSignedBytes(SignedBytes sb) 
+			throws InvalidKeyException, SignatureException{
+		Signature signature = verifiers.acquire();
+		signature.update(sb.getBody());
+		boolean valid = signature.verify(sb.getSignature());
+		verifiers.release(signature);
+		return valid;
+	}// validateSignedBytes end
+	
+	
+	/**
+	 * Creates a SealedBytes using the Cipher and shared Symmetric-/SecretKey.
+	 * @param signed is the SignedBytes to encrypt.
+	 * @return a SealedBytes.
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws InvalidKeyException
+	 */
+	public SealedBytes createSealedBytes(SignedBytes signed) 
+			throws IllegalBlockSizeException, BadPaddingException, InvalidKeyException{
+		Cipher cipher = encrypters.acquire();
+		byte[] ciphertext = cipher.doFinal(BinaryCodec.joinSigned(signed));
+		encrypters.release(cipher);
+		return new SealedBytes(ciphertext);
+	}// createSealedBytes end
+	
+	
+	/**
+	 * Decrypts a SealedBytes using the cipher with the shared Symmetric-/SecretKey.
+	 * @param sealed is the SealedBytes that should be decrypted.
+	 * @return the SignedBytes contained within the SealedBytes.
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException if the decrypted bytes are corrupt.
+	 */
+	public SignedBytes convertSealedBytes(SealedBytes sealed) 
+			throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, IOException{ 
+		Cipher cipher = decrypters.acquire();
+		byte[] plain = cipher.doFinal(sealed.getCiphertext());
+		decrypters.release(cipher);
+		return BinaryCodec.splitSigned(plain);
+	}// convertSealedBytes end
+	
+	
 }
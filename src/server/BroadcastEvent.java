@@ -0,0 +1,40 @@
+package server;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for one fan-out of a message, to everyone, a chat
+ * room or a users sessions. The session is the one that sent the message.
+ * The lock wait is the time spent waiting for the send locks of the recipients,
+ * which other threads hold while they seal for the same client.
+ *
+ * @author Tomas
+ */
+@Name("securechat.Broadcast")
+@Label("Broadcast")
+@Category({"SecureChat", "Server"})
+@Description("Sealing and queueing a message for its recipients")
+@StackTrace(false)
+class BroadcastEvent extends jdk.jfr.Event {
+
+	@Label("Session ID")
+	int sessionId;
+
+	@Label("Username")
+	String username;
+
+	@Label("Message Type")
+	String messageType;
+
+	@Label("Recipients")
+	int recipients;
+
+	@Label("Lock Wait")
+	@Timespan(Timespan.NANOSECONDS)
+	long lockWait;
+
+}// BroadcastEvent end
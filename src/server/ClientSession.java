@@ -0,0 +1,2003 @@
+package server;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.SignedObject;
+import java.security.spec.EncodedKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SealedObject;
+import javax.crypto.SecretKey;
+import message.*;
+
+/**
+ * ClientSession keeps track of one connected client, no matter which engine
+ * the server is running. The engine reads objects from the client and hands
+ * them to 'handle', everything the session sends goes through its Connection.
+ * Every message is sent to all connected clients in the servers SessionRegistry.
+ * Each session speaks the protocol its client chose, see FrameCodec. The servers
+ * public key is sent with the configured protocol and the session then follows
+ * the protocol of the clients answer.
+ * A binary client may also offer the AEAD session mode. The session then gets a
+ * key of its own and messages are sealed with its SessionCipher instead of
+ * being signed with RSA. If the server offered the ECDH handshake with its public
+ * key, the client may answer with an ephemeral X25519 key instead of its RSA key,
+ * and the sessions key is then agreed with KeyExchange rather than sent encrypted.
+ * Clients that offer CAP_PRESENCE get a snapshot of the user list when they join
+ * and then only the users that join and leave, see PresenceMessage. Other clients
+ * still get the whole list in a UserListMessage.
+ * Clients can also join chat rooms with RoomMessages. A post to a room is only
+ * sent to the rooms members, and the members get the rooms own PresenceMessages.
+ * Binary clients that offer CAP_FILES send and recieve files in FileMessages,
+ * which go through the servers FileStore on disk, see 'handleFileMessage'.
+ * Otherwise it may offer the relay session mode. The messages its client signs
+ * are then relayed as they are to the other relay clients, which verify them with
+ * the keys in the DirectoryMessages the server sends, instead of being signed
+ * again by the server.
+ * The handshake, the crypto of each message and every fan-out are timed for the
+ * ServerMetrics, a fan-out only times the seal of its first AEAD recipient.
+ *
+ * @author Tomas
+ * @version 1.0
+ */
+class ClientSession {
+	private static final AtomicInteger nextId = new AtomicInteger();
+	private static final int MAX_ROOMS = 16;	//rooms one session may join
+	private static final long THROTTLE_NOTICE_NANOS = 5000000000L;	//between telling a client its messages are dropped
+
+	private final int id;	//attests the sender of relayed messages
+
+	private String username;
+	private Server server;
+	private Connection connection;
+	private volatile boolean hasClient;
+	private volatile boolean hasKeys;
+	private volatile boolean relay;
+	private volatile int protocol;
+	private volatile boolean presence;		//the client gets PresenceMessages instead of UserListMessages
+	private volatile boolean usesRooms;		//the client may join chat rooms
+	private volatile boolean usesPrivate;	//the client sends and recieves PrivateMessages
+	private volatile boolean reachable;		//gets private messages directly, set under the mailbox lock once it's sent
+	private volatile boolean compress;		//bodies over the threshold are compressed for the client
+	private volatile boolean usesFiles;		//the client sends and recieves FileMessages
+	private volatile boolean present;		//in the user list the clients have been sent, changed under the presence lock
+	private Set<String> rooms;				//the chat rooms joined
+	private Map<Long, Download> downloads;	//files being sent to the client, only used by the thread handling it
+
+	private PublicKey clientPublicKey;
+	private Cipher cipherKeyPair; 	//used to decrypt symmetric key recieved from client
+
+	private Verifier sender;
+	private Verifier reciever;
+	private SessionCipher sessionCipher;	//null unless the AEAD session mode is used
+	private SecretKey sessionKey;
+	private ReentrantLock sendLock;			//keeps sequence numbers and the directory in the order they are queued
+	private ServerMetrics metrics;
+	private long handshakeStart;			//System.nanoTime() when the servers public key was sent
+	private AtomicBoolean handshakeEnded;	//counted as completed or failed
+	private boolean keyRecieved;			//the client has sent its key, only used by the thread reading from it
+	private TokenBucket bucket;				//null if the session isn't limited
+	private long throttleNoticeAt;			//System.nanoTime() of the last throttle notice, only used by the thread handling the client
+
+
+	/**
+	 * Creates the session for a newly accepted client and adds it to the SessionRegistry.
+	 * @param server is a refference to the Server that accepted the client.
+	 * @param connection is used to send objects to the client.
+	 * @throws NoSuchAlgorithmException if any of the algorithms specified isn't available.
+	 * @throws NoSuchPaddingException if any of the used padding mechanisms aren't available.
+	 */
+	ClientSession(Server server, Connection connection) throws NoSuchAlgorithmException,
+	NoSuchPaddingException{
+		this.server = server;
+		this.connection = connection;
+		this.hasClient = true;	//Set to false if a DisconnectMessage is recieved from the client
+		this.hasKeys = false;	//Set to true when both keys are recieved from client
+		this.reachable = false;	//Set to true when the mailbox has been sent
+		this.protocol = server.getConfig().getProtocol();
+
+		cipherKeyPair = Cipher.getInstance(Server.KEY_PAIR_ALGO);
+		sendLock = new ReentrantLock();
+		metrics = server.getMetrics();
+		handshakeEnded = new AtomicBoolean(false);
+		bucket = server.getConfig().newSessionBucket();
+		rooms = ConcurrentHashMap.newKeySet();
+		downloads = new HashMap<Long, Download>();
+		id = nextId.incrementAndGet();
+		server.getSessions().add(this);
+	}// constructor end
+
+
+	/**
+	 * Gets the sessions from the SessionRegistry without taking a lock.
+	 * @return the sessions at the moment, the array must not be changed.
+	 */
+	private ClientSession[] snapshot(){
+		return server.getSessions().snapshot();
+	}// snapshot end
+
+
+	/**
+	 * Closes this session's connection.
+	 * If the client hasn't disconnected it is informed first.
+	 * The session is also removed from the SessionRegistry and its chat rooms
+	 * so that broadcasts don't fail on a closed connection after a brutal disconnect.
+	 * If the user is still in the user list the clients have been sent, it's
+	 * removed from that too, otherwise they would keep it until they reconnect.
+	 */
+	void closeResources(){
+		if(hasClient){ 				//Not disconnected by Client or by closing GUI.
+			disconnectClient();		//Probably an exception occured, inform user.
+		}
+		if(handshakeEnded.compareAndSet(false, true)){
+			metrics.handshakeFailed();		//Closed before the keys were exchanged
+		}
+		server.getSessions().remove(this);
+		leaveRooms();
+		if(present){				//Not left nicely
+			try{
+				announceLeave();
+				server.listener.usersChanged(getUsernames());
+				server.setUserCount();
+			} catch(IOException | InvalidKeyException | IllegalBlockSizeException e){
+				e.printStackTrace();
+			} catch(SignatureException | BadPaddingException e){
+				e.printStackTrace();
+			}
+		}
+		connection.close();
+	}// closeResources end
+
+
+	/**
+	 * Save the logged on clients name.
+	 * @param name, the name of the client/user.
+	 */
+	void setUsername(String name){
+		String previous = this.username;
+		this.username = name;
+		server.getSessions().addUsername(this, previous);
+	}// setUsername end
+
+
+	/**
+	 * Gets the name of the user.
+	 * @return the clients stored username.
+	 */
+	String getUsername(){
+		return username;
+	}// getUsername end
+
+
+	/**
+	 * @return the ID of the session, unique while the server is running.
+	 */
+	int getId(){
+		return id;
+	}// getId end
+
+
+	/**
+	 * @return true as long as the client is connected.
+	 */
+	boolean hasClient(){
+		return hasClient;
+	}// hasClient end
+
+
+	/**
+	 * Called by the engine when the connection is gone without a DisconnectMessage,
+	 * for example when the user closed the GUI or the client crashed.
+	 */
+	void connectionLost(){
+		hasClient = false;
+	}// connectionLost end
+
+
+	/**
+	 * Go through all the clients and get their names.
+	 * Save them to a formatted String, ready to be used
+	 * in the servers graphical 'user list'-textarea.
+	 * Package-private for UsernamesBenchmark.
+	 * @return a formatted String of all connected users.
+	 */
+	String getUsernames(){
+		StringBuilder allUsers = new StringBuilder();
+		for(ClientSession session : snapshot()){
+			allUsers.append(' ').append(session.getUsername()).append(" \n");
+		}
+		return allUsers.toString();
+	}// getUsernames end
+
+
+	/**
+	 * Like 'getUsernames' but only the users in the list the clients have been sent,
+	 * for the clients without CAP_PRESENCE. Called under the presence lock.
+	 * @return a formatted String of the users.
+	 */
+	private String getPresentUsernames(){
+		StringBuilder allUsers = new StringBuilder();
+		for(ClientSession session : snapshot()){
+			if(session.present){
+				allUsers.append(' ').append(session.getUsername()).append(" \n");
+			}
+		}
+		return allUsers.toString();
+	}// getPresentUsernames end
+
+
+	/**
+	 * Get's the sessions connection, called when broadcasting messages to all
+	 * clients connected to the chat.
+	 * @return the clients connection.
+	 */
+	Connection getConnection(){
+		return connection;
+	}
+
+
+	/**
+	 * Starts the session. Updates the user count and sends the Servers
+	 * public key to the client, the client then answers with its own.
+	 * @throws IOException
+	 */
+	void open() throws IOException{
+		server.setUserCount();
+		metrics.handshakeStarted();
+		handshakeStart = System.nanoTime();
+		sendServerPublicKey();
+	}// open end
+
+
+	/**
+	 * Handles one object sent by the client.
+	 *
+	 * First the server sends its public key to the client.
+	 * The client then sends its public key. The session then encrypts
+	 * the Symmetric-/SecretKey with the clients PublicKey and sends
+	 * it to the client.
+	 * After that all communication is sent with
+	 * Signed and Sealed objects.
+	 *
+	 * Stopped by client when it sends a DisconnectMessage.
+	 * The DisconnectMessage will be stored in a SealedObject
+	 * if the key exchange has went well. If the key exchange
+	 * somehow failed the client will send an unencrypted DisconnectMessage
+	 * To tell the server that it has disconnected.
+	 * Any other message before the keys are exchanged disconnects the client,
+	 * there is nothing to decrypt it with yet, and so does a second key.
+	 * Every message but a DisconnectMessage has to get a token first, see 'admit'.
+	 * A key that gets none disconnects the client, which can connect again later,
+	 * since the client would wait for an answer forever if it was dropped.
+	 * @param obj is the object read by the engine.
+	 * @param protocol is the protocol the object was read with.
+	 */
+	void handle(Object obj, int protocol) throws IOException, InvalidKeyException, IllegalBlockSizeException,
+	SignatureException, BadPaddingException, ClassNotFoundException{
+		if(obj instanceof KeyMessage && keyRecieved){
+			System.out.println("SERVER RECIEVED A SECOND KEY FROM " + username + ", DISCONNECTING");
+			hasClient = false;
+		}else if(obj instanceof KeyMessage && !admit()){
+			System.out.println("SERVER IS TOO BUSY FOR ANOTHER KEY EXCHANGE, DISCONNECTING");
+			hasClient = false;
+		}else if(obj instanceof KeyMessage){
+			KeyMessage km = (KeyMessage)obj;
+			keyRecieved = true;
+			this.protocol = protocol;
+			HandshakeEvent event = new HandshakeEvent();
+			event.begin();
+			try{
+				handleKeyFromClient(km);
+			} finally{
+				event.sessionId = id;
+				event.username = username;
+				event.keyType = km.getKeytype() == KeyMessage.AGREEMENT_KEY ? "AGREEMENT_KEY" : "PUBLIC_KEY";
+				event.completed = hasKeys;
+				event.commit();
+			}
+		}else if(obj != null && !(obj instanceof DisconnectMessage) && !hasKeys){
+			System.out.println("SERVER RECIEVED A MESSAGE BEFORE THE KEYS WERE EXCHANGED, DISCONNECTING");
+			hasClient = false;
+		}else if(obj != null && !(obj instanceof DisconnectMessage) && !admit()){
+			//Dropped without being decrypted
+		}else if(obj instanceof SealedObject){
+			SealedObject sealed = (SealedObject) obj;
+			handleSealedObject(sealed);
+		}else if(obj instanceof SealedBytes){
+			SealedBytes sealed = (SealedBytes) obj;
+			handleSealedBytes(sealed);
+		}else if(obj instanceof SessionBytes){
+			SessionBytes sealed = (SessionBytes) obj;
+			handleSessionBytes(sealed);
+		}else if(obj instanceof DisconnectMessage){ //Used as a last resort for client to communicate
+			hasClient = false;						//with server if keys can't be exchanged
+		}
+	}// handle end
+
+
+	/**
+	 * Takes a token for a message from the client before anything is done with it,
+	 * from the sessions own TokenBucket and then from the one shared by every session.
+	 * A message without a token is dropped unread, so a client sending too fast costs
+	 * the server little more than reading the frame, and is never signed, sealed or
+	 * sent to the other clients. The client is told when a message is dropped, at most
+	 * once every five seconds so the notices don't cost what the limit saves.
+	 * @return true if the message should be handled.
+	 * @throws IOException
+	 */
+	private boolean admit() throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		TokenBucket shared = server.getIngestBucket();
+		boolean byServer;
+		if(bucket != null && !bucket.tryTake()){
+			byServer = false;
+		}else if(shared != null && !shared.tryTake()){
+			byServer = true;
+			if(bucket != null){
+				bucket.giveBack();
+			}
+		}else{
+			return true;
+		}
+		metrics.throttled(byServer);
+		long now = System.nanoTime();
+		if(hasKeys && (throttleNoticeAt == 0 || now - throttleNoticeAt > THROTTLE_NOTICE_NANOS)){
+			throttleNoticeAt = now;
+			System.out.println("SERVER DROPS MESSAGES FROM " + username + (byServer ? ", THE SERVER IS BUSY" : ""));
+			deliver(new Message(null, byServer ? "THE SERVER IS BUSY, SOME OF YOUR MESSAGES WERE DROPPED."
+					: "YOU ARE SENDING TOO FAST, SOME OF YOUR MESSAGES WERE DROPPED."), null,
+					new ClientSession[]{this}, client -> true);
+		}
+		return false;
+	}// admit end
+
+
+	/**
+	 * Gives back the token of a message that doesn't count against the limit, a
+	 * chunk of a file or the ACK of one, since a file would otherwise take every token.
+	 * Only what moves a transfer forward by a whole chunk, or to its end, is given
+	 * back, so a client can't send small chunks or the same ACK again for free.
+	 * Their number is then limited by the size of the files.
+	 */
+	private void giveBackToken(){
+		TokenBucket shared = server.getIngestBucket();
+		if(bucket != null){
+			bucket.giveBack();
+		}
+		if(shared != null){
+			shared.giveBack();
+		}
+	}// giveBackToken end
+
+
+	/**
+	 * Called by the engine when the client has left nicely.
+	 * @throws IOException
+	 */
+	void closed() throws InvalidKeyException, SignatureException, IOException,
+	IllegalBlockSizeException, BadPaddingException{
+		removeUserAndUpdateGUI();
+		System.out.println("CLIENT DISCONNECTED NICELY");
+	}// closed end
+
+
+	/**
+	 *
+	 * @param km is the KeyMessage containing the clients PublicKey.
+	 * Saves the key if everything works well. Then sends the servers
+	 * Symmetric-/SecretKey, or a key for this session only if the client
+	 * offered the AEAD session mode and the server allows it. If it didn't the
+	 * relay session mode is used when the client offered that instead.
+	 * An AGREEMENT_KEY is only accepted if the server offered ECDH, the session then
+	 * uses the AEAD session mode with the agreed key, see 'agreeSessionKey'.
+	 * If the server can't save the key, or the username is missing or too long,
+	 * the session closes its resources.
+	 * No communication is allowed to be sent unencrypted.
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws SignatureException
+	 * @throws BadPaddingException
+	 */
+	private void handleKeyFromClient(KeyMessage km) throws IOException,
+	InvalidKeyException, IllegalBlockSizeException, SignatureException,
+	BadPaddingException{
+		boolean recieved = false;
+		presence = km.hasCapability(KeyMessage.CAP_PRESENCE);
+		usesRooms = presence && km.hasCapability(KeyMessage.CAP_ROOMS);
+		usesPrivate = km.hasCapability(KeyMessage.CAP_PRIVATE);
+		compress = km.hasCapability(KeyMessage.CAP_COMPRESS) && protocol == FrameCodec.PROTOCOL_BINARY
+				&& server.getConfig().allowsCompression();
+		usesFiles = km.hasCapability(KeyMessage.CAP_FILES) && protocol == FrameCodec.PROTOCOL_BINARY
+				&& server.getFiles() != null;
+		if(!SessionRegistry.validUsername(km.getUser())){
+			System.err.println("CLIENT SENT AN INVALID USERNAME");
+			hasClient = false;
+		}else if(km.getKeytype() == KeyMessage.PUBLIC_KEY){
+			if(!recieveClientPublicKey(km)){
+				hasClient = false;
+			}else{
+				recieved = true;
+				if(km.hasCapability(KeyMessage.CAP_AEAD) && protocol == FrameCodec.PROTOCOL_BINARY
+						&& server.getConfig().allowsAead()){
+					startAeadSession();
+				}
+				if(sessionCipher == null && km.hasCapability(KeyMessage.CAP_RELAY)
+						&& protocol == FrameCodec.PROTOCOL_BINARY && server.getConfig().allowsRelay()){
+					relay = true;
+				}
+				sendSymmetricKey();
+			}
+		}else if(km.getKeytype() == KeyMessage.AGREEMENT_KEY){
+			if(protocol != FrameCodec.PROTOCOL_BINARY || !server.getConfig().allowsEcdh()
+					|| !agreeSessionKey(km)){
+				hasClient = false;
+			}else{
+				recieved = true;
+			}
+		}
+		if(recieved){
+			setUsername(km.getUser());
+			initVerifiers();
+			if(handshakeEnded.compareAndSet(false, true)){
+				metrics.handshakeCompleted(System.nanoTime() - handshakeStart);
+			}
+			sendHistory();
+			sendMailbox();
+			sendPendingFiles();
+			sendConnectMessage(km.getUser());
+			announceJoin();
+		}
+	}// handleKeyFromServer end
+
+
+	/**
+	 * Creates the key and the SessionCipher of the AEAD session mode.
+	 * If AES-GCM isn't available the session falls back to RSA signatures.
+	 */
+	private void startAeadSession(){
+		try{
+			SecretKey key = SessionCipher.generateKey();
+			sessionCipher = new SessionCipher(key, false);
+			sessionKey = key;
+		} catch(NoSuchAlgorithmException | NoSuchPaddingException e){
+			e.printStackTrace();
+		}
+	}// startAeadSession end
+
+
+	/**
+	 * @return the capabilities accepted whatever the handshake and the session mode.
+	 */
+	private int acceptedCapabilities(){
+		return (presence ? KeyMessage.CAP_PRESENCE : 0) | (usesRooms ? KeyMessage.CAP_ROOMS : 0)
+				| (usesPrivate ? KeyMessage.CAP_PRIVATE : 0) | (compress ? KeyMessage.CAP_COMPRESS : 0)
+				| (usesFiles ? KeyMessage.CAP_FILES : 0);
+	}// acceptedCapabilities end
+
+
+	/**
+	 * Agrees on the AEAD key with the clients ephemeral X25519 key and answers
+	 * with the servers own, flagged with CAP_AEAD and CAP_ECDH. Neither side
+	 * uses RSA for this session.
+	 * @param km is the AGREEMENT_KEY sent by the client.
+	 * @return true if the key was agreed and sent, false if the clients key is invalid.
+	 * @throws IOException
+	 */
+	private boolean agreeSessionKey(KeyMessage km) throws IOException{
+		try{
+			KeyExchange exchange = new KeyExchange(false);
+			SecretKey key = exchange.agree(km.getKey());
+			sessionCipher = new SessionCipher(key, false);
+			sessionKey = key;
+			send(new KeyMessage(null, exchange.getPublicKey(), KeyMessage.AGREEMENT_KEY,
+					KeyMessage.CAP_AEAD | KeyMessage.CAP_ECDH | acceptedCapabilities()));
+			System.out.println("SERVER SENDS ITS AGREEMENT KEY");
+			return true;
+		} catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e){
+			e.printStackTrace();
+		}
+		return false;
+	}// agreeSessionKey end
+
+
+	/**
+	 * When the server has sent its PublicKey, recieved the clients PublicKey and sent the shared
+	 * Symmetric/SecretKey successfully - two object are created and used to decrypt and
+	 * encrypt all future messages. The class 'Verifier' exists as both the Client and Server
+	 * needs to go through the same steps when decrypting and encrypting messages.
+	 * Every session signs with the servers PrivateKey, so they all share 'Server.sender'.
+	 * A relay client is sent the directory before any relayed message can reach it,
+	 * and then everyone else in the relay mode is told about the new user.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void initVerifiers() throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		sender = Server.sender;
+		reciever = new Verifier(Server.secretKey, Server.SECRET_KEY_ALGO, clientPublicKey, null, Server.SIGNATURE_ALGO);
+		if(relay){
+			sendLock.lock();
+			try{
+				hasKeys = true;		//Set before the directory is read, a user joining now is either in it or tells us
+				sendDirectory();
+			} finally{
+				sendLock.unlock();
+			}
+			DirectoryMessage joined = new DirectoryMessage();
+			joined.add(id, username, Base64.getEncoder().encodeToString(clientPublicKey.getEncoded()));
+			broadcastDirectory(joined);
+		}else{
+			hasKeys = true;
+		}
+	}// initVerifiers end
+
+
+	/**
+	 * Sends the client the last messages of the HistoryLog in one frame, before
+	 * it's told about the users.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendHistory() throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		HistoryLog history = server.getHistory();
+		List<byte[]> bodies = history == null ? null : history.readLast(server.getConfig().getReplayCount());
+		if(bodies == null || bodies.isEmpty()){
+			return;
+		}
+		sendBatch(bodies);
+		System.out.println("SERVER SENDS " + bodies.size() + " MESSAGES FROM THE HISTORY TO " + username);
+	}// sendHistory end
+
+
+	/**
+	 * Sends the client the private messages kept in its users mailbox while the
+	 * user wasn't connected, in the order they arrived and joined into one frame.
+	 * The mailbox is locked until they are queued and the session is reachable,
+	 * a message sent to the user meanwhile waits and then reaches this session
+	 * directly, after them. Until then the session is skipped by private messages.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendMailbox() throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		MailboxStore mailboxes = server.getMailboxes();
+		if(mailboxes == null){
+			reachable = true;
+			return;
+		}
+		mailboxes.lock(username);
+		try{
+			List<byte[]> bodies = mailboxes.drain(username);
+			if(!bodies.isEmpty()){
+				if(!usesPrivate){
+					for(int i = 0; i < bodies.size(); ++i){
+						PrivateMessage pm = (PrivateMessage) BinaryCodec.decodeBody(bodies.get(i));
+						bodies.set(i, BinaryCodec.encodeBody(new Message(pm.getUser() + " (private)", pm.getMessage())));
+					}
+				}
+				sendBatch(bodies);
+				System.out.println("SERVER SENDS " + bodies.size() + " MESSAGES FROM THE MAILBOX TO " + username);
+			}
+			reachable = true;
+		} finally{
+			mailboxes.unlock(username);
+		}
+	}// sendMailbox end
+
+
+	/**
+	 * Offers the client the files sent to its user that it hasn't recieved the
+	 * whole of, sent while it wasn't connected or before it lost the connection.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendPendingFiles() throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		if(!usesFiles){
+			return;
+		}
+		List<FileStore.Transfer> pending = server.getFiles().pendingFor(username);
+		for(FileStore.Transfer transfer : pending){
+			sendFileMessage(offerOf(transfer));
+		}
+		if(!pending.isEmpty()){
+			System.out.println("SERVER OFFERS " + pending.size() + " FILES TO " + username);
+		}
+	}// sendPendingFiles end
+
+
+	/**
+	 * Seals encoded messages for this session and joins them into one frame,
+	 * so they are queued and written at once. With the AEAD session mode sealing
+	 * them costs microseconds, otherwise each is signed with RSA.
+	 * Bodies over the threshold are compressed first if the client accepts it.
+	 * @param bodies are the messages encoded by BinaryCodec.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendBatch(List<byte[]> bodies) throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		Frame[] frames = new Frame[bodies.size()];
+		sendLock.lock();
+		try{
+			for(int i = 0; i < frames.length; ++i){
+				if(sessionCipher != null){
+					frames[i] = Frame.of(sessionCipher.seal(pack(bodies.get(i))), protocol);
+				}else if(compress){
+					frames[i] = Frame.of(sealBody(pack(bodies.get(i))), protocol);
+				}else{
+					frames[i] = Frame.of(seal((Serializable) BinaryCodec.decodeBody(bodies.get(i)), protocol), protocol);
+				}
+			}
+			connection.send(Frame.concat(frames));
+		} finally{
+			sendLock.unlock();
+		}
+	}// sendBatch end
+
+
+	/**
+	 * Sends this sessions client the key of every user in the relay session mode,
+	 * its own included.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendDirectory() throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		DirectoryMessage directory = new DirectoryMessage();
+		for(ClientSession session : snapshot()){
+			if(session.hasKeys && session.relay){
+				directory.add(session.id, session.username,
+						Base64.getEncoder().encodeToString(session.clientPublicKey.getEncoded()));
+			}
+		}
+		connection.send(Frame.of(seal(directory, protocol), protocol));
+	}// sendDirectory end
+
+
+	/**
+	 * Sends a change in the directory to every other client in the relay session mode.
+	 * Sealed once, all of them use the binary protocol and the shared Symmetric-/SecretKey.
+	 * @param directory holds the users that joined or left.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void broadcastDirectory(DirectoryMessage directory) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		Frame frame = null;
+		for(ClientSession client : snapshot()){
+			if(client != this && client.hasKeys && client.relay){
+				if(frame == null){
+					frame = Frame.of(seal(directory, FrameCodec.PROTOCOL_BINARY), FrameCodec.PROTOCOL_BINARY);
+				}
+				client.sendInOrder(frame);
+			}
+		}
+	}// broadcastDirectory end
+
+
+
+	/**
+	 * Decrypts the SealedObject, retrieves the SignedObject, verifies its signature
+	 * and hands the message to 'handleMessage'.
+	 * @param sealed is the SealedObject that's being decrypted.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws ClassNotFoundException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void handleSealedObject(SealedObject sealed) throws InvalidKeyException,
+	SignatureException, ClassNotFoundException, IllegalBlockSizeException, BadPaddingException, IOException{
+		long start = System.nanoTime();
+		CryptoEvent event = new CryptoEvent(CryptoEvent.DECRYPT, id, username);
+		event.begin();
+		SignedObject sign = reciever.convertSealedObject(sealed);
+		event.commit();
+		long decrypted = System.nanoTime();
+		event = new CryptoEvent(CryptoEvent.VERIFY, id, username);
+		event.begin();
+		boolean valid = reciever.validateSignedObject(sign);
+		event.commit();
+		metrics.decrypted(decrypted - start);
+		metrics.verified(System.nanoTime() - decrypted);
+		if(valid){
+			handleMessage(reciever.convertSignedObject(sign), null);
+		}else{
+			metrics.invalidSignature();
+			System.err.println("Server recieved a SignedObject with an invalid signature.");
+		}
+	}// handleSealedObject end
+
+
+	/**
+	 * The binary protocols version of 'handleSealedObject'.
+	 * In the relay session mode the signature has now been checked once and
+	 * the ciphertext can be relayed as it is, as long as the client signed it
+	 * with its own name.
+	 * @param sealed is the SealedBytes that's being decrypted.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void handleSealedBytes(SealedBytes sealed) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		long start = System.nanoTime();
+		CryptoEvent event = new CryptoEvent(CryptoEvent.DECRYPT, id, username);
+		event.begin();
+		SignedBytes sign = reciever.convertSealedBytes(sealed);
+		event.commit();
+		long decrypted = System.nanoTime();
+		event = new CryptoEvent(CryptoEvent.VERIFY, id, username);
+		event.begin();
+		boolean valid = reciever.validateSignedBytes(sign);
+		event.commit();
+		metrics.decrypted(decrypted - start);
+		metrics.verified(System.nanoTime() - decrypted);
+		if(valid){
+			Object obj = reciever.convertSignedBytes(sign);
+			RelayedBytes relayed = null;
+			if(relay && obj instanceof Message && username.equals(((Message) obj).getUser())){
+				relayed = new RelayedBytes(id, sealed.getCiphertext());
+			}
+			handleMessage(obj, relayed);
+		}else{
+			metrics.invalidSignature();
+			System.err.println("Server recieved a SignedBytes with an invalid signature.");
+		}
+	}// handleSealedBytes end
+
+
+	/**
+	 * Opens a message sealed with this sessions key and hands it to 'handleMessage'.
+	 * A message that has been changed or replayed fails with an AEADBadTagException,
+	 * which disconnects the client.
+	 * @param sealed is the SessionBytes that's being decrypted.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void handleSessionBytes(SessionBytes sealed) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		if(sessionCipher == null){
+			System.err.println("Server recieved a SessionBytes but the AEAD session mode isn't used.");
+			return;
+		}
+		long start = System.nanoTime();
+		CryptoEvent event = new CryptoEvent(CryptoEvent.DECRYPT, id, username);
+		event.begin();
+		byte[] body = sessionCipher.open(sealed);
+		event.commit();
+		metrics.decrypted(System.nanoTime() - start);
+		handleMessage(BinaryCodec.decodeBody(body), null);
+	}// handleSessionBytes end
+
+
+	/**
+	 * Determines the type of a verified message. If its a 'DisconnectMessage'
+	 * the session shuts down its resources. If it's a 'Message' the content is displayed on
+	 * the server and then encrypted before it's sent to all other clients, always with
+	 * this sessions username whatever name the client put in it.
+	 * A PresenceMessage asks for a new snapshot of the user list or of a rooms members.
+	 * A RoomMessage joins, leaves or posts to a chat room.
+	 * A FileMessage is part of sending or recieving a file.
+	 * @param obj is the decrypted and verified message.
+	 * @param relayed is the message as the client sealed it, null if it can't be relayed.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void handleMessage(Object obj, RelayedBytes relayed) throws InvalidKeyException, 
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		if(obj instanceof DisconnectMessage){
+			hasClient = false;
+		}else if(obj instanceof PrivateMessage){
+			if(usesPrivate){
+				sendPrivateMessage((PrivateMessage) obj);
+			}
+		}else if(obj instanceof Message){
+			Message m = (Message) obj;
+			if(!username.equals(m.getUser())){		//Sent, shown and kept in the history as this user, never as another
+				m = new Message(username, m.getMessage());
+				relayed = null;
+			}
+			broadcast(m, relayed, client -> true);
+		}else if(obj instanceof RoomMessage && usesRooms){
+			handleRoomMessage((RoomMessage) obj);
+		}else if(obj instanceof FileMessage && usesFiles){
+			handleFileMessage((FileMessage) obj);
+		}else if(obj instanceof PresenceMessage && presence
+				&& ((PresenceMessage) obj).getType() == PresenceMessage.SNAPSHOT_REQUEST){
+			String name = ((PresenceMessage) obj).getRoom();
+			Room room = name == null ? null : server.getRooms().get(name);
+			if(name == null){
+				sendPresenceSnapshot();
+			}else if(room != null){
+				sendRoomSnapshot(room);
+			}
+		}
+	}// handleMessage end
+
+
+	/**
+	 * Sends a PrivateMessage to every session of its recipient and to the other
+	 * sessions of this user, found in the username index of the SessionRegistry
+	 * without going through every client. Nothing is shown on the servers window.
+	 * A client without CAP_PRIVATE gets a normal Message marked as private.
+	 * If the recipient has no session that has been sent its mailbox the message is
+	 * handed to the mailbox writer, see 'storePrivateMessage'. The recipient is looked
+	 * up without the mailbox lock, which the writer holds while it waits for the disk,
+	 * so this thread never waits for it. The writer looks again under the lock before
+	 * it stores the message. The client is told if the recipient isn't connected.
+	 * @param pm is the PrivateMessage sent by the client.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendPrivateMessage(PrivateMessage pm) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		String recipient = pm.getRecipient();
+		if(recipient == null){
+			return;
+		}
+		PrivateMessage m = new PrivateMessage(username, recipient, pm.getMessage());
+		MailboxStore mailboxes = server.getMailboxes();
+		Set<ClientSession> sessions = reachableSessions(recipient);
+		if(!sessions.isEmpty()){
+			deliverPrivateMessage(m, sessions);
+			return;
+		}
+		if(mailboxes == null || !mailboxes.submit(() -> storePrivateMessage(m))){
+			deliver(new Message(null, recipient + " ISN'T CONNECTED."), null, new ClientSession[]{this}, client -> true);
+		}
+	}// sendPrivateMessage end
+
+
+	/**
+	 * Run by the mailbox writer. Keeps a PrivateMessage in the recipients mailbox,
+	 * if there is room, unless the recipient has been sent its mailbox since the
+	 * message was handed over, it then gets the message directly. The recipients
+	 * mailbox is locked while the writer looks for the recipient and stores the
+	 * message, so it can't slip in between the mailbox being sent and the recipient
+	 * getting messages directly. Nothing is sent while the lock is held.
+	 * @param m is the PrivateMessage to keep.
+	 */
+	private void storePrivateMessage(PrivateMessage m){
+		MailboxStore mailboxes = server.getMailboxes();
+		String recipient = m.getRecipient();
+		Set<ClientSession> sessions;
+		int stored = 0;
+		try{
+			mailboxes.lock(recipient);
+			try{
+				sessions = reachableSessions(recipient);
+				if(sessions.isEmpty()){
+					stored = mailboxes.store(recipient, BinaryCodec.encodeBody(m));
+				}
+			} finally{
+				mailboxes.unlock(recipient);
+			}
+			if(stored != 0){
+				String notice = stored == MailboxStore.STORED ? " ISN'T CONNECTED, THE MESSAGE IS SENT WHEN THEY CONNECT."
+						: stored == MailboxStore.FULL ? " ISN'T CONNECTED AND THEIR MAILBOX IS FULL." : " ISN'T CONNECTED.";
+				deliver(new Message(null, recipient + notice), null, new ClientSession[]{this}, client -> true);
+				if(stored != MailboxStore.STORED){
+					return;
+				}
+			}
+			deliverPrivateMessage(m, sessions);
+		} catch(IOException | InvalidKeyException | IllegalBlockSizeException e){
+			e.printStackTrace();
+		} catch(SignatureException | BadPaddingException e){
+			e.printStackTrace();
+		}
+	}// storePrivateMessage end
+
+
+	/**
+	 * @param user is the username.
+	 * @return the sessions of the user that have been sent their mailbox.
+	 */
+	private Set<ClientSession> reachableSessions(String user){
+		Set<ClientSession> sessions = new LinkedHashSet<ClientSession>();
+		for(ClientSession client : server.getSessions().getByUsername(user)){
+			if(client.reachable){
+				sessions.add(client);
+			}
+		}
+		return sessions;
+	}// reachableSessions end
+
+
+	/**
+	 * Sends a PrivateMessage to the recipients sessions and the other sessions of this user.
+	 * @param m is the PrivateMessage.
+	 * @param sessions are the recipients sessions, the set is changed.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void deliverPrivateMessage(PrivateMessage m, Set<ClientSession> sessions) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		sessions.addAll(server.getSessions().getByUsername(username));	//Also holds this session
+		sessions.remove(this);
+		ClientSession[] found = sessions.toArray(new ClientSession[0]);
+		deliver(m, null, found, client -> client.usesPrivate);
+		deliver(new Message(username + " (private)", m.getMessage()), null, found, client -> !client.usesPrivate);
+	}// deliverPrivateMessage end
+
+
+	/**
+	 * Joins, leaves or posts to a chat room. Only clients with CAP_ROOMS can use
+	 * rooms, which also needs CAP_PRESENCE for the PresenceMessages of the room.
+	 * @param rm is the RoomMessage sent by the client.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void handleRoomMessage(RoomMessage rm) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		String name = rm.getRoom();
+		if(!RoomRegistry.validName(name)){
+			return;
+		}
+		if(rm.getType() == RoomMessage.JOIN){
+			joinRoom(name);
+		}else if(rm.getType() == RoomMessage.LEAVE){
+			leaveRoom(name);
+		}else if(rm.getType() == RoomMessage.POST){
+			postToRoom(name, rm.getMessage());
+		}
+	}// handleRoomMessage end
+
+
+	/**
+	 * Handles a FileMessage from a client that uses files. The client OFFERs the
+	 * files it sends and the CHUNKs are written to the FileStore. Once a file is
+	 * complete it's OFFERed to its recipients, and a recipient that REQUESTs it is
+	 * sent CHUNKs read from the FileStore as it ACKs them.
+	 * @param fm is the FileMessage sent by the client.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void handleFileMessage(FileMessage fm) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		switch(fm.getType()){
+		case FileMessage.OFFER:
+			recieveFileOffer(fm);
+			break;
+		case FileMessage.CHUNK:
+			recieveFileChunk(fm);
+			break;
+		case FileMessage.REQUEST:
+			startDownload(fm);
+			break;
+		case FileMessage.ACK:
+			Download download = downloads.get(fm.getId());
+			if(download != null){
+				long position = Math.min(fm.getPosition(), download.sent);
+				if(position - download.acked >= FileMessage.CHUNK_SIZE
+						|| (position > download.acked && position == download.transfer.size)){
+					giveBackToken();
+				}
+				download.acked = Math.max(download.acked, position);
+				sendChunks(download);
+			}
+			break;
+		case FileMessage.CANCEL:
+			downloads.remove(fm.getId());
+			break;
+		default:
+			break;
+		}
+	}// handleFileMessage end
+
+
+	/**
+	 * Starts a transfer in the FileStore, or finds the one an earlier session of
+	 * the user started, and tells the client where to send from. A file can't be
+	 * larger than the server allows, and a file sent to everyone goes to the users
+	 * that use files when it's complete. A new file can only be sent to a user
+	 * that is connected, one that disconnects meanwhile gets it when it connects.
+	 * @param fm is the OFFER.
+	 * @throws IOException
+	 */
+	private void recieveFileOffer(FileMessage fm) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		String recipient = fm.getRecipient();
+		if(recipient == null || recipient.equals(username)){
+			sendFileMessage(new FileMessage(FileMessage.CANCEL, fm.getId(), null, null, "NO RECIPIENT", 0, null));
+			return;
+		}
+		if(server.getFiles().get(fm.getId()) == null && !recipient.equals(FileMessage.EVERYONE)
+				&& server.getSessions().getByUsername(recipient).isEmpty()){
+			sendFileMessage(new FileMessage(FileMessage.CANCEL, fm.getId(), null, null,
+					recipient + " ISN'T CONNECTED", 0, null));
+			return;
+		}
+		FileStore.Transfer transfer = server.getFiles().open(fm.getId(), username, recipient,
+				FileMessage.safeName(fm.getName()), fm.getPosition());
+		if(transfer == null){
+			sendFileMessage(new FileMessage(FileMessage.CANCEL, fm.getId(), null, null,
+					"THE FILE IS TOO LARGE, ALREADY BEING SENT OR THE SERVER HAS NO ROOM FOR IT", 0, null));
+			return;
+		}
+		sendFileMessage(new FileMessage(FileMessage.ACCEPT, fm.getId(), transfer.getWritten()));
+		System.out.println("SERVER RECIEVES " + transfer.name + " (" + transfer.size + " bytes) FROM " + username
+				+ (transfer.getWritten() > 0 ? " FROM BYTE " + transfer.getWritten() : ""));
+		if(transfer.getWritten() == transfer.size){
+			completeFile(transfer);
+		}
+	}// recieveFileOffer end
+
+
+	/**
+	 * Writes a chunk of a file the client sends and ACKs it. A chunk that doesn't
+	 * follow the last one cancels the transfer, the client can offer it again.
+	 * @param fm is the CHUNK.
+	 * @throws IOException
+	 */
+	private void recieveFileChunk(FileMessage fm) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		FileStore.Transfer transfer = server.getFiles().get(fm.getId());
+		byte[] data = fm.getData();
+		if(transfer == null || !transfer.sender.equals(username) || data == null
+				|| data.length > FileMessage.CHUNK_SIZE || !transfer.write(fm.getPosition(), data)){
+			sendFileMessage(new FileMessage(FileMessage.CANCEL, fm.getId(), null, null, "CHUNK OUT OF ORDER", 0, null));
+			return;
+		}
+		if(data.length == FileMessage.CHUNK_SIZE || transfer.getWritten() == transfer.size){
+			giveBackToken();
+		}
+		sendFileMessage(new FileMessage(FileMessage.ACK, fm.getId(), transfer.getWritten()));
+		if(transfer.getWritten() == transfer.size){
+			completeFile(transfer);
+		}
+	}// recieveFileChunk end
+
+
+	/**
+	 * Offers a complete file to its recipients, every user that uses files if it's
+	 * sent to everyone. A recipient that isn't connected is offered the file when
+	 * it connects, see 'sendPendingFiles'.
+	 * @param transfer is the complete transfer.
+	 * @throws IOException
+	 */
+	private void completeFile(FileStore.Transfer transfer) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		Set<String> recipients = new HashSet<String>();
+		if(transfer.recipient.equals(FileMessage.EVERYONE)){
+			for(ClientSession session : snapshot()){
+				if(session.hasKeys && session.usesFiles && !session.username.equals(username)){
+					recipients.add(session.username);
+				}
+			}
+		}else{
+			recipients.add(transfer.recipient);
+		}
+		if(!transfer.complete(recipients)){
+			return;
+		}
+		String notice;
+		if(recipients.isEmpty()){
+			server.getFiles().remove(transfer);
+			notice = "NO ONE RECIEVES " + transfer.name;
+		}else{
+			List<ClientSession> sessions = new ArrayList<ClientSession>();
+			for(String recipient : recipients){
+				sessions.addAll(server.getSessions().getByUsername(recipient));
+			}
+			notice = "SERVER HAS RECIEVED " + transfer.name + (sessions.isEmpty()
+					? ", IT'S SENT WHEN " + transfer.recipient + " CONNECTS." : ", IT'S BEING SENT.");
+			deliver(offerOf(transfer), null, sessions.toArray(new ClientSession[0]), client -> client.usesFiles);
+		}
+		System.out.println("SERVER HAS RECIEVED " + transfer.name + " FROM " + username + " FOR "
+				+ recipients.size() + " USERS");
+		deliver(new Message(null, notice), null, new ClientSession[]{this}, client -> true);
+	}// completeFile end
+
+
+	/**
+	 * Starts sending a file the client REQUESTs, from the bytes it already has.
+	 * @param fm is the REQUEST.
+	 * @throws IOException
+	 */
+	private void startDownload(FileMessage fm) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		FileStore.Transfer transfer = server.getFiles().get(fm.getId());
+		if(transfer == null || !transfer.isPendingFor(username)){
+			sendFileMessage(new FileMessage(FileMessage.CANCEL, fm.getId(), null, null, "THE FILE ISN'T AVAILABLE", 0, null));
+			return;
+		}
+		Download download = new Download(transfer, Math.max(0, Math.min(fm.getPosition(), transfer.size)));
+		downloads.put(transfer.id, download);
+		sendChunks(download);
+	}// startDownload end
+
+
+	/**
+	 * Sends the next chunks of a download, at most WINDOW of them ahead of what
+	 * the client has ACKed, so a download never holds more than that in the
+	 * outbound queue and chat messages get in between the chunks.
+	 * A download the client has ACKed all of is done.
+	 * @param download is the download.
+	 * @throws IOException
+	 */
+	private void sendChunks(Download download) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		FileStore.Transfer transfer = download.transfer;
+		if(download.acked == transfer.size){
+			downloads.remove(transfer.id);
+			server.getFiles().recieved(transfer, username);
+			System.out.println("SERVER HAS SENT " + transfer.name + " TO " + username);
+			return;
+		}
+		while(download.sent < transfer.size
+				&& download.sent - download.acked < (long) FileMessage.WINDOW * FileMessage.CHUNK_SIZE){
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FileMessage.CHUNK_SIZE, transfer.size - download.sent));
+			int read;
+			try{
+				read = transfer.read(download.sent, buffer);
+			} catch(IOException e){		//Closed if the transfer was removed meanwhile
+				read = 0;
+			}
+			if(read < buffer.capacity()){
+				downloads.remove(transfer.id);
+				sendFileMessage(new FileMessage(FileMessage.CANCEL, transfer.id, null, null, "THE FILE ISN'T AVAILABLE", 0, null));
+				return;
+			}
+			sendFileMessage(new FileMessage(FileMessage.CHUNK, transfer.id, null, null, null, download.sent, buffer.array()));
+			download.sent += read;
+		}
+	}// sendChunks end
+
+
+	/**
+	 * @param transfer is a complete transfer.
+	 * @return the OFFER of the file to its recipients.
+	 */
+	private static FileMessage offerOf(FileStore.Transfer transfer){
+		return new FileMessage(FileMessage.OFFER, transfer.id, transfer.sender, transfer.recipient,
+				transfer.name, transfer.size, null);
+	}// offerOf end
+
+
+	/**
+	 * Sends a FileMessage to this sessions client only.
+	 * @param fm is the FileMessage.
+	 * @throws IOException
+	 */
+	private void sendFileMessage(FileMessage fm) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		deliver(fm, null, new ClientSession[]{this}, client -> true);
+	}// sendFileMessage end
+
+
+	/**
+	 * Adds this session to a room, creating the room if it's new. The other
+	 * members get the user that joined and the client gets every member.
+	 * @param name is the name of the room.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void joinRoom(String name) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		if(rooms.size() >= MAX_ROOMS || rooms.contains(name)){
+			return;
+		}
+		Room room = server.getRooms().open(name);
+		try{
+			long version = room.add(this);
+			if(version == 0){
+				return;
+			}
+			rooms.add(name);
+			PresenceMessage joined = new PresenceMessage(PresenceMessage.JOINED, version, name);
+			joined.add(id, username);
+			deliver(joined, null, room.getMembers(), client -> client != this);
+			sendRoomSnapshot(room);
+		} finally{
+			room.unlock();
+		}
+	}// joinRoom end
+
+
+	/**
+	 * Removes this session from a room, the other members get the user that left.
+	 * The room is closed when its last member leaves.
+	 * @param name is the name of the room.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void leaveRoom(String name) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		Room room = server.getRooms().get(name);
+		if(room == null){
+			return;
+		}
+		room.lock();
+		try{
+			long version = room.remove(this);
+			if(version == 0){
+				return;
+			}
+			rooms.remove(name);
+			PresenceMessage left = new PresenceMessage(PresenceMessage.LEFT, version, name);
+			left.add(id, username);
+			deliver(left, null, room.getMembers(), client -> true);
+			if(room.getMembers().length == 0){
+				server.getRooms().close(room);
+			}
+		} finally{
+			room.unlock();
+		}
+	}// leaveRoom end
+
+
+	/**
+	 * Leaves every room when the session closes.
+	 */
+	private void leaveRooms(){
+		for(String name : rooms){
+			try{
+				leaveRoom(name);
+			} catch(SignatureException | IllegalBlockSizeException | BadPaddingException e){
+				e.printStackTrace();
+			} catch(InvalidKeyException | IOException e){
+				e.printStackTrace();
+			}
+		}
+	}// leaveRooms end
+
+
+	/**
+	 * Sends a post to the members of a room, and to no one else.
+	 * The post is sent with this sessions username.
+	 * @param name is the name of the room.
+	 * @param text is the text posted.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void postToRoom(String name, String text) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		Room room = server.getRooms().get(name);
+		if(room == null || !rooms.contains(name)){
+			return;
+		}
+		room.posted();
+		deliver(new RoomMessage(RoomMessage.POST, name, username, text), null, room.getMembers(), client -> true);
+	}// postToRoom end
+
+
+	/**
+	 * Sends this sessions client every member of a room, with the rooms version.
+	 * Called when the client joins the room or has missed a change.
+	 * @param room is a room this session is a member of.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendRoomSnapshot(Room room) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		room.lock();
+		try{
+			if(!rooms.contains(room.getName()) || room.isClosed()){
+				return;
+			}
+			PresenceMessage snapshot = new PresenceMessage(PresenceMessage.SNAPSHOT, room.getVersion(), room.getName());
+			for(ClientSession member : room.getMembers()){
+				snapshot.add(member.id, member.username);
+			}
+			deliver(snapshot, null, new ClientSession[]{this}, client -> true);
+		} finally{
+			room.unlock();
+		}
+	}// sendRoomSnapshot end
+
+
+	/**
+	 * Broadcasts a successful connection message, the users name is already saved.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IOException
+	 * @throws IllegalBlockSizeException
+	 */
+	private void sendConnectMessage(String username) throws InvalidKeyException,
+	SignatureException, IOException, IllegalBlockSizeException, BadPaddingException{
+		String connectMessage = username + " CONNECTED " + Server.dateFormat.format(new Date());
+		broadcast(new Message(null, connectMessage));
+	}// sendConnectMessage end
+
+
+	/**
+	 * Adds this session to the user list the clients have been sent and updates the
+	 * servers userlist. The client gets a snapshot of the list, the other clients
+	 * only get the user that joined. Clients without CAP_PRESENCE get the whole list.
+	 * The version and snapshot are taken under the presence lock and queued under it
+	 * too, so every client gets the changes in order. Only if queueing may wait for a
+	 * slow client are they queued after the lock is released, so that client doesn't
+	 * hold up every join and leave. A client that then gets the changes out of order
+	 * asks for a new snapshot, see UserRoster.
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws SignatureException
+	 */
+	private void announceJoin() throws IOException,
+	InvalidKeyException, IllegalBlockSizeException, SignatureException, BadPaddingException{
+		PresenceMessage joined;
+		PresenceMessage snapshot = null;
+		boolean ordered = !server.getConfig().sendsMayBlock();
+		ReentrantLock presenceLock = server.getPresenceLock();
+		presenceLock.lock();
+		try{
+			present = true;
+			joined = new PresenceMessage(PresenceMessage.JOINED, server.nextPresenceVersion());
+			joined.add(id, username);
+			if(presence){
+				snapshot = presenceSnapshot();
+			}
+			if(ordered){
+				sendJoin(joined, snapshot);
+			}
+		} finally{
+			presenceLock.unlock();
+		}
+		if(!ordered){
+			sendJoin(joined, snapshot);
+		}
+		sendUserList();
+		server.listener.usersChanged(getUsernames());
+	}// announceJoin end
+
+
+	/**
+	 * Sends the user that joined to the other clients and the snapshot to this client.
+	 * @param joined is the change sent to the others.
+	 * @param snapshot is sent to this client, null if it doesn't use CAP_PRESENCE.
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws SignatureException
+	 */
+	private void sendJoin(PresenceMessage joined, PresenceMessage snapshot) throws IOException,
+	InvalidKeyException, IllegalBlockSizeException, SignatureException, BadPaddingException{
+		broadcast(joined, null, client -> client.present && client.presence && client != this);
+		if(snapshot != null){
+			broadcast(snapshot, null, client -> client == this);
+		}
+	}// sendJoin end
+
+
+	/**
+	 * Removes this session from the user list the clients have been sent,
+	 * the other clients only get the user that left. Queued under the presence
+	 * lock unless that may wait, like in 'announceJoin'.
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws SignatureException
+	 */
+	private void announceLeave() throws IOException,
+	InvalidKeyException, IllegalBlockSizeException, SignatureException, BadPaddingException{
+		PresenceMessage left;
+		boolean ordered = !server.getConfig().sendsMayBlock();
+		ReentrantLock presenceLock = server.getPresenceLock();
+		presenceLock.lock();
+		try{
+			if(!present){
+				return;
+			}
+			present = false;
+			left = new PresenceMessage(PresenceMessage.LEFT, server.nextPresenceVersion());
+			left.add(id, username);
+			if(ordered){
+				broadcast(left, null, client -> client.present && client.presence);
+			}
+		} finally{
+			presenceLock.unlock();
+		}
+		if(!ordered){
+			broadcast(left, null, client -> client.present && client.presence);
+		}
+		sendUserList();
+	}// announceLeave end
+
+
+	/**
+	 * Sends this sessions client every user in the list, with the current version.
+	 * Called when the client joins or has missed a change.
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws SignatureException
+	 */
+	private void sendPresenceSnapshot() throws IOException,
+	InvalidKeyException, IllegalBlockSizeException, SignatureException, BadPaddingException{
+		PresenceMessage snapshot;
+		boolean ordered = !server.getConfig().sendsMayBlock();
+		ReentrantLock presenceLock = server.getPresenceLock();
+		presenceLock.lock();
+		try{
+			if(!present){
+				return;
+			}
+			snapshot = presenceSnapshot();
+			if(ordered){
+				broadcast(snapshot, null, client -> client == this);
+			}
+		} finally{
+			presenceLock.unlock();
+		}
+		if(!ordered){
+			broadcast(snapshot, null, client -> client == this);
+		}
+	}// sendPresenceSnapshot end
+
+
+	/**
+	 * Called under the presence lock.
+	 * @return every user in the list, with the current version.
+	 */
+	private PresenceMessage presenceSnapshot(){
+		PresenceMessage snapshot = new PresenceMessage(PresenceMessage.SNAPSHOT, server.getPresenceVersion());
+		for(ClientSession session : snapshot()){
+			if(session.present){
+				snapshot.add(session.id, session.username);
+			}
+		}
+		return snapshot;
+	}// presenceSnapshot end
+
+
+	/**
+	 * Sends the whole user list to the clients without CAP_PRESENCE, if there are any.
+	 * They have no version to notice an older list with, so the list is sent again
+	 * if the user list changed while it was sent, and the last list sent is the current one.
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws SignatureException
+	 */
+	private void sendUserList() throws IOException,
+	InvalidKeyException, IllegalBlockSizeException, SignatureException, BadPaddingException{
+		for(ClientSession session : snapshot()){
+			if(session.present && !session.presence){
+				ReentrantLock presenceLock = server.getPresenceLock();
+				long version;
+				String users;
+				do{
+					presenceLock.lock();
+					try{
+						version = server.getPresenceVersion();
+						users = getPresentUsernames();
+					} finally{
+						presenceLock.unlock();
+					}
+					broadcast(new UserListMessage(users), null, client -> client.present && !client.presence);
+				}while(version != server.getPresenceVersion());
+				return;
+			}
+		}
+	}// sendUserList end
+
+
+	/**
+	 * Removes the session from the SessionRegistry.
+	 * Shows a DisconnectMessage on the Server and sends it to all connected users.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IOException
+	 * @throws IllegalBlockSizeException
+	 */
+	private void removeUserAndUpdateGUI() throws InvalidKeyException, SignatureException,
+	IOException, IllegalBlockSizeException, BadPaddingException{
+		server.getSessions().remove(this);
+
+		String disconnectMessage = username + " DISCONNECTED " + Server.dateFormat.format(new Date());
+		Message m = new Message(null,disconnectMessage);
+		if(hasKeys){
+			broadcast(m);
+			if(relay){
+				DirectoryMessage left = new DirectoryMessage();
+				left.add(id, username, null);
+				broadcastDirectory(left);
+			}
+			announceLeave();
+		}else{
+			appendToServerWindow(m);
+		}
+
+		server.listener.usersChanged(getUsernames());
+		server.setUserCount();
+	}// removeUserAndUpdateGUI end
+
+
+	/**
+	 * Sends a DisconnectMessage to the client. This makes the client close its
+	 * resources. The message is sent both Signed and Sealed if keys have been
+	 * exchanged successfully. Otherwise a plain DisconnectMessage is sent.
+	 */
+	void disconnectClient(){
+		hasClient = false;
+		try{
+			if(hasKeys && sessionCipher != null){
+				sendSession(BinaryCodec.encodeBody(new Message(null, "SERVER HAS DISCONNECTED")));
+				sendSession(BinaryCodec.encodeBody(new DisconnectMessage()));
+			}else if(hasKeys){
+				send(seal(new Message(null, "SERVER HAS DISCONNECTED"), protocol));
+				send(seal(new DisconnectMessage(), protocol));
+			}else{
+				send(new DisconnectMessage());
+			}
+		} catch(SignatureException | IllegalBlockSizeException | BadPaddingException e){
+			e.printStackTrace();
+		} catch(InvalidKeyException | IOException e){
+			e.printStackTrace();
+		}
+	}// disconnectClient end
+
+
+	/**
+	 * Shows a message on the servers main window, or wherever the ServerListener
+	 * shows it. Called by method 'broadcast'.
+	 * @param m is the Message to be appended.
+	 */
+	private void appendToServerWindow(Message m){
+		if(m.getUser() == null){//Null if its from server
+			server.listener.messageShown(m.getMessage());
+		}else{
+			server.listener.messageShown(m.getUser() + ": " + m.getMessage());
+		}
+	}// appendToServerWindow end
+
+
+	/**
+	 * Signs and encrypts a message for one protocol.
+	 * The server signs with its own key, the CryptoEvents carry the session that sends the message.
+	 * @param m is the Message, UserListMessage or DisconnectMessage to seal.
+	 * @param protocol is the protocol the result is sent with.
+	 * @return a SealedObject or a SealedBytes.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private Object seal(Serializable m, int protocol) throws InvalidKeyException,
+	SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		if(protocol == FrameCodec.PROTOCOL_BINARY){
+			return sealBody(BinaryCodec.encodeBody(m));
+		}
+		long start = System.nanoTime();
+		CryptoEvent event = new CryptoEvent(CryptoEvent.SIGN, id, username);
+		event.begin();
+		SignedObject signed = sender.createSignedObject(m);
+		event.commit();
+		long signedAt = System.nanoTime();
+		event = new CryptoEvent(CryptoEvent.SEAL, id, username);
+		event.begin();
+		SealedObject sealed = sender.createSealedObject(signed);
+		event.commit();
+		metrics.signed(signedAt - start);
+		metrics.sealed(System.nanoTime() - signedAt);
+		return sealed;
+	}// seal end
+
+
+	/**
+	 * Signs and encrypts an encoded body for the binary protocol, like 'seal'.
+	 * @param body is the body encoded by BinaryCodec, compressed or not.
+	 * @return the SealedBytes.
+	 * @throws InvalidKeyException
+	 * @throws SignatureException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	private SealedBytes sealBody(byte[] body) throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException{
+		long start = System.nanoTime();
+		CryptoEvent event = new CryptoEvent(CryptoEvent.SIGN, id, username);
+		event.begin();
+		SignedBytes signed = sender.signBody(body);
+		event.commit();
+		long signedAt = System.nanoTime();
+		event = new CryptoEvent(CryptoEvent.SEAL, id, username);
+		event.begin();
+		SealedBytes sealed = sender.createSealedBytes(signed);
+		event.commit();
+		metrics.signed(signedAt - start);
+		metrics.sealed(System.nanoTime() - signedAt);
+		return sealed;
+	}// sealBody end
+
+
+	/**
+	 * Compresses a body for this sessions client if it accepts compressed bodies.
+	 * @param body is the body encoded by BinaryCodec.
+	 * @return the body to seal.
+	 */
+	private byte[] pack(byte[] body){
+		return compress ? server.getCompressor().compress(body) : body;
+	}// pack end
+
+
+	/**
+	 * Sends a Message or UserListMessage to all clients, a Message is also
+	 * shown on the servers main window.
+	 * Clients that are still exchanging keys are skipped, they can't decrypt
+	 * the message yet and get the user list when their own exchange is done.
+	 * The list is copied under the lock and the frames are queued after it's
+	 * released, a client with a full queue then never holds up joins and leaves.
+	 * The message is sealed and encoded at most once per protocol and the same
+	 * Frame is queued for every client speaking that protocol. Clients in the
+	 * AEAD session mode share the encoded body, which is then sealed with each
+	 * clients own key. That costs microseconds, an RSA signature costs milliseconds.
+	 * @param m is the unencrypted message.
+	 * @throws IOException
+	 */
+	private void broadcast(Serializable m) throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		broadcast(m, null, client -> true);
+	}// broadcast end
+
+
+	/**
+	 * Like 'broadcast' above, but clients in the relay session mode get the message
+	 * as the sending client sealed it. If every client is in the relay or AEAD mode
+	 * the server doesn't sign anything. A Message is shown on the servers main window,
+	 * and if it's from a user it's appended to the HistoryLog. The body encoded for the
+	 * log is the one sealed for the clients in the AEAD session mode.
+	 * @param m is the unencrypted message.
+	 * @param relayed is the message as the client sealed it, null if it can't be relayed.
+	 * @param to selects the clients that get the message.
+	 * @throws IOException
+	 */
+	private void broadcast(Serializable m, RelayedBytes relayed, Predicate<ClientSession> to) throws
+	InvalidKeyException, SignatureException, IllegalBlockSizeException, BadPaddingException, IOException{
+		byte[] body = null;
+		if(m instanceof Message){
+			appendToServerWindow((Message) m);
+			HistoryLog history = server.getHistory();
+			if(history != null && ((Message) m).getUser() != null){
+				body = BinaryCodec.encodeBody(m);
+				history.append(body);
+			}
+		}
+		deliver(m, body, relayed, snapshot(), to);
+	}// broadcast end
+
+
+	/**
+	 * Sends a message to some of the clients, the way 'broadcast' does.
+	 * Used for chat rooms and private messages, where only the rooms members
+	 * or the users sessions are gone through. Nothing is shown on the servers window.
+	 * @param m is the unencrypted message.
+	 * @param relayed is the message as the client sealed it, null if it can't be relayed.
+	 * @param recipients are the clients to go through.
+	 * @param to selects the clients among them that get the message.
+	 * @throws IOException
+	 */
+	private void deliver(Serializable m, RelayedBytes relayed, ClientSession[] recipients,
+			Predicate<ClientSession> to) throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		deliver(m, null, relayed, recipients, to);
+	}// deliver end
+
+
+	/**
+	 * Like 'deliver' above, with the body already encoded.
+	 * The whole fan-out is timed, and the seal of the first client in the AEAD
+	 * session mode, which keeps timing from adding to the cost of each recipient.
+	 * The fan-out is also a BroadcastEvent, with the number of recipients and the
+	 * time spent waiting for their send locks.
+	 * The body is compressed at most once and shared by the clients that accept it.
+	 * Relayed messages are sent as the client sealed them, never compressed, see Client.
+	 * @param body is the message encoded by BinaryCodec, null if it hasn't been encoded.
+	 * @throws IOException
+	 */
+	private void deliver(Serializable m, byte[] body, RelayedBytes relayed, ClientSession[] recipients,
+			Predicate<ClientSession> to) throws InvalidKeyException, SignatureException,
+	IllegalBlockSizeException, BadPaddingException, IOException{
+		long start = System.nanoTime();
+		BroadcastEvent event = new BroadcastEvent();
+		event.begin();
+		boolean sealTimed = false;
+		int sent = 0;
+		long lockWait = 0;
+		Frame[] frames = new Frame[FrameCodec.PROTOCOLS];
+		Frame relayFrame = null;
+		Frame packedFrame = null;
+		byte[] packed = null;
+	    for(ClientSession client : recipients){
+	    	if(!to.test(client)){
+	    		continue;
+	    	}
+	    	if(client.hasKeys && client.sessionCipher != null){
+	    		if(body == null){
+	    			body = BinaryCodec.encodeBody(m);
+	    		}
+	    		if(client.compress && packed == null){
+	    			packed = server.getCompressor().compress(body);
+	    		}
+	    		lockWait += client.sendSession(client.compress ? packed : body, !sealTimed);
+	    		sealTimed = true;
+	    	}else if(client.hasKeys && client.relay && relayed != null){
+	    		if(relayFrame == null){
+	    			relayFrame = Frame.of(relayed, FrameCodec.PROTOCOL_BINARY);
+	    		}
+	    		lockWait += client.sendInOrder(relayFrame);
+	    	}else if(client.hasKeys && client.compress){
+	    		if(packedFrame == null){
+	    			if(body == null){
+	    				body = BinaryCodec.encodeBody(m);
+	    			}
+	    			if(packed == null){
+	    				packed = server.getCompressor().compress(body);
+	    			}
+	    			packedFrame = Frame.of(sealBody(packed), FrameCodec.PROTOCOL_BINARY);
+	    		}
+	    		client.getConnection().send(packedFrame);
+	    	}else if(client.hasKeys){
+	    		int p = client.protocol;
+	    		if(frames[p] == null){
+	    			frames[p] = Frame.of(seal(m, p), p);
+	    		}
+	    		client.getConnection().send(frames[p]);
+	    	}else{
+	    		continue;
+	    	}
+	    	sent++;
+		}
+	    metrics.fannedOut(System.nanoTime() - start);
+	    if(event.shouldCommit()){
+	    	event.sessionId = id;
+	    	event.username = username;
+	    	event.messageType = m.getClass().getSimpleName();
+	    	event.recipients = sent;
+	    	event.lockWait = lockWait;
+	    	event.commit();
+	    }
+	}// deliver end
+
+
+	/**
+	 * Encodes an object and sends it to this sessions client only.
+	 * @param obj is the object to send.
+	 * @throws IOException
+	 */
+	private void send(Object obj) throws IOException{
+		connection.send(Frame.of(obj, protocol));
+	}// send end
+
+
+	/**
+	 * Seals a body with this sessions key and sends it to this sessions client.
+	 * The lock makes sure the frames are queued in the order of their sequence numbers.
+	 * @param body is the encoded message.
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	private void sendSession(byte[] body) throws InvalidKeyException, IllegalBlockSizeException,
+	BadPaddingException, IOException{
+		sendSession(body, false);
+	}// sendSession end
+
+
+	/**
+	 * Like 'sendSession' above, the seal is timed for the ServerMetrics if asked to.
+	 * The seal is a CryptoEvent of this session, the one it's sealed for.
+	 * @param timed is true if the seal should be timed.
+	 * @return the nanoseconds spent waiting for the lock.
+	 */
+	private long sendSession(byte[] body, boolean timed) throws InvalidKeyException, IllegalBlockSizeException,
+	BadPaddingException, IOException{
+		long lockWait = lockSend();
+		try{
+			long start = timed ? System.nanoTime() : 0;
+			CryptoEvent event = new CryptoEvent(CryptoEvent.SEAL, id, username);
+			event.begin();
+			SessionBytes sealed = sessionCipher.seal(body);
+			event.commit();
+			if(timed){
+				metrics.sealed(System.nanoTime() - start);
+			}
+			connection.send(Frame.of(sealed, protocol));
+		} finally{
+			sendLock.unlock();
+		}
+		return lockWait;
+	}// sendSession end
+
+
+	/**
+	 * Sends a frame to this sessions client once its directory has been queued,
+	 * so it never gets a relayed message from a user it doesn't know yet.
+	 * @param frame is the frame to send.
+	 * @return the nanoseconds spent waiting for the lock.
+	 * @throws IOException
+	 */
+	private long sendInOrder(Frame frame) throws IOException{
+		long lockWait = lockSend();
+		try{
+			connection.send(frame);
+		} finally{
+			sendLock.unlock();
+		}
+		return lockWait;
+	}// sendInOrder end
+
+
+	/**
+	 * Takes the send lock. The clock is only read if another thread holds it.
+	 * @return the nanoseconds spent waiting for the lock, 0 if it was free.
+	 */
+	private long lockSend(){
+		if(sendLock.tryLock()){
+			return 0;
+		}
+		long start = System.nanoTime();
+		sendLock.lock();
+		return System.nanoTime() - start;
+	}// lockSend end
+
+
+	/**
+	 * Sends the servers PublicKey to its client.
+	 * Does this by turning the public key into a byte array that is converted into
+	 * a String base64 and sent in a KeyMessage object, offering CAP_ECDH if the
+	 * ServerConfig allows it.
+	 * No lock is needed, the Connection keeps concurrent writes apart.
+	 * @throws IOException
+	 */
+	private void sendServerPublicKey() throws IOException{
+		String keyText = Base64.getEncoder().encodeToString(Server.publicKey.getEncoded());
+		int capabilities = server.getConfig().allowsEcdh() ? KeyMessage.CAP_ECDH : 0;
+		send(new KeyMessage("SERVER", keyText, KeyMessage.PUBLIC_KEY, capabilities));
+		System.out.println("SERVER SENDS ITS PUBLIC KEY");
+	}// sendPublicKey end
+
+
+	/**
+	 * Sends the servers Symmetric-/SecretKey to the client, or the sessions own key
+	 * flagged with CAP_AEAD when the AEAD session mode is used.
+	 * The relay session mode uses the shared key, flagged with CAP_RELAY.
+	 * Encrypts the keys byte array using the clients PublicKey.
+	 * Then encodes it into a base64 String storing it in a
+	 * KeyMessage object and sending it to the user.
+	 * @throws InvalidKeyException
+	 * @throws IOException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	private void sendSymmetricKey() throws InvalidKeyException, IOException,
+	IllegalBlockSizeException, BadPaddingException{
+		cipherKeyPair.init(Cipher.ENCRYPT_MODE, clientPublicKey);
+		SecretKey key = sessionKey != null ? sessionKey : Server.secretKey;
+		byte[] keyBytes = cipherKeyPair.doFinal(key.getEncoded());
+		String keyText = new String(Base64.getEncoder().encode(keyBytes));
+		int capabilities = sessionKey != null ? KeyMessage.CAP_AEAD : relay ? KeyMessage.CAP_RELAY : 0;
+		capabilities |= acceptedCapabilities();
+		send(new KeyMessage(null, keyText, KeyMessage.SECRET_KEY, capabilities));
+		System.out.println("SERVER SENDS THE SYMMETRIC KEY");
+	}// sendSymmetricKey end
+
+
+
+	/**
+	 * Decodes the base64 String sent by the client, turning it into a byte array.
+	 * The array is then used to generate the clients PublicKey.
+	 * @param km is the KeyMessage sent by the client.
+	 * @return true if the server can retrieve the key, false otherwise.
+	 */
+	private boolean recieveClientPublicKey(KeyMessage km){
+		try {
+			byte[] publicKeyBytes = Base64.getDecoder().decode(km.getKey());
+			KeyFactory keyFactory = KeyFactory.getInstance(Server.KEY_PAIR_ALGO);
+			EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKeyBytes);
+			clientPublicKey = keyFactory.generatePublic(publicKeySpec);
+			System.out.println("SERVER SAVES CLIENTS PUBLIC KEY");
+			return true;
+		} catch (NoSuchAlgorithmException | IllegalArgumentException | InvalidKeySpecException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}// recieveClientPublicKey end
+
+
+	/**
+	 * A file being sent to this sessions client, with the bytes sent and the
+	 * bytes the client has ACKed.
+	 */
+	private static class Download {
+
+		private final FileStore.Transfer transfer;
+		private long sent;
+		private long acked;
+
+		private Download(FileStore.Transfer transfer, long offset){
+			this.transfer = transfer;
+			this.sent = offset;
+			this.acked = offset;
+		}
+
+	}// Download end
+
+
+
+}// ClientSession end
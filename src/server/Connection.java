@@ -0,0 +1,37 @@
+package server;
+import java.io.IOException;
+import message.Frame;
+
+/**
+ * The transport underneath a ClientSession.
+ * Implemented by ServerThread, which blocks on a Socket, and by NioConnection,
+ * which is driven by one of the server's event loops.
+ * 
+ * @author Tomas
+ */
+interface Connection {
+
+	/**
+	 * Queues a frame for the client. May be called from any thread and
+	 * never waits for the socket. If the clients OutboundQueue is full its
+	 * overflow policy decides what happens.
+	 * The same Frame may be queued for many clients, it's never changed.
+	 * @param frame is the encoded object to send.
+	 * @throws IOException if the frame couldn't be written.
+	 */
+	void send(Frame frame) throws IOException;
+	
+	
+	/**
+	 * @return the queue holding objects that haven't been written yet.
+	 */
+	OutboundQueue getOutboundQueue();
+	
+	
+	/**
+	 * Closes the connection and its resources. Objects already passed to 
+	 * send are written before the connection is closed, when possible.
+	 */
+	void close();
+	
+}// Connection end
@@ -0,0 +1,28 @@
+package server;
+
+/**
+ * Prints what happens on a server started without a GUI. The user list
+ * isn't printed, only the number of clients when it changes.
+ *
+ * @author Tomas
+ */
+class ConsoleServerListener implements ServerListener {
+
+	@Override
+	public void messageShown(String text){
+		System.out.println(text);
+	}
+
+
+	@Override
+	public void usersChanged(String usernames){
+		//The joins and leaves are already shown as messages
+	}
+
+
+	@Override
+	public void userCountChanged(int count){
+		System.out.println("SERVER HAS " + count + " CLIENTS");
+	}
+
+}// ConsoleServerListener end
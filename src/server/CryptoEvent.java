@@ -0,0 +1,51 @@
+package server;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Flight Recorder event for one crypto step of a message on the server,
+ * a Verifier or SessionCipher call. The session is the one the message came
+ * from, or the one it's sealed for. Only steps over the threshold are recorded
+ * by default, an AEAD seal takes about a microsecond and happens for every recipient.
+ *
+ * @author Tomas
+ */
+@Name("securechat.Crypto")
+@Label("Crypto")
+@Category({"SecureChat", "Server"})
+@Description("Decrypting, verifying, signing or sealing a message")
+@StackTrace(false)
+@Threshold("100 us")
+class CryptoEvent extends jdk.jfr.Event {
+
+	static final String DECRYPT = "decrypt";
+	static final String VERIFY = "verify";
+	static final String SIGN = "sign";
+	static final String SEAL = "seal";
+
+	@Label("Session ID")
+	int sessionId;
+
+	@Label("Username")
+	String username;
+
+	@Label("Stage")
+	String stage;
+
+
+	/**
+	 * @param stage is DECRYPT, VERIFY, SIGN or SEAL.
+	 * @param sessionId is the ID of the session.
+	 * @param username is the sessions user, null while the keys are exchanged.
+	 */
+	CryptoEvent(String stage, int sessionId, String username){
+		this.stage = stage;
+		this.sessionId = sessionId;
+		this.username = username;
+	}// constructor end
+
+}// CryptoEvent end
@@ -0,0 +1,365 @@
+package server;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the files users send while they are being sent, one spool file for each
+ * transfer on disk. The sender writes its chunks to the file as they arrive and
+ * the recipients are sent chunks read from it, each at its own pace, so a file
+ * is never held in memory and isn't copied for each recipient.
+ * A transfer is kept until every recipient has the whole file, and a transfer
+ * nothing has been written to or read from for a while is deleted. A sender or
+ * recipient that reconnects before that continues where it stopped. The spool
+ * files are deleted when the server closes, and left over ones when it starts.
+ *
+ * A user can only have a few transfers on the server at a time, and the sizes
+ * of all the transfers together are limited, so the disk can't be filled by
+ * files that are never finished or sent to users that never connect.
+ *
+ * @author Tomas
+ */
+class FileStore {
+
+	private static final String SUFFIX = ".spool";
+
+	private File dir;
+	private long maxBytes;
+	private long maxSpoolBytes;
+	private int maxPerSender;
+	private long expiryNanos;
+	private ConcurrentHashMap<Long, Transfer> transfers;
+	private ReentrantLock openLock;		//a transfer is counted against the limits and added at once
+	private AtomicLong spooled;			//the sizes of every transfer together
+	private AtomicLong bytesIn;
+	private AtomicLong bytesOut;
+	private AtomicLong completed;
+
+
+	/**
+	 * Opens the spool directory, creating it if it doesn't exist.
+	 * @param dir is the directory of the spool files.
+	 * @param maxBytes is the size of the largest file that may be sent.
+	 * @param maxSpoolBytes is the size all the files on the server together may have.
+	 * @param maxPerSender is the number of transfers a user may have.
+	 * @param expiryMillis is how long a transfer nothing happens to is kept.
+	 * @throws IOException if the directory can't be created.
+	 */
+	FileStore(File dir, long maxBytes, long maxSpoolBytes, int maxPerSender, long expiryMillis) throws IOException{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.maxSpoolBytes = maxSpoolBytes;
+		this.maxPerSender = maxPerSender;
+		this.expiryNanos = TimeUnit.MILLISECONDS.toNanos(expiryMillis);
+		this.transfers = new ConcurrentHashMap<Long, Transfer>();
+		this.openLock = new ReentrantLock();
+		this.spooled = new AtomicLong();
+		this.bytesIn = new AtomicLong();
+		this.bytesOut = new AtomicLong();
+		this.completed = new AtomicLong();
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Can't create the file directory " + dir);
+		}
+		File[] left = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		for(File file : left == null ? new File[0] : left){
+			file.delete();
+		}
+	}// constructor end
+
+
+	/**
+	 * Starts a transfer, or finds the one the sender started earlier.
+	 * Transfers that have stalled are deleted first.
+	 * @param id is the ID the sender chose for the transfer.
+	 * @param sender is the user sending the file.
+	 * @param recipient is the user it's sent to, or FileMessage.EVERYONE.
+	 * @param name is the name of the file, without directories.
+	 * @param size is the size of the file.
+	 * @return the transfer, null if the file is too large, the ID is another users,
+	 * the sender already has as many transfers as it may or there is no room for the file.
+	 * @throws IOException if the spool file can't be created.
+	 */
+	Transfer open(long id, String sender, String recipient, String name, long size) throws IOException{
+		if(size < 0 || size > maxBytes){
+			return null;
+		}
+		expire();
+		openLock.lock();
+		try{
+			Transfer transfer = transfers.get(id);
+			if(transfer != null){
+				if(!transfer.sender.equals(sender) || transfer.size != size){
+					return null;
+				}
+				transfer.touch();
+				return transfer;
+			}
+			int sent = 0;
+			for(Transfer other : transfers.values()){
+				if(other.sender.equals(sender)){
+					++sent;
+				}
+			}
+			if(sent >= maxPerSender || spooled.get() + size > maxSpoolBytes){
+				return null;
+			}
+			File file = new File(dir, Long.toHexString(id) + SUFFIX);
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			transfer = new Transfer(id, sender, recipient, name, size, file, channel);
+			transfers.put(id, transfer);
+			spooled.addAndGet(size);
+			return transfer;
+		} finally{
+			openLock.unlock();
+		}
+	}// open end
+
+
+	/**
+	 * Deletes the transfers nothing has been written to or read from for longer
+	 * than they are kept, a sender or recipient that comes back later has to start over.
+	 */
+	private void expire(){
+		long now = System.nanoTime();
+		for(Transfer transfer : transfers.values()){
+			if(now - transfer.lastActive > expiryNanos){
+				remove(transfer);
+				System.out.println("SERVER DELETES " + transfer.name + " FROM " + transfer.sender
+						+ ", NOTHING HAPPENED TO IT FOR TOO LONG");
+			}
+		}
+	}// expire end
+
+
+	/**
+	 * @param id is the ID of a transfer.
+	 * @return the transfer, null if there is none with the ID.
+	 */
+	Transfer get(long id){
+		return transfers.get(id);
+	}// get end
+
+
+	/**
+	 * @param user is a username.
+	 * @return the finished transfers the user hasn't recieved the whole of yet.
+	 */
+	List<Transfer> pendingFor(String user){
+		expire();
+		List<Transfer> pending = new ArrayList<Transfer>();
+		for(Transfer transfer : transfers.values()){
+			if(transfer.isPendingFor(user)){
+				pending.add(transfer);
+			}
+		}
+		return pending;
+	}// pendingFor end
+
+
+	/**
+	 * Marks that a user has the whole file, the transfer is deleted when no
+	 * recipient is left.
+	 * @param transfer is the transfer.
+	 * @param user is the recipient.
+	 */
+	void recieved(Transfer transfer, String user){
+		transfer.pending.remove(user);
+		if(transfer.pending.isEmpty()){
+			remove(transfer);
+		}
+	}// recieved end
+
+
+	/**
+	 * Deletes a transfer and its spool file.
+	 * @param transfer is the transfer.
+	 */
+	void remove(Transfer transfer){
+		if(transfers.remove(transfer.id, transfer)){
+			spooled.addAndGet(-transfer.size);
+			transfer.close();
+		}
+	}// remove end
+
+
+	/**
+	 * Deletes every transfer, used when the server closes.
+	 */
+	void close(){
+		for(Transfer transfer : transfers.values()){
+			remove(transfer);
+		}
+	}// close end
+
+
+	@Override
+	public String toString(){
+		return "FileStore " + dir + ": " + transfers.size() + " transfers of " + spooled.get() + " bytes, "
+				+ completed.get() + " files recieved, "
+				+ bytesIn.get() + " bytes in, " + bytesOut.get() + " bytes out";
+	}// toString end
+
+
+	/**
+	 * One file on its way from a sender to its recipients. Only the senders
+	 * session writes to it, and its recipients only read from it once it's
+	 * complete, using the position of each read so they don't share one.
+	 */
+	class Transfer {
+
+		final long id;
+		final String sender;
+		final String recipient;
+		final String name;
+		final long size;
+		private File file;
+		private FileChannel channel;
+		private volatile long written;
+		private volatile boolean complete;
+		private volatile boolean removed;
+		private volatile long lastActive;	//System.nanoTime() when it was last written to or read from
+		private Set<String> pending;		//the recipients that don't have the whole file
+		private ReentrantLock writeLock;	//a sender that reconnects might still have the old session writing
+
+
+		private Transfer(long id, String sender, String recipient, String name, long size, File file, FileChannel channel){
+			this.id = id;
+			this.sender = sender;
+			this.recipient = recipient;
+			this.name = name;
+			this.size = size;
+			this.file = file;
+			this.channel = channel;
+			this.pending = ConcurrentHashMap.newKeySet();
+			this.writeLock = new ReentrantLock();
+			this.lastActive = System.nanoTime();
+		}// constructor end
+
+
+		/**
+		 * Writes a chunk from the sender, chunks have to come in order.
+		 * @param offset is where the chunk starts in the file.
+		 * @param data is the chunk.
+		 * @return true if the chunk was written, false if it wasn't the next one, is too
+		 * large or the transfer has been deleted.
+		 * @throws IOException if the spool file can't be written.
+		 */
+		boolean write(long offset, byte[] data) throws IOException{
+			writeLock.lock();
+			try{
+				if(removed || complete || offset != written || data.length > size - written){
+					return false;
+				}
+				lastActive = System.nanoTime();
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while(buffer.hasRemaining()){
+					channel.write(buffer, offset + buffer.position());
+				}
+				written += data.length;
+				bytesIn.addAndGet(data.length);
+				return true;
+			} finally{
+				writeLock.unlock();
+			}
+		}// write end
+
+
+		/**
+		 * Marks the file as complete once every byte has been written.
+		 * @param recipients are the users to send it to.
+		 * @return true if this call completed it.
+		 */
+		boolean complete(Set<String> recipients){
+			writeLock.lock();
+			try{
+				if(complete || written != size){
+					return false;
+				}
+				pending.addAll(recipients);
+				complete = true;
+				completed.incrementAndGet();
+				return true;
+			} finally{
+				writeLock.unlock();
+			}
+		}// complete end
+
+
+		/**
+		 * Reads a chunk for a recipient. Reads from several threads don't disturb
+		 * each other since each gives its own position.
+		 * @param position is where to read from.
+		 * @param buffer is filled with up to its remaining bytes.
+		 * @return the number of bytes read.
+		 * @throws IOException if the spool file can't be read.
+		 */
+		int read(long position, ByteBuffer buffer) throws IOException{
+			lastActive = System.nanoTime();
+			int read = 0;
+			while(buffer.hasRemaining() && position + read < size){
+				int n = channel.read(buffer, position + read);
+				if(n < 0){
+					break;
+				}
+				read += n;
+			}
+			bytesOut.addAndGet(read);
+			return read;
+		}// read end
+
+
+		long getWritten(){
+			return written;
+		}
+
+
+		boolean isComplete(){
+			return complete;
+		}
+
+
+		/**
+		 * @param user is a username.
+		 * @return true if the file is complete and the user hasn't recieved the whole of it.
+		 */
+		boolean isPendingFor(String user){
+			return complete && pending.contains(user);
+		}
+
+
+		private void touch(){
+			lastActive = System.nanoTime();
+		}
+
+
+		/**
+		 * Closes and deletes the spool file, under the write lock so a chunk
+		 * isn't being written meanwhile. A read from a recipient fails instead.
+		 */
+		private void close(){
+			writeLock.lock();
+			try{
+				removed = true;
+				channel.close();
+			} catch(IOException e){
+				//Deleted below
+			} finally{
+				writeLock.unlock();
+			}
+			file.delete();
+		}// close end
+
+	}// Transfer end
+
+
+}// FileStore end
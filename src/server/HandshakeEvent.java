@@ -0,0 +1,35 @@
+package server;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event for the server handling a clients key, from reading
+ * the KeyMessage until the session has sent the history and announced the user.
+ * Recorded with for example 'java -XX:StartFlightRecording:filename=chat.jfr'.
+ *
+ * @author Tomas
+ */
+@Name("securechat.Handshake")
+@Label("Handshake")
+@Category({"SecureChat", "Server"})
+@Description("The server handling the key of a client")
+@StackTrace(false)
+class HandshakeEvent extends jdk.jfr.Event {
+
+	@Label("Session ID")
+	int sessionId;
+
+	@Label("Username")
+	String username;
+
+	@Label("Key")
+	@Description("PUBLIC_KEY for the RSA handshake, AGREEMENT_KEY for ECDH")
+	String keyType;
+
+	@Label("Completed")
+	boolean completed;
+
+}// HandshakeEvent end
@@ -0,0 +1,55 @@
+package server;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.NoSuchPaddingException;
+import message.KeyPairPool;
+
+public class HeadlessServerMain {
+
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Starts the Server without a GUI, for hosts without a display.
+	 * No AWT or Swing class is loaded, what the server does is printed instead.
+	 * The port and every other setting is given as arguments or in a file,
+	 * see ServerConfig, for example:
+	 * 'HeadlessServerMain -port 2000 -engine nio -config server.properties'.
+	 * The server is closed when the application is stopped.
+	 */
+	public static void main(String [] args){
+		ServerConfig config;
+		try{
+			config = ServerConfig.fromArgs(args);
+		} catch(IllegalArgumentException e){
+			System.err.println(e.getMessage());
+			System.err.println("Usage: HeadlessServerMain " + ServerConfig.USAGE);
+			System.exit(2);
+			return;
+		}
+		Server server;
+		try{
+			server = new Server(config.getPort(), config, new ConsoleServerListener(),
+					new KeyPairPool(Server.KEY_PAIR_ALGO, 1));
+		} catch(IOException e){
+			System.err.println("Failed to open port " + config.getPort() + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		} catch(NoSuchAlgorithmException | NoSuchPaddingException e){
+			System.err.println("Error, can't start application: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		Thread main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.close(config.getPort());
+			try{
+				main.join(CLOSE_TIMEOUT_MILLIS);		//Lets the clients be told before the application exits
+			} catch(InterruptedException e){
+				//Exits anyway
+			}
+		}));
+		System.out.println("SERVER STARTED ON PORT " + config.getPort());
+		server.run();
+	}
+
+}
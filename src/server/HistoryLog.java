@@ -0,0 +1,576 @@
+package server;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages sent to everyone, kept on disk so a client that joins late
+ * can be sent the last of them. The log is only appended to, each message
+ * gets an offset one larger than the one before.
+ *
+ * The log is split into segments of at most SEGMENT_BYTES, each a file named
+ * after the offset of its first message. A segment is written through a
+ * MappedByteBuffer, so appending a message is a copy into memory and the
+ * operating system writes it to disk. Each record is the length of the body,
+ * the time it was appended and the body as BinaryCodec encoded it. The bodies
+ * are kept rather than the frames sent, a frame is sealed with the key of one
+ * session and can't be sent to another.
+ *
+ * Every segment has a sparse index, one entry for every INDEX_INTERVAL bytes
+ * of records, so a message is found without reading the segment from its start.
+ * The index is also what makes opening the log fast, only the records after
+ * the last entry are read to find the end of a segment.
+ *
+ * A background thread deletes the oldest segments when they are older than the
+ * retention time or the log has grown past its size, the segment being written
+ * to is never deleted. When more than half of the oldest segment has expired it's
+ * compacted, its remaining messages are copied to a new segment which replaces it.
+ * Messages that have expired but are still on disk, for example in the segment
+ * being written to, are skipped when the log is read.
+ *
+ * @author Tomas
+ */
+class HistoryLog {
+
+	static final int SEGMENT_BYTES = 8 * 1024 * 1024;	//Mapped as a whole, the file is sparse until written
+	static final int INDEX_INTERVAL = 4096;			//Bytes of records between two index entries
+	private static final int RECORD_HEADER = 12;	//The length of the body and the time appended
+	private static final int INDEX_ENTRY = 8;		//The offset in the segment and the position
+	private static final int INDEX_BYTES = (SEGMENT_BYTES / INDEX_INTERVAL + 1) * INDEX_ENTRY;
+	private static final long CLEAN_INTERVAL_MILLIS = 60 * 1000;
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String COMPACT_SUFFIX = ".compact";
+
+	private File dir;
+	private long retentionMillis;
+	private long maxBytes;
+	private ReentrantLock lock;
+	private ArrayList<Segment> segments;	//Oldest first, the last one is written to, guarded by lock
+	private long nextOffset;
+	private volatile Thread cleaner;
+
+
+	/**
+	 * Opens the log in a directory, creating it if it doesn't exist. The
+	 * messages logged the last time the server ran are kept.
+	 * @param dir is the directory of the segment files.
+	 * @param retentionMillis is how long a message is kept.
+	 * @param maxBytes is the size the log is kept under, not counting the segment written to.
+	 * @throws IOException if the directory or a segment can't be opened.
+	 */
+	HistoryLog(File dir, long retentionMillis, long maxBytes) throws IOException{
+		this.dir = dir;
+		this.retentionMillis = retentionMillis;
+		this.maxBytes = maxBytes;
+		this.lock = new ReentrantLock();
+		this.segments = new ArrayList<Segment>();
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Can't create the history directory " + dir);
+		}
+		openSegments();
+	}// constructor end
+
+
+	/**
+	 * Opens the segments found in the directory in the order of their offsets.
+	 * A segment that the next one overlaps was compacted when the server stopped,
+	 * it's deleted. A compaction that didn't finish is thrown away.
+	 * @throws IOException
+	 */
+	private void openSegments() throws IOException{
+		File[] files = dir.listFiles();
+		ArrayList<Long> bases = new ArrayList<Long>();
+		for(File file : files == null ? new File[0] : files){
+			String name = file.getName();
+			if(name.endsWith(COMPACT_SUFFIX)){
+				file.delete();
+			}else if(name.endsWith(LOG_SUFFIX)){
+				try{
+					bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+				} catch(NumberFormatException e){
+					//Not a segment
+				}
+			}
+		}
+		bases.sort(null);
+		for(long base : bases){
+			Segment segment = new Segment(dir, base, "");
+			Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if(last != null && last.end() > base){
+				segments.remove(segments.size() - 1);
+				last.delete();
+			}
+			segments.add(segment);
+		}
+		if(segments.isEmpty()){
+			segments.add(new Segment(dir, 0, ""));
+		}
+		nextOffset = segments.get(segments.size() - 1).end();
+	}// openSegments end
+
+
+	/**
+	 * Starts the thread deleting and compacting old segments.
+	 * @return this log.
+	 */
+	HistoryLog start(){
+		Thread thread = new Thread(this::clean, "history-cleaner");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		cleaner = thread;
+		thread.start();
+		return this;
+	}// start end
+
+
+	/**
+	 * Appends a message. Called on the broadcast path, so it only copies the body
+	 * into the mapped segment, opening a new segment when the current one is full.
+	 * @param body is the message as BinaryCodec encoded it.
+	 * @return the offset of the message, -1 if the body is too large for a segment.
+	 * @throws IOException if a new segment can't be opened.
+	 */
+	long append(byte[] body) throws IOException{
+		if(body.length > SEGMENT_BYTES - RECORD_HEADER){
+			return -1;
+		}
+		long time = System.currentTimeMillis();
+		lock.lock();
+		try{
+			Segment active = segments.get(segments.size() - 1);
+			if(!active.fits(body.length)){
+				active = new Segment(dir, nextOffset, "");
+				segments.add(active);
+			}
+			active.append(body, time);
+			return nextOffset++;
+		} finally{
+			lock.unlock();
+		}
+	}// append end
+
+
+	/**
+	 * Reads the last messages of the log, found with the sparse indexes.
+	 * Messages older than the retention time are left out.
+	 * @param count is the number of messages to read.
+	 * @return the bodies of the messages, oldest first. Fewer if the log has fewer
+	 * or some of them have expired.
+	 */
+	List<byte[]> readLast(int count){
+		ArrayList<byte[]> bodies = new ArrayList<byte[]>();
+		long cutoff = System.currentTimeMillis() - retentionMillis;
+		lock.lock();
+		try{
+			long from = Math.max(segments.get(0).base, nextOffset - count);
+			for(Segment segment : segments){
+				if(segment.end() > from && segment.lastTime >= cutoff){
+					segment.read(Math.max(from, segment.base), cutoff, bodies, null);
+				}
+			}
+		} finally{
+			lock.unlock();
+		}
+		return bodies;
+	}// readLast end
+
+
+	/**
+	 * The loop of the cleaner thread, it runs until the log is closed.
+	 */
+	private void clean(){
+		while(cleaner == Thread.currentThread()){
+			try{
+				Thread.sleep(CLEAN_INTERVAL_MILLIS);
+				long cutoff = System.currentTimeMillis() - retentionMillis;
+				deleteOld(cutoff);
+				compact(cutoff);
+			} catch(InterruptedException e){
+				return;
+			} catch(IOException e){
+				e.printStackTrace();
+			}
+		}
+	}// clean end
+
+
+	/**
+	 * Deletes the oldest segments while their newest message is older than the
+	 * cutoff or the log is too large.
+	 * @param cutoff is the time messages appended before have expired.
+	 */
+	void deleteOld(long cutoff){
+		lock.lock();
+		try{
+			long bytes = 0;
+			for(int i = 0; i < segments.size() - 1; ++i){
+				bytes += segments.get(i).size;
+			}
+			while(segments.size() > 1 && (segments.get(0).lastTime < cutoff || bytes > maxBytes)){
+				Segment oldest = segments.remove(0);
+				bytes -= oldest.size;
+				oldest.delete();
+				System.out.println("SERVER DELETES HISTORY SEGMENT " + oldest.base);
+			}
+		} finally{
+			lock.unlock();
+		}
+	}// deleteOld end
+
+
+	/**
+	 * Compacts the oldest segment if more than half of its messages have expired.
+	 * The segment isn't written to, so it's copied without holding the lock,
+	 * only replacing it takes the lock. The copy is renamed into place before the
+	 * old segment is deleted, a log opened in between deletes the old one.
+	 * @param cutoff is the time messages appended before have expired.
+	 * @throws IOException
+	 */
+	void compact(long cutoff) throws IOException{
+		Segment oldest;
+		lock.lock();
+		try{
+			if(segments.size() < 2){
+				return;
+			}
+			oldest = segments.get(0);
+		} finally{
+			lock.unlock();
+		}
+		int expired = oldest.countBefore(cutoff);
+		if(expired == 0 || expired == oldest.count || expired * 2 < oldest.count){
+			return;
+		}
+		long base = oldest.base + expired;
+		Segment copy = new Segment(dir, base, COMPACT_SUFFIX);
+		ArrayList<byte[]> bodies = new ArrayList<byte[]>();
+		ArrayList<Long> times = new ArrayList<Long>();
+		oldest.read(base, cutoff, bodies, times);
+		for(int i = 0; i < bodies.size(); ++i){
+			copy.append(bodies.get(i), times.get(i));
+		}
+		copy.close();
+		copy.rename(Segment.file(dir, base, LOG_SUFFIX), Segment.file(dir, base, INDEX_SUFFIX));
+		Segment compacted = new Segment(dir, base, "");
+		lock.lock();
+		try{
+			if(segments.get(0) == oldest){
+				segments.set(0, compacted);
+				oldest.delete();
+				System.out.println("SERVER COMPACTS HISTORY SEGMENT " + oldest.base + " TO " + base);
+			}else{
+				compacted.delete();		//Deleted while it was copied
+			}
+		} finally{
+			lock.unlock();
+		}
+	}// compact end
+
+
+	/**
+	 * Stops the cleaner thread and closes the segments. What has been
+	 * appended is forced to disk.
+	 */
+	void close(){
+		Thread thread = cleaner;
+		cleaner = null;
+		if(thread != null){
+			thread.interrupt();
+		}
+		lock.lock();
+		try{
+			for(Segment segment : segments){
+				segment.close();
+			}
+		} catch(IOException e){
+			e.printStackTrace();
+		} finally{
+			lock.unlock();
+		}
+	}// close end
+
+
+	/**
+	 * @return the offset the next message gets.
+	 */
+	long getNextOffset(){
+		lock.lock();
+		try{
+			return nextOffset;
+		} finally{
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return the number of segments, the one written to included.
+	 */
+	int segmentCount(){
+		lock.lock();
+		try{
+			return segments.size();
+		} finally{
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public String toString(){
+		return "History: " + getNextOffset() + " messages, " + segmentCount() + " segments";
+	}// toString end
+
+
+	/**
+	 * One segment file and its index file, both mapped as a whole.
+	 * Only the last segment of the log is appended to, except for the
+	 * copy made by a compaction.
+	 */
+	private static class Segment {
+
+		private final long base;	//The offset of the first message
+		private File logFile;
+		private File indexFile;
+		private FileChannel logChannel;
+		private FileChannel indexChannel;
+		private MappedByteBuffer log;
+		private MappedByteBuffer index;
+		private int count;			//Messages in the segment
+		private int size;			//Bytes of records written
+		private int indexEntries;
+		private int indexedSize;	//The position of the last index entry
+		private long lastTime;
+
+
+		/**
+		 * Opens a segment, creating it if it doesn't exist, and finds its end
+		 * by reading the records after the last index entry.
+		 * @param dir is the directory of the log.
+		 * @param base is the offset of the first message.
+		 * @param suffix is added to the file names, empty for a segment in the log.
+		 * @throws IOException
+		 */
+		Segment(File dir, long base, String suffix) throws IOException{
+			this.base = base;
+			this.logFile = file(dir, base, LOG_SUFFIX + suffix);
+			this.indexFile = file(dir, base, INDEX_SUFFIX + suffix);
+			this.logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+			this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_BYTES);
+			recover();
+		}// constructor end
+
+
+		static File file(File dir, long base, String suffix){
+			return new File(dir, String.format("%020d", base) + suffix);
+		}
+
+
+		/**
+		 * Reads the index entries, the positions of a valid index only grow,
+		 * and then the records after the last one. A record is only valid once
+		 * its length is written, which is done after its body.
+		 */
+		private void recover(){
+			int position = 0;
+			while(indexEntries < INDEX_BYTES / INDEX_ENTRY){
+				int entry = indexEntries * INDEX_ENTRY;
+				int entryPosition = index.getInt(entry + 4);
+				if(indexEntries > 0 && entryPosition <= position){
+					break;
+				}
+				count = index.getInt(entry);
+				position = entryPosition;
+				++indexEntries;
+			}
+			indexedSize = position;
+			int length;
+			while((length = recordLength(position)) > 0){
+				lastTime = log.getLong(position + 4);
+				position += RECORD_HEADER + length;
+				++count;
+			}
+			if(lastTime == 0 && count > 0){
+				lastTime = logFile.lastModified();		//Only if an index entry was written without its record
+			}
+			size = position;
+		}// recover end
+
+
+		/**
+		 * @param position is the position of a record.
+		 * @return the length of the body, 0 if there is no valid record there.
+		 */
+		private int recordLength(int position){
+			if(position + RECORD_HEADER > SEGMENT_BYTES){
+				return 0;
+			}
+			int length = log.getInt(position);
+			return length > 0 && length <= SEGMENT_BYTES - position - RECORD_HEADER ? length : 0;
+		}// recordLength end
+
+
+		private void addIndexEntry(int offset, int position){
+			int entry = indexEntries * INDEX_ENTRY;
+			index.putInt(entry, offset);
+			index.putInt(entry + 4, position);
+			++indexEntries;
+			indexedSize = position;
+		}// addIndexEntry end
+
+
+		boolean fits(int length){
+			return size + RECORD_HEADER + length <= SEGMENT_BYTES;
+		}
+
+
+		/**
+		 * Writes a record, its length last. Indexes it if the last index entry
+		 * is INDEX_INTERVAL bytes or more behind.
+		 * @param body is the encoded message.
+		 * @param time is the time it was appended.
+		 */
+		void append(byte[] body, long time){
+			if(size - indexedSize >= INDEX_INTERVAL){
+				addIndexEntry(count, size);
+			}
+			ByteBuffer record = log.duplicate();
+			record.position(size + RECORD_HEADER);
+			record.put(body);
+			log.putLong(size + 4, time);
+			log.putInt(size, body.length);
+			size += RECORD_HEADER + body.length;
+			lastTime = time;
+			++count;
+		}// append end
+
+
+		/**
+		 * @return the offset after the last message.
+		 */
+		long end(){
+			return base + count;
+		}
+
+
+		/**
+		 * Finds the position of a message, starting from the closest index entry before it.
+		 * @param offset is the offset of a message in the segment.
+		 * @return its position.
+		 */
+		private int position(long offset){
+			int relative = (int) (offset - base);
+			int low = 0;
+			int high = indexEntries - 1;
+			while(low < high){
+				int middle = (low + high + 1) >>> 1;
+				if(index.getInt(middle * INDEX_ENTRY) <= relative){
+					low = middle;
+				}else{
+					high = middle - 1;
+				}
+			}
+			int at = index.getInt(low * INDEX_ENTRY);
+			int position = index.getInt(low * INDEX_ENTRY + 4);
+			for(; at < relative; ++at){
+				position += RECORD_HEADER + log.getInt(position);
+			}
+			return position;
+		}// position end
+
+
+		/**
+		 * Reads the messages from an offset to the end of the segment,
+		 * skipping those appended before the cutoff.
+		 * @param from is the offset of the first message to read.
+		 * @param cutoff is the time messages appended before have expired.
+		 * @param bodies gets the bodies.
+		 * @param times gets the times they were appended, may be null.
+		 */
+		void read(long from, long cutoff, List<byte[]> bodies, List<Long> times){
+			int position = position(from);
+			ByteBuffer records = log.duplicate();
+			for(long offset = from; offset < end(); ++offset){
+				int length = log.getInt(position);
+				long time = log.getLong(position + 4);
+				if(time >= cutoff){
+					byte[] body = new byte[length];
+					records.position(position + RECORD_HEADER);
+					records.get(body);
+					bodies.add(body);
+					if(times != null){
+						times.add(time);
+					}
+				}
+				position += RECORD_HEADER + length;
+			}
+		}// read end
+
+
+		/**
+		 * @param cutoff is a time.
+		 * @return the number of messages appended before it, from the start of the segment.
+		 */
+		int countBefore(long cutoff){
+			int position = 0;
+			int before = 0;
+			while(before < count && log.getLong(position + 4) < cutoff){
+				position += RECORD_HEADER + log.getInt(position);
+				++before;
+			}
+			return before;
+		}// countBefore end
+
+
+		/**
+		 * Forces the segment to disk and closes its files. The mappings stay
+		 * valid until they are garbage collected, Java has no way to unmap them.
+		 * @throws IOException
+		 */
+		void close() throws IOException{
+			log.force();
+			index.force();
+			logChannel.close();
+			indexChannel.close();
+		}// close end
+
+
+		/**
+		 * Gives the files of a compacted copy their names in the log.
+		 * @param logTarget is the name of the segment file.
+		 * @param indexTarget is the name of the index file.
+		 * @throws IOException
+		 */
+		void rename(File logTarget, File indexTarget) throws IOException{
+			Files.move(indexFile.toPath(), indexTarget.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(logFile.toPath(), logTarget.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}// rename end
+
+
+		void delete(){
+			try{
+				close();
+			} catch(IOException e){
+				e.printStackTrace();
+			}
+			logFile.delete();
+			indexFile.delete();
+		}// delete end
+
+	}// Segment end
+
+
+}// HistoryLog end
@@ -0,0 +1,314 @@
+package server;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the private messages sent to users that aren't connected, one file
+ * for each user on disk. A users mailbox is created when the first message
+ * for the user is stored and deleted when the user connects and is sent the
+ * messages, in the order they arrived. There can be at most a number of
+ * mailboxes, a message that would need one more is refused.
+ *
+ * A mailbox holds at most a number of messages and bytes, a message that
+ * doesn't fit is refused. The file starts with the number of messages in it,
+ * followed by a record for each message: the length of the body, the time it
+ * arrived and the body as BinaryCodec encoded it.
+ *
+ * Nothing about a mailbox is kept in memory, its file is opened for each
+ * message. The mailboxes are locked through a fixed number of locks chosen by
+ * the hash of the username, so memory doesn't grow with the number of users.
+ *
+ * A message is stored by a writer thread of its own, since every message is
+ * forced to disk and a client handler, or an event loop handling many clients,
+ * mustn't wait for that. At most a number of stores wait for the writer.
+ *
+ * @author Tomas
+ */
+class MailboxStore {
+
+	static final int STORED = 1;		//The message is in the mailbox
+	static final int FULL = 2;			//The mailbox has no room for the message
+	static final int NO_ROOM = 3;		//There are too many mailboxes to start one for the user
+	private static final int LOCKS = 64;
+	private static final int PENDING = 1024;		//Stores waiting for the writer
+	private static final int HEADER = 4;			//The number of messages
+	private static final int RECORD_HEADER = 12;	//The length of the body and the time it arrived
+	private static final String DIGEST_ALGO = "SHA-256";
+	private static final String SUFFIX = ".mbox";
+
+	private File dir;
+	private int maxMessages;
+	private int maxBytes;
+	private int maxMailboxes;
+	private AtomicInteger mailboxes;	//the number of mailbox files
+	private ReentrantLock[] locks;
+	private ThreadPoolExecutor writer;
+	private AtomicLong stored;
+	private AtomicLong refused;
+	private AtomicLong drained;
+
+
+	/**
+	 * Opens the mailboxes in a directory, creating it if it doesn't exist.
+	 * Empty mailboxes left by an older version of the server are deleted.
+	 * @param dir is the directory of the mailbox files.
+	 * @param maxMessages is the number of messages a mailbox can hold.
+	 * @param maxBytes is the number of bytes of messages a mailbox can hold.
+	 * @param maxMailboxes is the number of mailboxes there can be.
+	 * @throws IOException if the directory can't be created.
+	 */
+	MailboxStore(File dir, int maxMessages, int maxBytes, int maxMailboxes) throws IOException{
+		this.dir = dir;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxMailboxes = maxMailboxes;
+		this.mailboxes = new AtomicInteger();
+		this.locks = new ReentrantLock[LOCKS];
+		for(int i = 0; i < LOCKS; ++i){
+			locks[i] = new ReentrantLock();
+		}
+		this.stored = new AtomicLong();
+		this.refused = new AtomicLong();
+		this.drained = new AtomicLong();
+		this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(PENDING), task -> {
+					Thread thread = new Thread(task, "mailbox-writer");
+					thread.setDaemon(true);
+					return thread;
+				});
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Can't create the mailbox directory " + dir);
+		}
+		File[] files = dir.listFiles((parent, name) -> name.endsWith(SUFFIX));
+		for(File file : files == null ? new File[0] : files){
+			if(file.length() > HEADER || !file.delete()){
+				mailboxes.incrementAndGet();
+			}
+		}
+	}// constructor end
+
+
+	/**
+	 * Locks a users mailbox. The writer holds the lock while it checks whether the
+	 * user is connected and stores the message, and the users session holds it
+	 * while it drains the mailbox, so a message is never left behind. A sender
+	 * never takes it, it would wait for the writers store to reach the disk.
+	 * @param user is the username.
+	 */
+	void lock(String user){
+		locks[(user.hashCode() & Integer.MAX_VALUE) % LOCKS].lock();
+	}
+
+
+	void unlock(String user){
+		locks[(user.hashCode() & Integer.MAX_VALUE) % LOCKS].unlock();
+	}
+
+
+	/**
+	 * Runs a store on the writer thread, in the order they are submitted.
+	 * The task takes the users lock itself.
+	 * @param task is the task storing the message.
+	 * @return false if too many stores are waiting or the store is closed,
+	 * the task is then never run.
+	 */
+	boolean submit(Runnable task){
+		try{
+			writer.execute(task);
+			return true;
+		} catch(RejectedExecutionException e){
+			refused.incrementAndGet();
+			return false;
+		}
+	}// submit end
+
+
+	/**
+	 * Lets the writer finish the stores that are waiting, then stops it.
+	 */
+	void close(){
+		writer.shutdown();
+		try{
+			if(!writer.awaitTermination(5, TimeUnit.SECONDS)){
+				System.err.println("MAILBOX WRITER DIDN'T FINISH, " + writer.getQueue().size() + " STORES LOST");
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}// close end
+
+
+	/**
+	 * Stores a message in a users mailbox, the caller holds the users lock.
+	 * Called by the writer thread, see 'submit'.
+	 * The mailbox is created if the user has none, unless there are too many.
+	 * The message is forced to disk before this returns.
+	 * @param user is the recipient.
+	 * @param body is the message as BinaryCodec encoded it.
+	 * @return STORED, FULL or NO_ROOM.
+	 * @throws IOException if the mailbox can't be written.
+	 */
+	int store(String user, byte[] body) throws IOException{
+		File file = file(user);
+		boolean created = !file.isFile();
+		if(created && !reserveMailbox()){
+			refused.incrementAndGet();
+			return NO_ROOM;
+		}
+		boolean kept = false;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			readFully(channel, header, 0);
+			int count = header.getInt(0);
+			long size = Math.max(channel.size(), HEADER);
+			if(count >= maxMessages || size - HEADER + RECORD_HEADER + body.length > maxBytes){
+				refused.incrementAndGet();
+				return FULL;
+			}
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.length);
+			record.putInt(body.length).putLong(System.currentTimeMillis()).put(body).flip();
+			writeFully(channel, record, size);
+			header.putInt(0, count + 1);
+			header.rewind();
+			writeFully(channel, header, 0);
+			channel.force(false);
+			stored.incrementAndGet();
+			kept = true;
+			return STORED;
+		} finally{
+			channel.close();
+			if(created && !kept){
+				deleteMailbox(file);
+			}
+		}
+	}// store end
+
+
+	/**
+	 * Takes every message out of a users mailbox and deletes it, the caller holds
+	 * the users lock. The records are read rather than trusting the count, a record
+	 * whose count wasn't written before the server stopped is still sent.
+	 * @param user is the username.
+	 * @return the bodies of the messages in the order they arrived, empty if the
+	 * user has no mailbox.
+	 * @throws IOException if the mailbox can't be read.
+	 */
+	List<byte[]> drain(String user) throws IOException{
+		ArrayList<byte[]> bodies = new ArrayList<byte[]>();
+		File file = file(user);
+		if(!file.isFile()){
+			return bodies;
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			int size = (int) Math.min(channel.size(), HEADER + (long) maxBytes + RECORD_HEADER);
+			ByteBuffer content = ByteBuffer.allocate(Math.max(size, HEADER));
+			readFully(channel, content, 0);
+			int position = HEADER;
+			while(position + RECORD_HEADER <= size){
+				int length = content.getInt(position);
+				if(length <= 0 || length > size - position - RECORD_HEADER){
+					break;
+				}
+				byte[] body = new byte[length];
+				content.position(position + RECORD_HEADER);
+				content.get(body);
+				bodies.add(body);
+				position += RECORD_HEADER + length;
+			}
+		}
+		if(!deleteMailbox(file)){
+			throw new IOException("Can't delete the mailbox " + file);
+		}
+		drained.addAndGet(bodies.size());
+		return bodies;
+	}// drain end
+
+
+	/**
+	 * Counts a new mailbox if there is room for one more.
+	 * @return false if there are already as many mailboxes as there can be.
+	 */
+	private boolean reserveMailbox(){
+		while(true){
+			int count = mailboxes.get();
+			if(count >= maxMailboxes){
+				return false;
+			}
+			if(mailboxes.compareAndSet(count, count + 1)){
+				return true;
+			}
+		}
+	}// reserveMailbox end
+
+
+	private boolean deleteMailbox(File file){
+		if(!file.delete()){
+			return false;
+		}
+		mailboxes.decrementAndGet();
+		return true;
+	}// deleteMailbox end
+
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		while(buffer.hasRemaining()){
+			int read = channel.read(buffer, position + buffer.position());
+			if(read < 0){
+				break;		//A new mailbox, the rest stays zero
+			}
+		}
+	}// readFully end
+
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		while(buffer.hasRemaining()){
+			channel.write(buffer, position + buffer.position());
+		}
+	}// writeFully end
+
+
+	/**
+	 * The file is named after the hash of the username, so any name gives a
+	 * valid file name of the same length.
+	 * @param user is the username.
+	 * @return the users mailbox file.
+	 */
+	private File file(String user){
+		try{
+			byte[] hash = MessageDigest.getInstance(DIGEST_ALGO).digest(user.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for(byte b : hash){
+				name.append(String.format("%02x", b));
+			}
+			return new File(dir, name.append(SUFFIX).toString());
+		} catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);		//Every Java platform has SHA-256
+		}
+	}// file end
+
+
+	@Override
+	public String toString(){
+		return "Mailboxes: " + mailboxes.get() + " mailboxes, stored " + stored.get() + ", refused " + refused.get()
+				+ ", drained " + drained.get() + ", waiting " + writer.getQueue().size();
+	}// toString end
+
+
+}// MailboxStore end
@@ -0,0 +1,307 @@
+package server;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import message.Frame;
+import message.FrameCodec;
+
+/**
+ * A client connection handled by the NIO engine.
+ * Bytes are read into a buffer until one or more whole frames have arrived,
+ * every frame is decoded and handed to the ClientSession.
+ * Frames sent to the client are put in its OutboundQueue and written when the
+ * channel is writable, so a broadcast never blocks on a slow client.
+ * Apart from 'send' and 'close' everything is called on the owning event loop.
+ *
+ * @author Tomas
+ */
+class NioConnection implements Connection{
+
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	private NioEventLoop loop;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private OutboundQueue outbound;
+	private ByteBuffer pending;		//Frame that is partly written
+	private AtomicBoolean flushScheduled;
+	private ClientSession session;
+	private ServerMetrics metrics;
+	private volatile boolean closing;
+
+
+	/**
+	 * Creates the connection and its ClientSession.
+	 * @param loop is the event loop the channel is registered with.
+	 * @param channel is the clients non-blocking channel.
+	 * @param key is the channels SelectionKey.
+	 * @param server is the Server that accepted the client.
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 */
+	NioConnection(NioEventLoop loop, SocketChannel channel, SelectionKey key, Server server)
+			throws NoSuchAlgorithmException, NoSuchPaddingException{
+		this.loop = loop;
+		this.channel = channel;
+		this.key = key;
+		this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		this.outbound = server.getConfig().newOutboundQueue();
+		this.flushScheduled = new AtomicBoolean(false);
+		this.closing = false;
+		this.metrics = server.getMetrics();
+		this.session = new ClientSession(server, this);
+	}// constructor end
+
+
+	/**
+	 * Starts the session, sending the servers public key.
+	 */
+	void open(){
+		try{
+			session.open();
+		} catch(IOException e){
+			disconnectBrutally(e);
+		}
+	}// open end
+
+
+	/**
+	 * Queues a frame and makes sure the event loop writes it.
+	 * No event loop waits for room in a full queue, not even one owned by
+	 * another loop. It would stall every client on the waiting loop, and two
+	 * loops could end up waiting for each other.
+	 * @param frame is the frame to send.
+	 */
+	@Override
+	public void send(Frame frame){
+		if(closing){
+			return;
+		}
+		if(!outbound.offer(frame, !(Thread.currentThread() instanceof NioEventLoop))){
+			System.err.println("OUTBOUND QUEUE FULL, DISCONNECTING " + session.getUsername()
+					+ " (" + outbound + ")");
+			abort();
+			return;
+		}
+		scheduleFlush();
+	}// send end
+
+
+	@Override
+	public OutboundQueue getOutboundQueue(){
+		return outbound;
+	}
+
+
+	/**
+	 * Closes the channel once the queued frames have been written.
+	 */
+	@Override
+	public void close(){
+		if(!closing){
+			closing = true;
+			scheduleFlush();
+		}
+	}// close end
+
+
+	/**
+	 * Asks the event loop to flush unless it has already been asked.
+	 */
+	private void scheduleFlush(){
+		if(loop.inEventLoop()){
+			flush();
+		}else if(flushScheduled.compareAndSet(false, true)){
+			loop.execute(this::flush);
+		}
+	}// scheduleFlush end
+
+
+	/**
+	 * Drops everything queued and closes the channel right away.
+	 * The session is ended as if the client had left.
+	 */
+	private void abort(){
+		closing = true;
+		outbound.clear();
+		loop.execute(() -> {
+			if(key.isValid()){
+				closeChannel();
+				session.connectionLost();
+				finish();
+			}
+		});
+	}// abort end
+
+
+	/**
+	 * Called by the event loop when the channel is readable.
+	 * Reads what's available and hands every complete frame to the session.
+	 */
+	void read(){
+		try{
+			int read;
+			try{
+				read = channel.read(readBuffer);
+			} catch(IOException e){		//Connection reset, the client is gone
+				read = -1;
+			}
+			if(read < 0){
+				closeChannel();
+				session.connectionLost();
+				finish();
+				return;
+			}
+			metrics.bytesRead(read);
+			readBuffer.flip();
+			while(readBuffer.remaining() >= FrameCodec.HEADER_SIZE){
+				int length = readBuffer.getInt(readBuffer.position());
+				FrameCodec.checkLength(length);
+				int frameSize = FrameCodec.HEADER_SIZE + length;
+				if(readBuffer.remaining() < frameSize){
+					if(readBuffer.capacity() < frameSize){
+						grow(frameSize);
+						return;
+					}
+					break;
+				}
+				int start = readBuffer.position() + FrameCodec.HEADER_SIZE;
+				Object obj = FrameCodec.decode(readBuffer.array(), start, length);
+				int protocol = FrameCodec.protocolOf(readBuffer.array(), start);
+				readBuffer.position(readBuffer.position() + frameSize);
+				session.handle(obj, protocol);
+				if(!session.hasClient()){
+					finish();
+					return;
+				}
+			}// while end
+			if(readBuffer.capacity() > INITIAL_BUFFER_SIZE && readBuffer.remaining() <= INITIAL_BUFFER_SIZE){
+				shrink();
+			}else{
+				readBuffer.compact();
+			}
+		} catch(IOException | ClassNotFoundException | InvalidKeyException e){
+			disconnectBrutally(e);
+		} catch(IllegalBlockSizeException | BadPaddingException | SignatureException e){
+			disconnectBrutally(e);
+		} catch(RuntimeException e){	//A bad frame from one client must not stop the loop of the others
+			disconnectBrutally(e);
+		}
+	}// read end
+
+
+	/**
+	 * Writes queued frames until the queue is empty or the socket buffer is full.
+	 * If the socket is full the loop is told to call again when it's writable.
+	 */
+	void flush(){
+		flushScheduled.set(false);
+		if(!key.isValid()){
+			return;
+		}
+		try{
+			while(pending != null || nextFrame()){
+				metrics.bytesWritten(channel.write(pending));
+				if(pending.hasRemaining()){
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				pending = null;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			if(closing){
+				closeChannel();
+			}
+		} catch(IOException e){		//The client is gone, inform the others once the current work is done
+			closeChannel();
+			session.connectionLost();
+			loop.execute(this::finish);
+		} catch(RuntimeException e){
+			e.printStackTrace();
+			closeChannel();
+			session.connectionLost();
+			loop.execute(session::closeResources);	//The sender may hold the presence or a send lock
+		}
+	}// flush end
+
+
+	/**
+	 * Takes the next queued frame. The frame may be shared with other
+	 * connections, so it gets a buffer view of its own.
+	 * @return false if the queue is empty.
+	 */
+	private boolean nextFrame(){
+		Frame frame = outbound.poll();
+		if(frame == null){
+			return false;
+		}
+		pending = frame.buffer();
+		return true;
+	}// nextFrame end
+
+
+	private void closeChannel(){
+		key.cancel();
+		try{
+			channel.close();
+		} catch(IOException e){
+			e.printStackTrace();
+		}
+	}// closeChannel end
+
+
+	/**
+	 * Makes room for a frame larger than the read buffer.
+	 * @param frameSize is the size of the frame that has to fit.
+	 */
+	private void grow(int frameSize){
+		ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+		bigger.put(readBuffer);
+		readBuffer = bigger;
+	}// grow end
+
+
+	/**
+	 * Goes back to a small read buffer once a large frame has been handled,
+	 * so a client that sent one file chunk or paste doesn't keep the memory.
+	 */
+	private void shrink(){
+		ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		smaller.put(readBuffer);
+		readBuffer = smaller;
+	}// shrink end
+
+
+	/**
+	 * The client has left nicely, inform the others and close.
+	 */
+	private void finish(){
+		try{
+			session.closed();
+		} catch(IOException | InvalidKeyException e){
+			e.printStackTrace();
+		} catch(SignatureException | IllegalBlockSizeException | BadPaddingException e){
+			e.printStackTrace();
+		} finally{
+			session.closeResources();
+		}
+	}// finish end
+
+
+	private void disconnectBrutally(Exception e){
+		System.err.println("CLIENT DISCONNECTED BRUTALLY");
+		e.printStackTrace();
+		session.closeResources();
+	}// disconnectBrutally end
+
+
+}// NioConnection end
@@ -0,0 +1,168 @@
+package server;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One of the event loops used by the NIO engine.
+ * Each loop owns a Selector and the channels registered with it. All reading,
+ * writing, decrypting and verifying for those clients is done on this thread.
+ * Other threads hand work to the loop with 'execute', for example when a
+ * broadcast has queued frames for one of the loops clients.
+ *
+ * @author Tomas
+ */
+class NioEventLoop extends Thread{
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private volatile boolean running;
+
+
+	/**
+	 * Creates the event loop and its Selector.
+	 * @param id is used to name the thread.
+	 * @throws IOException if the Selector can't be opened.
+	 */
+	NioEventLoop(int id) throws IOException{
+		super("nio-event-loop-" + id);
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.running = true;
+	}// constructor end
+
+
+	/**
+	 * Hands a newly accepted client to this loop.
+	 * @param channel is the accepted channel.
+	 * @param server is the Server that accepted the client.
+	 */
+	void register(SocketChannel channel, Server server){
+		execute(() -> {
+			try{
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				NioConnection connection = new NioConnection(this, channel, key, server);
+				key.attach(connection);
+				connection.open();
+			} catch(Exception e){
+				System.err.println("CLIENT DISCONNECTED BRUTALLY");
+				e.printStackTrace();
+				try{
+					channel.close();
+				} catch(IOException ex){
+					ex.printStackTrace();
+				}
+			}
+		});
+	}// register end
+
+
+	/**
+	 * Runs the task on this loop's thread. The selector is woken up even when
+	 * the loop adds a task itself, the next select would otherwise wait for
+	 * some channel to become ready before the task runs.
+	 * @param task is the task to run.
+	 */
+	void execute(Runnable task){
+		tasks.add(task);
+		selector.wakeup();
+	}// execute end
+
+
+	/**
+	 * @return true if the calling thread is this event loop.
+	 */
+	boolean inEventLoop(){
+		return Thread.currentThread() == this;
+	}// inEventLoop end
+
+
+	/**
+	 * Stops the loop, closing every channel that is still registered.
+	 */
+	void shutdown(){
+		running = false;
+		selector.wakeup();
+	}// shutdown end
+
+
+	/**
+	 * Waits for channels to become readable or writable and lets their
+	 * NioConnection do the work. Tasks from other threads are run between selects.
+	 */
+	@Override
+	public void run(){
+		try{
+			while(running){
+				selector.select();
+				runTasks();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try{
+						if(key.isValid() && key.isReadable()){
+							connection.read();
+						}
+						if(key.isValid() && key.isWritable()){
+							connection.flush();
+						}
+					} catch(RuntimeException e){	//Only this connection is closed, the others on the loop go on
+						e.printStackTrace();
+						closeKey(key);
+					}
+				}
+			}// while end
+			runTasks();
+		} catch(IOException e){
+			e.printStackTrace();
+		} finally{
+			closeAll();
+		}
+	}// run end
+
+
+	private void runTasks(){
+		Runnable task;
+		while((task = tasks.poll()) != null){
+			try{
+				task.run();
+			} catch(RuntimeException e){
+				e.printStackTrace();
+			}
+		}
+	}// runTasks end
+
+
+	private void closeKey(SelectionKey key){
+		key.cancel();
+		try{
+			key.channel().close();
+		} catch(IOException e){
+			e.printStackTrace();
+		}
+	}// closeKey end
+
+
+	private void closeAll(){
+		for(SelectionKey key : selector.keys()){
+			try{
+				key.channel().close();
+			} catch(IOException e){
+				e.printStackTrace();
+			}
+		}
+		try{
+			selector.close();
+		} catch(IOException e){
+			e.printStackTrace();
+		}
+	}// closeAll end
+
+
+}// NioEventLoop end
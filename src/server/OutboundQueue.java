@@ -0,0 +1,156 @@
+package server;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import message.Frame;
+
+/**
+ * A bounded queue of frames waiting to be written to one client.
+ * Every Connection owns one, a broadcast only puts frames in the queues
+ * and the connections writer takes them out. This way a client on a slow link
+ * can't hold up the other clients.
+ * Static final ints are used to indicate what happens when the queue is full.
+ * Also keeps count of the queue depth, the deepest it has been and how many
+ * frames that have been dropped.
+ *
+ * @author Tomas
+ */
+class OutboundQueue {
+
+	static final int DROP_OLDEST = 1;	//Make room by dropping the oldest queued frame
+	static final int DISCONNECT = 2;	//Disconnect the client
+	static final int BLOCK = 3;			//Wait for room, disconnect if the timeout passes
+
+	private ArrayBlockingQueue<Frame> queue;
+	private int policy;
+	private long blockTimeoutMillis;
+	private AtomicInteger maxDepth;
+	private AtomicLong enqueued;
+	private AtomicLong dropped;
+
+
+	/**
+	 * Creates an empty queue.
+	 * @param capacity is the number of frames the queue can hold.
+	 * @param policy is one of DROP_OLDEST, DISCONNECT or BLOCK.
+	 * @param blockTimeoutMillis is how long BLOCK waits for room.
+	 */
+	OutboundQueue(int capacity, int policy, long blockTimeoutMillis){
+		this.queue = new ArrayBlockingQueue<Frame>(capacity);
+		this.policy = policy;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+		this.maxDepth = new AtomicInteger();
+		this.enqueued = new AtomicLong();
+		this.dropped = new AtomicLong();
+	}// constructor end
+
+
+	/**
+	 * Adds a frame to the queue, applying the overflow policy if it's full.
+	 * @param frame is the frame to queue.
+	 * @param mayBlock is false if the caller is not allowed to wait, BLOCK
+	 * then acts like DISCONNECT.
+	 * @return false if the client should be disconnected.
+	 */
+	boolean offer(Frame frame, boolean mayBlock){
+		boolean added = queue.offer(frame);
+		if(!added){
+			if(policy == DROP_OLDEST){
+				while(!added){
+					if(queue.poll() != null){
+						dropped.incrementAndGet();
+					}
+					added = queue.offer(frame);
+				}
+			}else if(policy == BLOCK && mayBlock){
+				try{
+					added = queue.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+				} catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if(!added){
+			dropped.incrementAndGet();
+			return false;
+		}
+		enqueued.incrementAndGet();
+		int depth = queue.size();
+		int max;
+		while(depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth)){
+			//Retry until the deepest depth is stored
+		}
+		return true;
+	}// offer end
+
+
+	/**
+	 * Waits for the next frame.
+	 * @return the next frame to write.
+	 * @throws InterruptedException when the connection is being closed.
+	 */
+	Frame take() throws InterruptedException{
+		return queue.take();
+	}// take end
+
+
+	/**
+	 * @return the next frame to write, or null if the queue is empty.
+	 */
+	Frame poll(){
+		return queue.poll();
+	}// poll end
+
+
+	/**
+	 * Throws away everything that is queued.
+	 */
+	void clear(){
+		queue.clear();
+	}// clear end
+
+
+	/**
+	 * @return the number of frames waiting to be written.
+	 */
+	int depth(){
+		return queue.size();
+	}
+
+
+	/**
+	 * @return the deepest the queue has been.
+	 */
+	int maxDepth(){
+		return maxDepth.get();
+	}
+
+
+	/**
+	 * @return the number of frames that have been queued.
+	 */
+	long enqueued(){
+		return enqueued.get();
+	}
+
+
+	/**
+	 * @return the number of frames that have been dropped because the queue was full.
+	 */
+	long dropped(){
+		return dropped.get();
+	}
+
+
+	/**
+	 * @return the counters, formatted for the server log.
+	 */
+	@Override
+	public String toString(){
+		return "depth " + depth() + ", max depth " + maxDepth() + ", queued " + enqueued()
+				+ ", dropped " + dropped();
+	}// toString end
+
+
+}// OutboundQueue end
@@ -0,0 +1,146 @@
+package server;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One chat room, holding the sessions that have joined it. A post to the room
+ * is only sent to its members, through an array of them that is replaced
+ * whenever someone joins or leaves, so posting never takes the lock.
+ * The members have a version of their own that grows with every join and
+ * leave, sent with the PresenceMessages of the room. Joins and leaves are done
+ * under the rooms lock, which also orders the PresenceMessages they send.
+ * The room keeps count of its joins, leaves and posts.
+ *
+ * @author Tomas
+ */
+class Room {
+
+	private static final ClientSession[] EMPTY = new ClientSession[0];
+
+	private final String name;
+	private final ReentrantLock lock;
+	private LinkedHashMap<Integer, ClientSession> members;	//guarded by lock
+	private volatile ClientSession[] snapshot;
+	private long version;			//guarded by lock
+	private boolean closed;			//guarded by lock
+	private AtomicLong joins;
+	private AtomicLong leaves;
+	private AtomicLong posts;
+
+
+	/**
+	 * Creates an empty room.
+	 * @param name is the name of the room.
+	 */
+	Room(String name){
+		this.name = name;
+		this.lock = new ReentrantLock();
+		this.members = new LinkedHashMap<Integer, ClientSession>();
+		this.snapshot = EMPTY;
+		this.version = 0;
+		this.closed = false;
+		this.joins = new AtomicLong();
+		this.leaves = new AtomicLong();
+		this.posts = new AtomicLong();
+	}// constructor end
+
+
+	String getName(){
+		return name;
+	}
+
+
+	void lock(){
+		lock.lock();
+	}
+
+
+	void unlock(){
+		lock.unlock();
+	}
+
+
+	/**
+	 * Adds a member, called under the lock.
+	 * @param session is the session joining.
+	 * @return the version after the join, or 0 if the session already was a member.
+	 */
+	long add(ClientSession session){
+		if(members.putIfAbsent(session.getId(), session) != null){
+			return 0;
+		}
+		snapshot = members.values().toArray(EMPTY);
+		joins.incrementAndGet();
+		return ++version;
+	}// add end
+
+
+	/**
+	 * Removes a member, called under the lock.
+	 * @param session is the session leaving.
+	 * @return the version after the leave, or 0 if the session wasn't a member.
+	 */
+	long remove(ClientSession session){
+		if(members.remove(session.getId()) == null){
+			return 0;
+		}
+		snapshot = members.values().toArray(EMPTY);
+		leaves.incrementAndGet();
+		return ++version;
+	}// remove end
+
+
+	/**
+	 * @return the version of the members, called under the lock.
+	 */
+	long getVersion(){
+		return version;
+	}
+
+
+	/**
+	 * Marks the room as closed, called under the lock when the last member has left.
+	 * A room that is closed is never opened again, see RoomRegistry.
+	 */
+	void close(){
+		closed = true;
+	}
+
+
+	/**
+	 * @return true if the room has been closed, called under the lock.
+	 */
+	boolean isClosed(){
+		return closed;
+	}
+
+
+	/**
+	 * Gets the members without taking the lock.
+	 * @return the members in the order they joined, the array must not be changed.
+	 */
+	ClientSession[] getMembers(){
+		return snapshot;
+	}
+
+
+	/**
+	 * Counts a post.
+	 */
+	void posted(){
+		posts.incrementAndGet();
+	}
+
+
+	/**
+	 * @return the counters, formatted for the log.
+	 */
+	@Override
+	public String toString(){
+		return name + ": members " + snapshot.length + ", joins " + joins.get() + ", leaves "
+				+ leaves.get() + ", posts " + posts.get();
+	}// toString end
+
+
+}// Room end
@@ -0,0 +1,82 @@
+package server;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The chat rooms of a Server, keyed by name. A room is created when its first
+ * member joins and removed when its last member leaves.
+ *
+ * @author Tomas
+ */
+class RoomRegistry {
+
+	static final int MAX_NAME_LENGTH = 32;
+
+	private ConcurrentHashMap<String, Room> rooms;
+
+
+	/**
+	 * Creates a registry without rooms.
+	 */
+	RoomRegistry(){
+		this.rooms = new ConcurrentHashMap<String, Room>();
+	}// constructor end
+
+
+	/**
+	 * Gets a room to join, creating it if it doesn't exist. The room is returned
+	 * locked and the caller has to unlock it. A room that was closed by its last
+	 * member leaving at the same time is skipped, a new one is created instead.
+	 * @param name is the name of the room.
+	 * @return the locked room.
+	 */
+	Room open(String name){
+		while(true){
+			Room room = rooms.computeIfAbsent(name, Room::new);
+			room.lock();
+			if(!room.isClosed()){
+				return room;
+			}
+			room.unlock();
+			rooms.remove(name, room);
+		}
+	}// open end
+
+
+	/**
+	 * @param name is the name of a room.
+	 * @return the room, or null if it has no members.
+	 */
+	Room get(String name){
+		return rooms.get(name);
+	}// get end
+
+
+	/**
+	 * Closes and removes a room, called under the rooms lock after the last member left.
+	 * @param room is the empty room.
+	 */
+	void close(Room room){
+		room.close();
+		rooms.remove(room.getName(), room);
+		System.out.println("SERVER CLOSES ROOM " + room);
+	}// close end
+
+
+	/**
+	 * @return the number of rooms with members.
+	 */
+	int size(){
+		return rooms.size();
+	}
+
+
+	/**
+	 * @param name is the name of a room.
+	 * @return true if the name isn't empty and isn't too long.
+	 */
+	static boolean validName(String name){
+		return name != null && !name.trim().isEmpty() && name.length() <= MAX_NAME_LENGTH;
+	}// validName end
+
+
+}// RoomRegistry end
@@ -1,20 +1,28 @@
 package server;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.Signature;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import message.BodyCompressor;
+import message.KeyPairPool;
+import message.ThreadLauncher;
+import message.Verifier;
 
 
 /**
@@ -23,6 +31,8 @@ import javax.crypto.SecretKey;
  * a thread with a refference to the client socket. This socket is used to 
  * initiate an input- and outputstream. The thread listens to input made by the user
  * and sends it to all connected clients outputstream.
+ * When started with the NIO engine the accepted channels are instead spread over
+ * a few event loops, each handling many clients without a thread of their own.
  * 
  * @author Tomas
  * @version 1.0
@@ -31,39 +41,87 @@ public class Server implements Runnable{
 	private static final String localhost = "127.0.0.1";
 	static final String SECRET_KEY_ALGO = "AES";
 	static final String KEY_PAIR_ALGO = "RSA";
+	static final String SIGNATURE_ALGO = "SHA1withRSA";
 	static PrivateKey privateKey;
 	static PublicKey publicKey;
 	static SecretKey secretKey;
-	static Cipher cipherSecretKey; //used when encrypting/decrypting sealed object to/from client
+	static Verifier sender; //signs and seals for every session, so they all share its pools
 	
 	static DateFormat dateFormat;
 	private boolean running; 
 	private ServerSocket serverSocket;
-	ServerGUI gui;
+	private ServerSocketChannel serverChannel;
+	private NioEventLoop[] eventLoops;
+	private ServerConfig config;
+	private SessionRegistry sessions;
+	private RoomRegistry rooms;
+	private HistoryLog history;		//null if no history is kept
+	private MailboxStore mailboxes;	//null if no mailboxes are kept
+	private FileStore files;		//null if files can't be sent
+	private ServerMetrics metrics;
+	private BodyCompressor compressor;
+	private TokenBucket ingestBucket;	//shared by every session, null if the server isn't limited
+	private ReentrantLock presenceLock;	//orders the changes of the user list
+	private volatile long presenceVersion;	//changed under presenceLock
+	ServerListener listener;
 	
 	
 	/**
-	 * Creates a Server instance. 
-	 * @param socket is the server socket.
-	 * @param gui is a refference to the ServerGUI that created this Server.
+	 * Creates a Server instance and opens the server socket on the given port.
+	 * The kind of socket depends on the engine chosen in the ServerConfig.
+	 * @param port is the port to listen on.
+	 * @param config is the settings the server application was started with.
+	 * @param listener is told what happens on the server, the ServerGUI that created
+	 * this Server or a ConsoleServerListener.
+	 * @param keys is the pool the servers key pair is taken from.
+	 * @throws IOException if the port can't be opened.
 	 * @throws NoSuchAlgorithmException 
 	 * @throws NoSuchPaddingException 
 	 */
-	public Server(ServerSocket serverSocket, ServerGUI gui) throws 
-	NoSuchAlgorithmException, NoSuchPaddingException{
+	public Server(int port, ServerConfig config, ServerListener listener, KeyPairPool keys) throws 
+	IOException, NoSuchAlgorithmException, NoSuchPaddingException{
 		
-		KeyPairGenerator kpGenerator = KeyPairGenerator.getInstance(KEY_PAIR_ALGO);
-		KeyPair kp = kpGenerator.generateKeyPair();	
+		KeyPair kp = keys.take();		//Only generated here if the pool is empty
+		System.out.println("SERVER KEYS: " + keys);
 		privateKey = kp.getPrivate();
 		publicKey = kp.getPublic();
 		
-		cipherSecretKey = Cipher.getInstance(SECRET_KEY_ALGO);
 		KeyGenerator generator = KeyGenerator.getInstance(SECRET_KEY_ALGO);
 		generator.init(new SecureRandom());
 		secretKey = generator.generateKey();
+		Cipher.getInstance(SECRET_KEY_ALGO);		//Fails here rather than in the first session
+		Signature.getInstance(SIGNATURE_ALGO);
+		sender = new Verifier(secretKey, SECRET_KEY_ALGO, publicKey, privateKey, SIGNATURE_ALGO);
 		
-		this.serverSocket = serverSocket;
-		this.gui = gui;
+		if(config.getEngine() == ServerConfig.ENGINE_NIO){
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port), config.getBacklog());
+		}else{
+			serverSocket = new ServerSocket(port, config.getBacklog());
+		}
+		this.config = config;
+		this.sessions = new SessionRegistry();
+		this.rooms = new RoomRegistry();
+		this.presenceLock = new ReentrantLock();
+		this.presenceVersion = 0;
+		if(config.getHistoryDir() != null){
+			this.history = new HistoryLog(config.getHistoryDir(), config.getRetentionMillis(),
+					config.getHistoryBytes()).start();
+			System.out.println("SERVER OPENED " + history);
+		}
+		if(config.getMailboxDir() != null){
+			this.mailboxes = new MailboxStore(config.getMailboxDir(), config.getMailboxMessages(),
+					config.getMailboxBytes(), config.getMailboxCount());
+		}
+		if(config.getFilesDir() != null){
+			this.files = new FileStore(config.getFilesDir(), config.getFileBytes(), config.getSpoolBytes(),
+					config.getUserFiles(), config.getFileExpiryMillis());
+		}
+		this.compressor = new BodyCompressor(config.getCompressThreshold());
+		this.ingestBucket = config.newServerBucket();
+		this.metrics = new ServerMetrics(sessions, compressor);
+		metrics.register(serverChannel != null ? serverChannel.socket().getLocalPort() : serverSocket.getLocalPort());
+		this.listener = listener;
 		this.running = true;
 		dateFormat = new SimpleDateFormat("HH:mm");
 	}// constructor end
@@ -72,29 +130,139 @@ public class Server implements Runnable{
 	
 	
 	/**
-	 * Sets the user count in the titlebar.
-	 * Called by ServerThreads at connect and disconnect.
-	 * @param numbUsers is the current number of users connected to the chat.
+	 * Tells the listener the user count, read from the SessionRegistry without a lock.
+	 * Called by ClientSessions at connect and disconnect.
+	 */
+	protected void setUserCount(){
+		listener.userCountChanged(sessions.size());
+	}
+
+
+	/**
+	 * @return the registry of every connected clients session.
+	 */
+	SessionRegistry getSessions(){
+		return sessions;
+	}
+
+
+	/**
+	 * @return the registry of the chat rooms.
+	 */
+	RoomRegistry getRooms(){
+		return rooms;
+	}
+	
+	
+	/**
+	 * @return the log of messages sent to everyone, null if no history is kept.
 	 */
-	protected void setUserCount(int numbUsers){
-		gui.setTitle(gui.activeTitle + numbUsers);
+	HistoryLog getHistory(){
+		return history;
+	}
+	
+	
+	/**
+	 * @return the counters and timings shown through JMX.
+	 */
+	ServerMetrics getMetrics(){
+		return metrics;
+	}
+	
+	
+	/**
+	 * @return the compressor of the bodies sent to clients with CAP_COMPRESS,
+	 * shared so its counters cover every session.
+	 */
+	BodyCompressor getCompressor(){
+		return compressor;
+	}
+	
+	
+	/**
+	 * @return the TokenBucket every message from a client takes a token from,
+	 * null if only the sessions are limited.
+	 */
+	TokenBucket getIngestBucket(){
+		return ingestBucket;
+	}
+	
+	
+	/**
+	 * @return the mailboxes of users that aren't connected, null if none are kept.
+	 */
+	MailboxStore getMailboxes(){
+		return mailboxes;
+	}
+	
+	
+	/**
+	 * @return the files being sent, null if files can't be sent.
+	 */
+	FileStore getFiles(){
+		return files;
+	}
+	
+	
+	/**
+	 * @return the lock the changes of the user list the clients are sent are made under.
+	 */
+	ReentrantLock getPresenceLock(){
+		return presenceLock;
+	}
+	
+	
+	/**
+	 * @return the version of the last change of the user list.
+	 */
+	long getPresenceVersion(){
+		return presenceVersion;
+	}
+	
+	
+	/**
+	 * Called under the presence lock when a user joins or leaves.
+	 * @return the version of the change.
+	 */
+	long nextPresenceVersion(){
+		return ++presenceVersion;
+	}
+	
+	
+	/**
+	 * @return the settings the server was started with.
+	 */
+	ServerConfig getConfig(){
+		return config;
 	}
 	
 	
 	/** 
 	 * As long as the server is running it's listening for connecting clients.
 	 * Each new client is represented as an object of the ServerThread class.
-	 * When a connection is made an ServerThread object is created and started.
+	 * When a connection is made an ServerThread object is created and started,
+	 * on a virtual thread if the server runs the virtual thread engine.
+	 * With the NIO engine the client is instead handed to one of the event loops.
 	 */
 	public void run(){
-		
+		if(config.getEngine() == ServerConfig.ENGINE_NIO){
+			runEventLoops();
+			return;
+		}
 		try {
 			Socket clientSocket;
+			boolean virtual = config.getEngine() == ServerConfig.ENGINE_VIRTUAL_THREADS;
+			int clients = 0;
 			while((clientSocket = serverSocket.accept()) != null && running){
+				if(sessions.size() >= config.getMaxClients()){
+					System.out.println("SERVER REFUSES A CLIENT, " + sessions.size() + " ARE CONNECTED");
+					clientSocket.close();
+					continue;
+				}
 				ServerThread serverThread = new ServerThread(clientSocket, this);
-				serverThread.start();
+				ThreadLauncher.start(serverThread, "client-" + (++clients), virtual);
 			}
-		} catch(SocketException | InterruptedException e){
+		} catch(SocketException e){
 			e.printStackTrace();
 		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
 	    	e.printStackTrace();
@@ -106,6 +274,37 @@ public class Server implements Runnable{
 	}// run end
 	
 	
+	/**
+	 * Starts the event loops and accepts clients on the server channel.
+	 * The channels are handed to the loops in turn so that the clients
+	 * are spread evenly.
+	 */
+	private void runEventLoops(){
+		try {
+			eventLoops = new NioEventLoop[config.getEventLoops()];
+			for(int i = 0; i < eventLoops.length; ++i){
+				eventLoops[i] = new NioEventLoop(i);
+				eventLoops[i].start();
+			}
+			SocketChannel clientChannel;
+			int next = 0;
+			while((clientChannel = serverChannel.accept()) != null && running){
+				if(sessions.size() >= config.getMaxClients()){
+					System.out.println("SERVER REFUSES A CLIENT, " + sessions.size() + " ARE CONNECTED");
+					clientChannel.close();
+					continue;
+				}
+				eventLoops[next].register(clientChannel, this);
+				next = (next + 1) % eventLoops.length;
+			}
+		} catch (IOException e){
+	    	e.printStackTrace();
+		} finally{
+			closeAllResources();
+		}
+	}// runEventLoops end
+	
+	
 	/**
 	 * Used to end the run method. First setting the boolean flag running to false
 	 * and opening a socket that the serverSocket accepts which makes it break
@@ -132,13 +331,36 @@ public class Server implements Runnable{
 	 */
 	void closeAllResources(){
 		try {	
-			synchronized(ServerThread.threads){
-			    for(ServerThread thread : ServerThread.threads){
-					thread.disconnectClient();
-					thread.closeResources();
+			for(ClientSession session : sessions.snapshot()){	//closeResources removes the session from the registry
+				session.disconnectClient();
+				session.closeResources();
+			}
+			if(eventLoops != null){
+				for(NioEventLoop loop : eventLoops){
+					if(loop != null){
+						loop.shutdown();
+					}
 				}
 			}
-			serverSocket.close();
+			if(history != null){
+				System.out.println("SERVER CLOSES " + history);
+				history.close();
+			}
+			if(mailboxes != null){
+				mailboxes.close();
+				System.out.println("SERVER CLOSES " + mailboxes);
+			}
+			if(files != null){
+				System.out.println("SERVER CLOSES " + files);
+				files.close();
+			}
+			System.out.println("SERVER CLOSES " + metrics);
+			metrics.unregister();
+			if(serverChannel != null){
+				serverChannel.close();
+			}else{
+				serverSocket.close();
+			}
 			System.out.println("SERVER CLOSED NICELY");
 		} catch (IOException e) {
 			System.err.println("SERVER CLOSED BRUTALLY");
@@ -0,0 +1,547 @@
+package server;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import message.BodyCompressor;
+import message.FrameCodec;
+
+/**
+ * Settings that are chosen when the server application is started.
+ * Static final ints are used to indicate which engine the server runs
+ * and the most efficient session mode it accepts from clients.
+ *
+ * The settings are given as arguments to ServerMain, for example:
+ * 'ServerMain -engine nio -loops 2 -queue 512 -overflow block'.
+ * They can also be read from a properties file with '-config file', using the
+ * same names without the '-', for example 'engine=nio'. Settings after it
+ * override the ones in the file.
+ *
+ * @author Tomas
+ */
+class ServerConfig {
+
+	static final int ENGINE_THREADS = 1;	//One ServerThread per client, the legacy mode
+	static final int ENGINE_NIO = 2;		//A few event loops handling every client
+	static final int ENGINE_VIRTUAL_THREADS = 3;	//One ServerThread per client on a virtual thread
+	static final int SESSION_RSA = 1;		//Every message is signed with RSA by the server
+	static final int SESSION_RELAY = 2;		//Also relay clients signed messages as they are
+	static final int SESSION_AEAD = 3;		//Also allow AES-GCM with a key per connection
+	static final int HANDSHAKE_RSA = 1;		//The key is encrypted with the clients RSA key
+	static final int HANDSHAKE_ECDH = 2;	//AEAD keys may be agreed with X25519
+	static final String USAGE = "[-config file] [-port n] [-backlog n] [-maxclients n] "
+			+ "[-engine threads|virtual|nio] [-loops n] "
+			+ "[-queue n] [-overflow drop|disconnect|block] [-blocktimeout ms] "
+			+ "[-protocol binary|serialized] [-session aead|relay|rsa] "
+			+ "[-handshake ecdh|rsa] [-history dir|none] [-replay n] "
+			+ "[-retention hours] [-historysize mb] [-mailbox dir|none] "
+			+ "[-mailboxsize n] [-mailboxkb n] [-mailboxes n] [-scrollback lines] [-compress bytes|off] "
+			+ "[-files dir|none] [-filesize mb] [-spoolsize mb] [-userfiles n] [-fileexpiry hours] "
+			+ "[-ratelimit messages/s|off] [-burst n] "
+			+ "[-serverrate messages/s|off]";
+	private String invalidArgumentMessage = "Invalid server argument: ";
+
+	private int port;
+	private int backlog;
+	private int maxClients;
+	private int engine;
+	private int eventLoops;
+	private int queueCapacity;
+	private int overflowPolicy;
+	private long blockTimeoutMillis;
+	private int protocol;
+	private int session;
+	private int handshake;
+	private File historyDir;		//null if no history is kept
+	private int replayCount;
+	private long retentionHours;
+	private long historyMegabytes;
+	private File mailboxDir;		//null if no mailboxes are kept
+	private int mailboxMessages;
+	private int mailboxKilobytes;
+	private int mailboxCount;
+	private int scrollback;
+	private int compressThreshold;	//0 if bodies aren't compressed
+	private File filesDir;			//null if files can't be sent
+	private long fileMegabytes;
+	private long spoolMegabytes;
+	private int userFiles;
+	private long fileExpiryHours;
+	private int sessionRate;		//0 if the sessions aren't limited
+	private int sessionBurst;
+	private int serverRate;			//0 if the server as a whole isn't limited
+
+
+	/**
+	 * Constructs the default settings, the legacy thread per client engine.
+	 */
+	ServerConfig(){
+		this.port = 2000;
+		this.backlog = 50;
+		this.maxClients = Integer.MAX_VALUE;
+		this.engine = ENGINE_THREADS;
+		this.eventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		this.queueCapacity = 256;
+		this.overflowPolicy = OutboundQueue.DROP_OLDEST;
+		this.blockTimeoutMillis = 2000;
+		this.protocol = FrameCodec.PROTOCOL_BINARY;
+		this.session = SESSION_AEAD;
+		this.handshake = HANDSHAKE_ECDH;
+		this.historyDir = null;		//Nothing is written to disk unless a directory is given
+		this.replayCount = 50;
+		this.retentionHours = 7 * 24;
+		this.historyMegabytes = 256;
+		this.mailboxDir = null;			//Like the history, only kept in a directory that is given
+		this.mailboxMessages = 100;
+		this.mailboxKilobytes = 64;
+		this.mailboxCount = 1000;
+		this.scrollback = 5000;
+		this.compressThreshold = BodyCompressor.DEFAULT_THRESHOLD;
+		this.filesDir = null;			//Files can only be sent through a directory that is given
+		this.fileMegabytes = 64;
+		this.spoolMegabytes = 1024;
+		this.userFiles = 8;
+		this.fileExpiryHours = 24;
+		this.sessionRate = 20;
+		this.sessionBurst = 40;
+		this.serverRate = 0;
+	}// constructor end
+
+
+	/**
+	 * Parses the arguments given to the application.
+	 * @param args are the arguments given to main.
+	 * @return the settings.
+	 * @throws IllegalArgumentException if an argument is unknown or has an invalid value.
+	 */
+	static ServerConfig fromArgs(String[] args){
+		ServerConfig config = new ServerConfig();
+		for(int i = 0; i < args.length; ++i){
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			config.set(args[i], value);
+			++i;
+		}
+		return config;
+	}// fromArgs end
+
+
+	/**
+	 * Sets one setting.
+	 * @param name is the name of the setting, with or without a leading '-'.
+	 * @param value is the value to use.
+	 */
+	void set(String name, String value){
+		if(value == null){
+			throw new IllegalArgumentException(invalidArgumentMessage + name);
+		}
+		switch(name.startsWith("-") ? name.substring(1) : name){
+		case "config":
+			load(value);
+			break;
+		case "port":
+			port = parsePositive(name, value);
+			if(port > 65535){
+				throw new IllegalArgumentException(invalidArgumentMessage + name + " " + value);
+			}
+			break;
+		case "backlog":
+			backlog = parsePositive(name, value);
+			break;
+		case "maxclients":
+			maxClients = parsePositive(name, value);
+			break;
+		case "engine":
+			engine = parseEngine(value);
+			break;
+		case "loops":
+			eventLoops = parsePositive(name, value);
+			break;
+		case "queue":
+			queueCapacity = parsePositive(name, value);
+			break;
+		case "overflow":
+			overflowPolicy = parseOverflowPolicy(value);
+			break;
+		case "blocktimeout":
+			blockTimeoutMillis = parsePositive(name, value);
+			break;
+		case "protocol":
+			protocol = parseProtocol(value);
+			break;
+		case "session":
+			session = parseSession(value);
+			break;
+		case "handshake":
+			handshake = parseHandshake(value);
+			break;
+		case "history":
+			historyDir = value.equals("none") ? null : new File(value);
+			break;
+		case "replay":
+			replayCount = parsePositive(name, value);
+			break;
+		case "retention":
+			retentionHours = parsePositive(name, value);
+			break;
+		case "historysize":
+			historyMegabytes = parsePositive(name, value);
+			break;
+		case "mailbox":
+			mailboxDir = value.equals("none") ? null : new File(value);
+			break;
+		case "mailboxsize":
+			mailboxMessages = parsePositive(name, value);
+			break;
+		case "mailboxkb":
+			mailboxKilobytes = parsePositive(name, value);
+			break;
+		case "mailboxes":
+			mailboxCount = parsePositive(name, value);
+			break;
+		case "scrollback":
+			scrollback = parsePositive(name, value);
+			break;
+		case "compress":
+			compressThreshold = value.equals("off") ? 0 : parsePositive(name, value);
+			break;
+		case "files":
+			filesDir = value.equals("none") ? null : new File(value);
+			break;
+		case "filesize":
+			fileMegabytes = parsePositive(name, value);
+			break;
+		case "spoolsize":
+			spoolMegabytes = parsePositive(name, value);
+			break;
+		case "userfiles":
+			userFiles = parsePositive(name, value);
+			break;
+		case "fileexpiry":
+			fileExpiryHours = parsePositive(name, value);
+			break;
+		case "ratelimit":
+			sessionRate = value.equals("off") ? 0 : parsePositive(name, value);
+			break;
+		case "burst":
+			sessionBurst = parsePositive(name, value);
+			break;
+		case "serverrate":
+			serverRate = value.equals("off") ? 0 : parsePositive(name, value);
+			break;
+		default:
+			throw new IllegalArgumentException(invalidArgumentMessage + name);
+		}
+	}// set end
+
+
+	/**
+	 * Sets every setting in a properties file.
+	 * @param path is the path of the file.
+	 */
+	private void load(String path){
+		Properties properties = new Properties();
+		try(InputStream in = new FileInputStream(path)){
+			properties.load(in);
+		} catch(IOException e){
+			throw new IllegalArgumentException(invalidArgumentMessage + "config " + path + " (" + e.getMessage() + ")");
+		}
+		for(String name : properties.stringPropertyNames()){
+			if(name.equals("config")){
+				throw new IllegalArgumentException(invalidArgumentMessage + "config in " + path);
+			}
+			set(name, properties.getProperty(name).trim());
+		}
+	}// load end
+
+
+	private int parseEngine(String value){
+		if(value.equals("threads")){
+			return ENGINE_THREADS;
+		}else if(value.equals("nio")){
+			return ENGINE_NIO;
+		}else if(value.equals("virtual")){
+			return ENGINE_VIRTUAL_THREADS;
+		}
+		throw new IllegalArgumentException(invalidArgumentMessage + "engine " + value);
+	}// parseEngine end
+
+
+	private int parseOverflowPolicy(String value){
+		if(value.equals("drop")){
+			return OutboundQueue.DROP_OLDEST;
+		}else if(value.equals("disconnect")){
+			return OutboundQueue.DISCONNECT;
+		}else if(value.equals("block")){
+			return OutboundQueue.BLOCK;
+		}
+		throw new IllegalArgumentException(invalidArgumentMessage + "overflow " + value);
+	}// parseOverflowPolicy end
+
+
+	private int parseProtocol(String value){
+		if(value.equals("binary")){
+			return FrameCodec.PROTOCOL_BINARY;
+		}else if(value.equals("serialized")){
+			return FrameCodec.PROTOCOL_SERIALIZED;
+		}
+		throw new IllegalArgumentException(invalidArgumentMessage + "protocol " + value);
+	}// parseProtocol end
+
+
+	private int parseSession(String value){
+		if(value.equals("aead")){
+			return SESSION_AEAD;
+		}else if(value.equals("relay")){
+			return SESSION_RELAY;
+		}else if(value.equals("rsa")){
+			return SESSION_RSA;
+		}
+		throw new IllegalArgumentException(invalidArgumentMessage + "session " + value);
+	}// parseSession end
+
+
+	private int parseHandshake(String value){
+		if(value.equals("ecdh")){
+			return HANDSHAKE_ECDH;
+		}else if(value.equals("rsa")){
+			return HANDSHAKE_RSA;
+		}
+		throw new IllegalArgumentException(invalidArgumentMessage + "handshake " + value);
+	}// parseHandshake end
+
+
+	private int parsePositive(String name, String value){
+		try{
+			int number = Integer.parseInt(value);
+			if(number > 0){
+				return number;
+			}
+		} catch(NumberFormatException e){
+			//Falls through to the exception below
+		}
+		throw new IllegalArgumentException(invalidArgumentMessage + name + " " + value);
+	}// parsePositive end
+
+
+	/**
+	 * @return the port to listen on, the GUI shows it as the default.
+	 */
+	int getPort(){
+		return port;
+	}
+
+
+	/**
+	 * @return the number of connections the operating system queues before they are accepted.
+	 */
+	int getBacklog(){
+		return backlog;
+	}
+
+
+	/**
+	 * @return the number of clients that may be connected at once, a client
+	 * connecting after that is closed at once.
+	 */
+	int getMaxClients(){
+		return maxClients;
+	}
+
+
+	int getEngine(){
+		return engine;
+	}
+
+
+	int getEventLoops(){
+		return eventLoops;
+	}
+
+
+	/**
+	 * @return the protocol the servers public key is sent with. Each session
+	 * then switches to the protocol its client answers with.
+	 */
+	int getProtocol(){
+		return protocol;
+	}
+
+
+	/**
+	 * @return true if clients that offer the AEAD session mode may use it.
+	 */
+	boolean allowsAead(){
+		return session >= SESSION_AEAD;
+	}
+
+
+	/**
+	 * The ECDH handshake always leads to the AEAD session mode.
+	 * @return true if the server offers the ECDH handshake with its public key.
+	 */
+	boolean allowsEcdh(){
+		return handshake == HANDSHAKE_ECDH && allowsAead();
+	}
+
+
+	/**
+	 * @return true if clients that offer the relay session mode may use it.
+	 */
+	boolean allowsRelay(){
+		return session >= SESSION_RELAY;
+	}
+
+
+	/**
+	 * @return the directory of the HistoryLog, null if no history is kept.
+	 */
+	File getHistoryDir(){
+		return historyDir;
+	}
+
+
+	/**
+	 * @return the number of messages from the history sent to a client when it joins.
+	 */
+	int getReplayCount(){
+		return replayCount;
+	}
+
+
+	long getRetentionMillis(){
+		return retentionHours * 60 * 60 * 1000;
+	}
+
+
+	long getHistoryBytes(){
+		return historyMegabytes * 1024 * 1024;
+	}
+
+
+	/**
+	 * @return the directory of the MailboxStore, null if no mailboxes are kept.
+	 */
+	File getMailboxDir(){
+		return mailboxDir;
+	}
+
+
+	int getMailboxMessages(){
+		return mailboxMessages;
+	}
+
+
+	int getMailboxBytes(){
+		return mailboxKilobytes * 1024;
+	}
+
+
+	/**
+	 * @return the number of users that can have messages waiting in a mailbox.
+	 */
+	int getMailboxCount(){
+		return mailboxCount;
+	}
+
+
+	/**
+	 * @return the number of lines the GUI keeps in its window.
+	 */
+	int getScrollback(){
+		return scrollback;
+	}
+
+
+	/**
+	 * @return true if clients that offer CAP_COMPRESS may be sent compressed bodies.
+	 */
+	boolean allowsCompression(){
+		return compressThreshold > 0;
+	}
+
+
+	/**
+	 * @return the size in bytes of the smallest body that is compressed.
+	 */
+	int getCompressThreshold(){
+		return compressThreshold;
+	}
+
+
+	/**
+	 * @return the directory of the FileStore, null if files can't be sent.
+	 */
+	File getFilesDir(){
+		return filesDir;
+	}
+
+
+	long getFileBytes(){
+		return fileMegabytes * 1024 * 1024;
+	}
+
+
+	/**
+	 * @return the number of bytes every file on the server together may take.
+	 */
+	long getSpoolBytes(){
+		return spoolMegabytes * 1024 * 1024;
+	}
+
+
+	/**
+	 * @return the number of files a user can be sending or have waiting for recipients.
+	 */
+	int getUserFiles(){
+		return userFiles;
+	}
+
+
+	/**
+	 * @return how long a file nothing is written to or read from is kept.
+	 */
+	long getFileExpiryMillis(){
+		return fileExpiryHours * 60 * 60 * 1000;
+	}
+
+
+	/**
+	 * Creates the TokenBucket of a new session, which holds 'burst' messages.
+	 * @return a full bucket, null if the sessions aren't limited.
+	 */
+	TokenBucket newSessionBucket(){
+		return sessionRate > 0 ? new TokenBucket(sessionRate, Math.max(1, sessionBurst)) : null;
+	}// newSessionBucket end
+
+
+	/**
+	 * Creates the TokenBucket shared by every session, which holds a seconds worth
+	 * of messages, or 'burst' if that's more.
+	 * @return a full bucket, null if the server as a whole isn't limited.
+	 */
+	TokenBucket newServerBucket(){
+		return serverRate > 0 ? new TokenBucket(serverRate, Math.max(serverRate, sessionBurst)) : null;
+	}// newServerBucket end
+
+
+	/**
+	 * Creates the outbound queue for a new connection.
+	 * @return an empty queue with the configured capacity and overflow policy.
+	 */
+	OutboundQueue newOutboundQueue(){
+		return new OutboundQueue(queueCapacity, overflowPolicy, blockTimeoutMillis);
+	}// newOutboundQueue end
+
+
+	/**
+	 * Only the BLOCK policy waits for room, and the event loops of the NIO
+	 * engine never do.
+	 * @return true if queueing a frame may make the sender wait.
+	 */
+	boolean sendsMayBlock(){
+		return overflowPolicy == OutboundQueue.BLOCK && engine != ENGINE_NIO;
+	}// sendsMayBlock end
+
+
+}// ServerConfig end
@@ -13,13 +13,14 @@ import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.NoSuchPaddingException;
 import javax.imageio.ImageIO;
@@ -31,21 +32,25 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SpringLayout;
+import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.LineBorder;
+import message.KeyPairPool;
+import message.RenderQueue;
 
 /**
  * GUI for the server. 
  * Starts a server instance when the user has entered a valid port.
+ * What the server tells it is shown through RenderQueues, once per frame
+ * on the event dispatch thread, and the window keeps a limited number of lines.
  * 
  * @author Tomas
  */
-class ServerGUI extends JFrame{
+class ServerGUI extends JFrame implements ServerListener{
 	
 	private static final long serialVersionUID = -262454029120918151L;
-	private static final String DEFAULT_PORT = "2000";
 	private static final int START_FRAME_WIDTH = 260;
 	private static final int START_FRAME_HEIGHT = 230;
 	private static final int ACTIVE_FRAME_WIDTH = 450;
@@ -56,6 +61,8 @@ class ServerGUI extends JFrame{
 	private Color btnBorder = new Color(79,77,78);
 	private Color btnBack = new Color(45,45,45);
 	private Server server;
+	private ServerConfig config;
+	private KeyPairPool keys;
 	private int port;
 	
 	private Container contentPane;
@@ -65,12 +72,21 @@ class ServerGUI extends JFrame{
 	private JTextArea messageToUser;
 	String startTitle, activeTitle;
 	JTextArea outputArea, usersArea;
+	private RenderQueue output, users;
+	private AtomicInteger userCount;
+	private AtomicBoolean titleScheduled;		//an update of the title is waiting on the event dispatch thread
 	
 	
 	/**
 	 * Constructs the ServerGUI, calling helper methods setIcons and buildServerStart.
+	 * Starts generating the servers key pair in the background while the port is entered.
+	 * @param config is the settings used when the server is started.
 	 */
-	ServerGUI(){
+	ServerGUI(ServerConfig config){
+		this.config = config;
+		this.keys = new KeyPairPool(Server.KEY_PAIR_ALGO, 1).start();
+		this.userCount = new AtomicInteger();
+		this.titleScheduled = new AtomicBoolean();
 		try {
 			startTitle = "SERVER ON: " + InetAddress.getLocalHost().getHostName();
 		} catch (UnknownHostException e) {
@@ -120,7 +136,7 @@ class ServerGUI extends JFrame{
         JLabel portLabel = new JLabel("PORT");
         portLabel.setFont(new Font("SanSerif", Font.BOLD, 13));
 		contentPane.add(portLabel);
-		contentPane.add(portField = new JTextField(DEFAULT_PORT, 4));
+		contentPane.add(portField = new JTextField(String.valueOf(config.getPort()), 4));
         layout.putConstraint(SpringLayout.WEST, portLabel, (START_FRAME_WIDTH/2)-25, SpringLayout.WEST, contentPane);
         layout.putConstraint(SpringLayout.NORTH, portLabel, 81, SpringLayout.NORTH, heading);
         layout.putConstraint(SpringLayout.WEST, portField, (START_FRAME_WIDTH/2)-25, SpringLayout.WEST, contentPane);
@@ -209,7 +225,9 @@ class ServerGUI extends JFrame{
         scrollUsers.setPreferredSize(new Dimension(120,391));
         usersArea.setLineWrap(true);
 	    scrollContent.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-	    outputArea.append("SERVER STARTED " + Server.dateFormat.format(new Date()) + "\n");
+	    output = new RenderQueue(outputArea, config.getScrollback());
+	    users = new RenderQueue(usersArea, Integer.MAX_VALUE);
+	    output.append("SERVER STARTED " + Server.dateFormat.format(new Date()));
 	    
 	    pack();
 	    revalidate();
@@ -243,7 +261,7 @@ class ServerGUI extends JFrame{
 			if(port < 1 || port > 65535){
 				throw new IllegalArgumentException("Enter a port between 1 and 65535.");
 			}
-			server = new Server(new ServerSocket(port), this);
+			server = new Server(port, config, this, keys);
 			buildActiveServer();
 			new Thread(server).start();
 		} catch(NumberFormatException ex){
@@ -262,6 +280,33 @@ class ServerGUI extends JFrame{
 	}// startServer end
 	
 	
+	@Override
+	public void messageShown(String text){
+		output.append(text);
+	}
+
+
+	@Override
+	public void usersChanged(String usernames){
+		users.setText(usernames);
+	}
+
+
+	/**
+	 * Only the last count is shown when many clients connect at once.
+	 */
+	@Override
+	public void userCountChanged(int count){
+		userCount.set(count);
+		if(titleScheduled.compareAndSet(false, true)){
+			SwingUtilities.invokeLater(() -> {
+				titleScheduled.set(false);
+				setTitle(activeTitle + userCount.get());
+			});
+		}
+	}
+
+
 	/**
 	 * Loads icons from the icons folder. The dimensions are the most common
 	 * icon sizes in the most popular operating systems and are the sizes that 
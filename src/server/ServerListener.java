@@ -0,0 +1,33 @@
+package server;
+
+/**
+ * Told by the Server about what happens on it, instead of the server writing
+ * to a window. ServerGUI shows it in its window and ConsoleServerListener prints
+ * it, so a server started without a GUI never loads AWT or Swing.
+ * The methods are called from the threads handling the clients, possibly
+ * from many at once.
+ *
+ * @author Tomas
+ */
+interface ServerListener {
+
+	/**
+	 * A line to show, a message sent to everyone or a user connecting or disconnecting.
+	 * @param text is the line without a line break.
+	 */
+	void messageShown(String text);
+
+
+	/**
+	 * The connected users have changed.
+	 * @param usernames are the names of the users, one on each line.
+	 */
+	void usersChanged(String usernames);
+
+
+	/**
+	 * @param count is the number of connected clients, including the ones still exchanging keys.
+	 */
+	void userCountChanged(int count);
+
+}// ServerListener end
@@ -9,10 +9,21 @@ public class ServerMain {
 	 * Connections are created using Sockets. If a successful client connection 
 	 * is initiated a ServerThread is started. Handling all the communication
 	 * with the connected user.
+	 * The arguments choose the server engine, see ServerConfig.
+	 * 'ServerMain -engine nio' handles all clients on a few event loops.
+	 * 'ServerMain -engine virtual' gives each client a virtual thread.
+	 * HeadlessServerMain starts the server without the GUI.
 	 */
 	public static void main(String [] args){
-		
-		new ServerGUI();
+		ServerConfig config;
+		try{
+			config = ServerConfig.fromArgs(args);
+		} catch(IllegalArgumentException e){
+			System.err.println(e.getMessage());
+			System.err.println("Usage: ServerMain " + ServerConfig.USAGE);
+			return;
+		}
+		new ServerGUI(config);
 		
 	}
 	
@@ -0,0 +1,318 @@
+package server;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import message.BodyCompressor;
+import message.Histogram;
+
+/**
+ * Counts what the server does, for the ServerMetricsMXBean. Every counter is a
+ * LongAdder and every timing a Histogram, so the threads of the sessions record
+ * without taking a lock or waiting on each other.
+ * The sessions record what they time themselves, see ClientSession, and the
+ * engines count the bytes they read and write.
+ * A broadcast times the fan-out as a whole and seals for one recipient timed,
+ * so what it costs doesn't grow with the number of recipients.
+ * The compression counters are read from the servers BodyCompressor.
+ *
+ * @author Tomas
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+
+	private static final String OBJECT_NAME = "securechat:type=ServerMetrics,port=";
+
+	private SessionRegistry sessions;
+	private BodyCompressor compressor;
+	private ObjectName name;		//null unless registered
+
+	private LongAdder handshakesStarted;
+	private LongAdder handshakesCompleted;
+	private LongAdder handshakesFailed;
+	private LongAdder bytesIn;
+	private LongAdder bytesOut;
+	private LongAdder invalidSignatures;
+	private LongAdder throttledBySession;
+	private LongAdder throttledByServer;
+	private Histogram handshakeMicros;
+	private Histogram decryptNanos;
+	private Histogram verifyNanos;
+	private Histogram signNanos;
+	private Histogram sealNanos;
+	private Histogram fanOutMicros;
+
+
+	/**
+	 * @param sessions is the registry the active sessions are counted in.
+	 * @param compressor is the compressor of the bodies sent to the clients.
+	 */
+	ServerMetrics(SessionRegistry sessions, BodyCompressor compressor){
+		this.sessions = sessions;
+		this.compressor = compressor;
+		this.handshakesStarted = new LongAdder();
+		this.handshakesCompleted = new LongAdder();
+		this.handshakesFailed = new LongAdder();
+		this.bytesIn = new LongAdder();
+		this.bytesOut = new LongAdder();
+		this.invalidSignatures = new LongAdder();
+		this.throttledBySession = new LongAdder();
+		this.throttledByServer = new LongAdder();
+		this.handshakeMicros = new Histogram();
+		this.decryptNanos = new Histogram();
+		this.verifyNanos = new Histogram();
+		this.signNanos = new Histogram();
+		this.sealNanos = new Histogram();
+		this.fanOutMicros = new Histogram();
+	}// constructor end
+
+
+	void handshakeStarted(){
+		handshakesStarted.increment();
+	}
+
+
+	/**
+	 * @param nanos is the time since the handshake started.
+	 */
+	void handshakeCompleted(long nanos){
+		handshakesCompleted.increment();
+		handshakeMicros.record(nanos / 1000);
+	}
+
+
+	void handshakeFailed(){
+		handshakesFailed.increment();
+	}
+
+
+	void decrypted(long nanos){
+		decryptNanos.record(nanos);
+	}
+
+
+	void verified(long nanos){
+		verifyNanos.record(nanos);
+	}
+
+
+	void signed(long nanos){
+		signNanos.record(nanos);
+	}
+
+
+	void sealed(long nanos){
+		sealNanos.record(nanos);
+	}
+
+
+	void fannedOut(long nanos){
+		fanOutMicros.record(nanos / 1000);
+	}
+
+
+	void bytesRead(long bytes){
+		bytesIn.add(bytes);
+	}
+
+
+	void bytesWritten(long bytes){
+		bytesOut.add(bytes);
+	}
+
+
+	void invalidSignature(){
+		invalidSignatures.increment();
+	}
+
+
+	/**
+	 * @param byServer is true if the servers bucket was empty, false if the sessions own was.
+	 */
+	void throttled(boolean byServer){
+		(byServer ? throttledByServer : throttledBySession).increment();
+	}
+
+
+	/**
+	 * Registers the metrics with the platform MBeanServer. A server that can't
+	 * register them still runs, without them showing in JMX.
+	 * @param port is the servers port, part of the name so servers in one JVM don't collide.
+	 */
+	void register(int port){
+		try{
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(OBJECT_NAME + port);
+			mbeans.registerMBean(this, objectName);
+			name = objectName;
+		} catch(JMException e){
+			System.err.println("SERVER CAN'T REGISTER ITS METRICS: " + e);
+		}
+	}// register end
+
+
+	void unregister(){
+		if(name != null){
+			try{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch(JMException e){
+				//Already gone
+			}
+			name = null;
+		}
+	}// unregister end
+
+
+	@Override
+	public int getActiveSessions(){
+		return sessions.size();
+	}
+
+
+	@Override
+	public long getHandshakesStarted(){
+		return handshakesStarted.sum();
+	}
+
+
+	@Override
+	public long getHandshakesCompleted(){
+		return handshakesCompleted.sum();
+	}
+
+
+	@Override
+	public long getHandshakesFailed(){
+		return handshakesFailed.sum();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getHandshakeMicros(){
+		return handshakeMicros.snapshot();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getDecryptNanos(){
+		return decryptNanos.snapshot();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getVerifyNanos(){
+		return verifyNanos.snapshot();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getSignNanos(){
+		return signNanos.snapshot();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getSealNanos(){
+		return sealNanos.snapshot();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getFanOutMicros(){
+		return fanOutMicros.snapshot();
+	}
+
+
+	@Override
+	public long getBytesIn(){
+		return bytesIn.sum();
+	}
+
+
+	@Override
+	public long getBytesOut(){
+		return bytesOut.sum();
+	}
+
+
+	@Override
+	public long getInvalidSignatures(){
+		return invalidSignatures.sum();
+	}
+
+
+	@Override
+	public long getThrottledBySession(){
+		return throttledBySession.sum();
+	}
+
+
+	@Override
+	public long getThrottledByServer(){
+		return throttledByServer.sum();
+	}
+
+
+	@Override
+	public long getCompressedBodies(){
+		return compressor.getCompressed();
+	}
+
+
+	@Override
+	public long getUncompressedBodies(){
+		return compressor.getSkipped();
+	}
+
+
+	@Override
+	public long getCompressedBytesIn(){
+		return compressor.getBytesIn();
+	}
+
+
+	@Override
+	public long getCompressedBytesOut(){
+		return compressor.getBytesOut();
+	}
+
+
+	@Override
+	public double getCompressionRatio(){
+		return compressor.getRatio();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getCompressNanos(){
+		return compressor.getNanos().snapshot();
+	}
+
+
+	@Override
+	public void resetHistograms(){
+		handshakeMicros.reset();
+		decryptNanos.reset();
+		verifyNanos.reset();
+		signNanos.reset();
+		sealNanos.reset();
+		fanOutMicros.reset();
+		compressor.getNanos().reset();
+	}// resetHistograms end
+
+
+	/**
+	 * @return the counters and the handshake and fan-out times on one line each.
+	 */
+	@Override
+	public String toString(){
+		return "Metrics: handshakes " + handshakesStarted.sum() + " started, " + handshakesCompleted.sum()
+				+ " completed, " + handshakesFailed.sum() + " failed, bytes in " + bytesIn.sum() + ", out "
+				+ bytesOut.sum() + ", invalid signatures " + invalidSignatures.sum() + ", throttled "
+				+ throttledBySession.sum() + " by session and " + throttledByServer.sum() + " by server"
+				+ "\nHandshake microseconds: " + handshakeMicros + "\nFan-out microseconds: " + fanOutMicros
+				+ "\nCompression: " + compressor;
+	}// toString end
+
+
+}// ServerMetrics end
@@ -0,0 +1,110 @@
+package server;
+import message.Histogram;
+
+/**
+ * What a running server shows through JMX, for example in JConsole or VisualVM
+ * under 'securechat'. The counters count from when the server started, the
+ * histograms from when they were last reset.
+ * The crypto times are per message in nanoseconds, the fan-out and handshake
+ * times in microseconds.
+ *
+ * @author Tomas
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * @return the number of connected clients, including the ones still exchanging keys.
+	 */
+	int getActiveSessions();
+
+	long getHandshakesStarted();
+
+	long getHandshakesCompleted();
+
+	/**
+	 * @return the sessions that closed before their keys were exchanged.
+	 */
+	long getHandshakesFailed();
+
+	/**
+	 * @return the time from sending the servers public key until the keys are exchanged.
+	 */
+	Histogram.Snapshot getHandshakeMicros();
+
+	/**
+	 * @return the time to decrypt a message from a client, or to open it in the AEAD session mode.
+	 */
+	Histogram.Snapshot getDecryptNanos();
+
+	/**
+	 * @return the time to verify the signature of a message from a client.
+	 */
+	Histogram.Snapshot getVerifyNanos();
+
+	/**
+	 * @return the time to sign a message, done once per protocol for each message sent to clients.
+	 */
+	Histogram.Snapshot getSignNanos();
+
+	/**
+	 * @return the time to seal a message for one client, the first AEAD client of every fan-out is timed.
+	 */
+	Histogram.Snapshot getSealNanos();
+
+	/**
+	 * @return the time to seal and queue a message for every recipient.
+	 */
+	Histogram.Snapshot getFanOutMicros();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	/**
+	 * @return the messages from clients with a signature that didn't match.
+	 */
+	long getInvalidSignatures();
+
+	/**
+	 * @return the messages dropped unread since their sessions TokenBucket was empty.
+	 */
+	long getThrottledBySession();
+
+	/**
+	 * @return the messages dropped unread since the TokenBucket shared by every session was empty.
+	 */
+	long getThrottledByServer();
+
+	/**
+	 * @return the bodies sent compressed to clients with CAP_COMPRESS.
+	 */
+	long getCompressedBodies();
+
+	/**
+	 * @return the bodies for those clients that were under the threshold or didn't get smaller.
+	 */
+	long getUncompressedBodies();
+
+	/**
+	 * @return the size of the compressed bodies before they were compressed.
+	 */
+	long getCompressedBytesIn();
+
+	long getCompressedBytesOut();
+
+	/**
+	 * @return CompressedBytesIn divided by CompressedBytesOut.
+	 */
+	double getCompressionRatio();
+
+	/**
+	 * @return the time to compress a body over the threshold.
+	 */
+	Histogram.Snapshot getCompressNanos();
+
+	/**
+	 * Forgets the values of the histograms, the counters keep counting.
+	 */
+	void resetHistograms();
+
+}// ServerMetricsMXBean end
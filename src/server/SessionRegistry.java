@@ -0,0 +1,186 @@
+package server;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of every ClientSession of a Server, replacing the list that
+ * was guarded by a lock. Sessions are kept in concurrent maps keyed by their
+ * session ID and by their username, so adding, removing and looking up a
+ * session never blocks and takes constant time. Two sessions may have the
+ * same username, for example a user connected from two computers.
+ *
+ * Broadcasts go through a snapshot, an array of the sessions ordered by ID
+ * that is never changed once it's made. The snapshot is made again the first
+ * time it's asked for after a session was added or removed, so a broadcast
+ * doesn't copy the sessions and never takes a lock.
+ *
+ * @author Tomas
+ */
+class SessionRegistry {
+
+	static final int MAX_USERNAME_LENGTH = 64;
+	private static final ClientSession[] EMPTY = new ClientSession[0];
+	private static final Set<ClientSession> NONE = Collections.emptySet();
+
+	private ConcurrentHashMap<Integer, ClientSession> byId;
+	private ConcurrentHashMap<String, Set<ClientSession>> byUsername;
+	private AtomicLong modifications;		//counted after every add and remove
+	private volatile Snapshot snapshot;
+
+
+	/**
+	 * Creates an empty registry.
+	 */
+	SessionRegistry(){
+		this.byId = new ConcurrentHashMap<Integer, ClientSession>();
+		this.byUsername = new ConcurrentHashMap<String, Set<ClientSession>>();
+		this.modifications = new AtomicLong();
+		this.snapshot = new Snapshot(0, EMPTY);
+	}// constructor end
+
+
+	/**
+	 * Adds a newly accepted session, it has no username until its client has sent one.
+	 * @param session is the session to add.
+	 */
+	void add(ClientSession session){
+		byId.put(session.getId(), session);
+		modifications.incrementAndGet();
+	}// add end
+
+
+	/**
+	 * Makes the session possible to find by its username, called once the
+	 * client has sent it. Does nothing if the session has already been removed.
+	 * A session that had another username can't be found by that one anymore.
+	 * @param session is a session with a username.
+	 * @param previous is the username the session had before, null if it had none.
+	 */
+	void addUsername(ClientSession session, String previous){
+		String user = session.getUsername();
+		byUsername.computeIfAbsent(user, name -> ConcurrentHashMap.newKeySet()).add(session);
+		if(previous != null && !previous.equals(user)){
+			removeUsername(session, previous);
+		}
+		if(!byId.containsKey(session.getId())){
+			removeUsername(session, user);		//Removed at the same time, don't leave it in the index
+		}
+	}// addUsername end
+
+
+	/**
+	 * Removes a session, the same session may be removed more than once.
+	 * @param session is the session to remove.
+	 * @return true if the session was removed, false if it already had been.
+	 */
+	boolean remove(ClientSession session){
+		boolean removed = byId.remove(session.getId(), session);
+		String user = session.getUsername();
+		if(user != null){
+			removeUsername(session, user);
+		}
+		if(removed){
+			modifications.incrementAndGet();
+		}
+		return removed;
+	}// remove end
+
+
+	private void removeUsername(ClientSession session, String user){
+		byUsername.computeIfPresent(user, (name, set) -> {
+			set.remove(session);
+			return set.isEmpty() ? null : set;
+		});
+	}// removeUsername end
+
+
+	/**
+	 * @param id is a session ID.
+	 * @return the session, or null if there is no session with that ID.
+	 */
+	ClientSession get(int id){
+		return byId.get(id);
+	}// get end
+
+
+	/**
+	 * @param user is a username.
+	 * @return every session with the username, an empty set if there is none.
+	 * The set can't be changed and follows the registry.
+	 */
+	Set<ClientSession> getByUsername(String user){
+		Set<ClientSession> sessions = byUsername.get(user);
+		return sessions == null ? NONE : Collections.unmodifiableSet(sessions);
+	}// getByUsername end
+
+
+	/**
+	 * Counted without a lock, a session that is added or removed at the
+	 * same time may or may not be counted.
+	 * @return the number of sessions, including the ones still exchanging keys.
+	 */
+	int size(){
+		return byId.size();
+	}
+
+
+	/**
+	 * @return the number of different usernames.
+	 */
+	int usernameCount(){
+		return byUsername.size();
+	}
+
+
+	/**
+	 * Gets the sessions for a broadcast. Nothing is copied unless a session
+	 * was added or removed since the last snapshot. A session that is added
+	 * or removed while the snapshot is made may or may not be in it, the next
+	 * snapshot is then made again.
+	 * @return the sessions ordered by ID, the array must not be changed.
+	 */
+	ClientSession[] snapshot(){
+		long version = modifications.get();
+		Snapshot current = snapshot;
+		if(current.version == version){
+			return current.sessions;
+		}
+		ClientSession[] sessions = byId.values().toArray(EMPTY);
+		Arrays.sort(sessions, Comparator.comparingInt(ClientSession::getId));	//Nearly sorted already
+		if(modifications.get() == version){
+			snapshot = new Snapshot(version, sessions);
+		}
+		return sessions;
+	}// snapshot end
+
+
+	/**
+	 * Checks a username sent by a client before it's used as a key.
+	 * @param name is the username.
+	 * @return true if the name isn't empty and isn't too long.
+	 */
+	static boolean validUsername(String name){
+		return name != null && !name.trim().isEmpty() && name.length() <= MAX_USERNAME_LENGTH;
+	}// validUsername end
+
+
+	/**
+	 * The sessions at one version of the registry.
+	 */
+	private static class Snapshot {
+
+		private final long version;
+		private final ClientSession[] sessions;
+
+		Snapshot(long version, ClientSession[] sessions){
+			this.version = version;
+			this.sessions = sessions;
+		}
+	}// Snapshot end
+
+
+}// SessionRegistry end
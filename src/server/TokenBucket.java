@@ -0,0 +1,68 @@
+package server;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits how many messages are let through a second.
+ * The bucket holds up to 'burst' tokens and is refilled with 'rate' tokens a
+ * second, each message takes one and is rejected if the bucket is empty.
+ * Instead of a count of tokens and the time it was last refilled, the bucket is
+ * kept as the time it's full again, which is one number and can be updated
+ * without a lock by the sessions sharing the servers bucket.
+ *
+ * @author Tomas
+ */
+class TokenBucket {
+
+	private long interval;		//nanoseconds to refill one token
+	private long capacity;		//nanoseconds to refill the whole bucket
+	private AtomicLong fullAt;	//System.nanoTime() when the bucket is full again
+
+
+	/**
+	 * Creates a full bucket.
+	 * @param rate is the number of tokens refilled a second.
+	 * @param burst is the number of tokens the bucket holds.
+	 */
+	TokenBucket(int rate, int burst){
+		this.interval = 1000000000L / rate;
+		this.capacity = interval * burst;
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}// constructor end
+
+
+	/**
+	 * Takes a token if there is one.
+	 * @return true if a token was taken, false if the bucket is empty.
+	 */
+	boolean tryTake(){
+		long now = System.nanoTime();
+		while(true){
+			long full = fullAt.get();
+			long start = full - now < 0 ? now : full;		//A bucket that has been full since doesn't save up more
+			long next = start + interval;
+			if(next - now > capacity){
+				return false;
+			}
+			if(fullAt.compareAndSet(full, next)){
+				return true;
+			}
+		}
+	}// tryTake end
+
+
+	/**
+	 * Gives back a token taken by a message that turned out not to count,
+	 * like a chunk of a file, which the window of the transfer paces instead.
+	 */
+	void giveBack(){
+		fullAt.addAndGet(-interval);
+	}// giveBack end
+
+
+	@Override
+	public String toString(){
+		return "TokenBucket " + 1000000000L / interval + " a second, burst " + capacity / interval;
+	}// toString end
+
+
+}// TokenBucket end
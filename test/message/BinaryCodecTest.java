@@ -0,0 +1,144 @@
+package message;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decoding what a client sent: every field is bounded by what's left of the
+ * frame, so a corrupt or hostile frame is refused instead of read out of bounds.
+ */
+class BinaryCodecTest {
+
+	@Test
+	void bodyRoundTrips() throws Exception{
+		PresenceMessage pm = new PresenceMessage(PresenceMessage.JOINED, 12, "room");
+		pm.add(3, "alice");
+		PresenceMessage decoded = (PresenceMessage) BinaryCodec.decodeBody(BinaryCodec.encodeBody(pm));
+		assertEquals(12, decoded.getVersion());
+		assertEquals("room", decoded.getRoom());
+		assertEquals("alice", decoded.getEntries().get(0).getUser());
+		Message m = (Message) BinaryCodec.decodeBody(BinaryCodec.encodeBody(new Message(null, "hi ä")));
+		assertEquals(null, m.getUser());
+		assertEquals("hi ä", m.getMessage());
+	}
+
+
+	@Test
+	void everyTruncatedBodyIsRefused() throws Exception{
+		byte[] body = BinaryCodec.encodeBody(new PrivateMessage("alice", "bob", "hello"));
+		for(int length = 0; length < body.length; ++length){
+			byte[] part = Arrays.copyOf(body, length);
+			assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decodeBody(part), "length " + length);
+		}
+	}
+
+
+	@Test
+	void everyTruncatedFrameIsRefused() throws Exception{
+		byte[] frame = FrameCodec.encode(new SessionBytes(300, new byte[]{1, 2, 3, 4}), FrameCodec.PROTOCOL_BINARY);
+		for(int length = 0; length < frame.length - FrameCodec.HEADER_SIZE; ++length){
+			int n = length;
+			assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(frame, FrameCodec.HEADER_SIZE, n), "length " + n);
+		}
+	}
+
+
+	@Test
+	void bytesAfterTheLastFieldAreRefused() throws Exception{
+		byte[] body = BinaryCodec.encodeBody(new Message("alice", "hello"));
+		byte[] longer = Arrays.copyOf(body, body.length + 1);
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decodeBody(longer));
+	}
+
+
+	@Test
+	void lengthLongerThanTheFrameIsRefused(){
+		byte[] payload = {BinaryCodec.VERSION, BinaryCodec.TYPE_SEALED, 0x7f, 1, 2, 3};
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(payload, 0, payload.length));
+	}
+
+
+	@Test
+	void lengthIsNotReadPastTheEndOfThePayload(){
+		byte[] buffer = {BinaryCodec.VERSION, BinaryCodec.TYPE_SEALED, 3, 1, 2, 3};
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(buffer, 0, 5));
+	}
+
+
+	@Test
+	void negativeLengthIsRefused(){
+		byte[] payload = {BinaryCodec.VERSION, BinaryCodec.TYPE_SEALED, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(payload, 0, payload.length));
+	}
+
+
+	@Test
+	void overlongLengthIsRefused(){
+		byte[] payload = new byte[12];
+		Arrays.fill(payload, (byte) 0x80);
+		payload[0] = BinaryCodec.VERSION;
+		payload[1] = BinaryCodec.TYPE_SEALED;
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(payload, 0, payload.length));
+	}
+
+
+	@Test
+	void negativeSequenceIsRefused(){
+		byte[] payload = new byte[14];
+		Arrays.fill(payload, 2, 11, (byte) 0xff);
+		payload[0] = BinaryCodec.VERSION;
+		payload[1] = BinaryCodec.TYPE_SESSION;
+		payload[11] = 0x01;		//The 64th bit
+		payload[12] = 1;
+		payload[13] = 9;
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(payload, 0, payload.length));
+	}
+
+
+	@Test
+	void largestSequenceRoundTrips() throws Exception{
+		byte[] frame = FrameCodec.encode(new SessionBytes(Long.MAX_VALUE, new byte[]{5}), FrameCodec.PROTOCOL_BINARY);
+		SessionBytes sb = (SessionBytes) BinaryCodec.decode(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+		assertEquals(Long.MAX_VALUE, sb.getSequence());
+		assertArrayEquals(new byte[]{5}, sb.getCiphertext());
+	}
+
+
+	@Test
+	void unknownVersionAndTypesAreRefused(){
+		byte[] version = {BinaryCodec.VERSION + 1, BinaryCodec.TYPE_DISCONNECT};
+		byte[] type = {BinaryCodec.VERSION, 99};
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(version, 0, version.length));
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(type, 0, type.length));
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decodeBody(new byte[]{99}));
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decodeBody(new byte[0]));
+	}
+
+
+	@Test
+	void directoryCountLargerThanTheBodyIsRefused(){
+		byte[] body = {BinaryCodec.BODY_DIRECTORY, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 1, 0, 0};
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decodeBody(body));
+	}
+
+
+	@Test
+	void compressedBodyLargerThanAFrameIsRefused(){
+		byte[] body = {BinaryCodec.BODY_COMPRESSED, (byte) 0x81, (byte) 0x80, (byte) 0x40, 3, 0};
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decodeBody(body));
+	}
+
+
+	@Test
+	void compressedBodyInsideACompressedBodyIsRefused() throws Exception{
+		byte[] inner = new byte[300];
+		inner[0] = BinaryCodec.BODY_COMPRESSED;
+		byte[] outer = BinaryCodec.deflateBody(inner, new java.util.zip.Deflater(java.util.zip.Deflater.DEFAULT_COMPRESSION, true));
+		assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decodeBody(outer));
+	}
+
+
+}// BinaryCodecTest end
@@ -0,0 +1,107 @@
+package message;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The framing both engines read with: the length header, the protocol of a
+ * payload and the frames that must be refused before anything is allocated.
+ */
+class FrameCodecTest {
+
+	@Test
+	void binaryFrameRoundTrips() throws Exception{
+		byte[] frame = FrameCodec.encode(new SessionBytes(42, new byte[]{1, 2, 3}), FrameCodec.PROTOCOL_BINARY);
+		int length = readLength(frame);
+		assertEquals(frame.length - FrameCodec.HEADER_SIZE, length);
+		assertEquals(FrameCodec.PROTOCOL_BINARY, FrameCodec.protocolOf(frame, FrameCodec.HEADER_SIZE));
+		SessionBytes sb = (SessionBytes) FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, length);
+		assertEquals(42, sb.getSequence());
+		assertArrayEquals(new byte[]{1, 2, 3}, sb.getCiphertext());
+	}
+
+
+	@Test
+	void serializedFrameRoundTrips() throws Exception{
+		byte[] frame = FrameCodec.encode(new Message("bob", "hi"));
+		assertEquals(FrameCodec.PROTOCOL_SERIALIZED, FrameCodec.protocolOf(frame, FrameCodec.HEADER_SIZE));
+		Message m = (Message) FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, readLength(frame));
+		assertEquals("bob", m.getUser());
+		assertEquals("hi", m.getMessage());
+	}
+
+
+	@Test
+	void framesAreReadOneAtATimeFromAStream() throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCodec.writeFrame(out, new SessionBytes(1, new byte[]{7}), FrameCodec.PROTOCOL_BINARY);
+		FrameCodec.writeFrame(out, new Message("b", "second"), FrameCodec.PROTOCOL_SERIALIZED);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(1, ((SessionBytes) FrameCodec.readFrame(in)).getSequence());
+		assertEquals("second", ((Message) FrameCodec.readFrame(in)).getMessage());
+		assertThrows(EOFException.class, () -> FrameCodec.readFrame(in));
+	}
+
+
+	@Test
+	void negativeAndOversizedLengthsAreRefused(){
+		assertThrows(StreamCorruptedException.class, () -> FrameCodec.checkLength(-1));
+		assertThrows(StreamCorruptedException.class, () -> FrameCodec.checkLength(FrameCodec.MAX_FRAME_SIZE + 1));
+		assertThrows(StreamCorruptedException.class, () -> FrameCodec.checkLength(Integer.MIN_VALUE));
+	}
+
+
+	@Test
+	void oversizedHeaderIsRefusedBeforeThePayloadIsRead(){
+		byte[] header = {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+		assertThrows(StreamCorruptedException.class, () -> FrameCodec.readPayload(in));
+	}
+
+
+	@Test
+	void truncatedPayloadIsAnEndOfStream(){
+		byte[] frame = {0, 0, 0, 10, 1, 2, 3};
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+		assertThrows(EOFException.class, () -> FrameCodec.readPayload(in));
+	}
+
+
+	@Test
+	void emptyPayloadIsRefused(){
+		assertThrows(StreamCorruptedException.class, () -> FrameCodec.decode(new byte[4], 4, 0));
+	}
+
+
+	@Test
+	void oversizedObjectIsNotEncoded(){
+		SessionBytes sb = new SessionBytes(1, new byte[FrameCodec.MAX_FRAME_SIZE]);
+		assertThrows(IOException.class, () -> FrameCodec.encode(sb, FrameCodec.PROTOCOL_BINARY));
+	}
+
+
+	@Test
+	void payloadCanStartInsideALargerBuffer() throws Exception{
+		byte[] frame = FrameCodec.encode(new SessionBytes(7, new byte[]{9, 8}), FrameCodec.PROTOCOL_BINARY);
+		byte[] buffer = new byte[frame.length + 7];
+		System.arraycopy(frame, 0, buffer, 7, frame.length);
+		Object obj = FrameCodec.decode(buffer, 7 + FrameCodec.HEADER_SIZE, readLength(frame));
+		assertInstanceOf(SessionBytes.class, obj);
+		assertArrayEquals(frame, FrameCodec.encode(obj, FrameCodec.PROTOCOL_BINARY));
+	}
+
+
+	private static int readLength(byte[] frame){
+		return ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16) | ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+	}
+
+
+}// FrameCodecTest end
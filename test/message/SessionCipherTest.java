@@ -0,0 +1,141 @@
+package message;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The nonce and replay rules of the AEAD session mode: every sequence number
+ * is opened at most once and in order, the direction is part of the nonce and
+ * a message that fails to open doesn't move the sequence on.
+ */
+class SessionCipherTest {
+
+	private SecretKey key;
+	private SessionCipher client;
+	private SessionCipher server;
+
+
+	@BeforeEach
+	void connect() throws Exception{
+		key = SessionCipher.generateKey();
+		client = new SessionCipher(key, true);
+		server = new SessionCipher(key, false);
+	}
+
+
+	@Test
+	void bothDirectionsRoundTrip() throws Exception{
+		assertEquals("up", open(server, client.seal(bytes("up"))));
+		assertEquals("down", open(client, server.seal(bytes("down"))));
+	}
+
+
+	@Test
+	void sequenceGrowsWithEveryMessage() throws Exception{
+		assertEquals(1, client.seal(bytes("a")).getSequence());
+		assertEquals(2, client.seal(bytes("b")).getSequence());
+		assertEquals(3, client.seal(bytes("c")).getSequence());
+	}
+
+
+	@Test
+	void sameBodyIsNeverSealedTheSame() throws Exception{
+		SessionBytes first = client.seal(bytes("same"));
+		SessionBytes second = client.seal(bytes("same"));
+		assertFalse(Arrays.equals(first.getCiphertext(), second.getCiphertext()));
+	}
+
+
+	@Test
+	void replayIsRejected() throws Exception{
+		SessionBytes sealed = client.seal(bytes("once"));
+		open(server, sealed);
+		assertThrows(AEADBadTagException.class, () -> server.open(sealed));
+	}
+
+
+	@Test
+	void olderMessageIsRejectedAfterANewerOne() throws Exception{
+		SessionBytes first = client.seal(bytes("first"));
+		SessionBytes second = client.seal(bytes("second"));
+		assertEquals("second", open(server, second));
+		assertThrows(AEADBadTagException.class, () -> server.open(first));
+	}
+
+
+	@Test
+	void gapsFromDroppedMessagesAreAllowed() throws Exception{
+		client.seal(bytes("dropped"));
+		client.seal(bytes("dropped"));
+		SessionBytes third = client.seal(bytes("third"));
+		assertEquals(3, third.getSequence());
+		assertEquals("third", open(server, third));
+		assertEquals("fourth", open(server, client.seal(bytes("fourth"))));
+	}
+
+
+	@Test
+	void sequenceZeroAndNegativeAreRejected(){
+		assertThrows(AEADBadTagException.class, () -> server.open(new SessionBytes(0, new byte[32])));
+		assertThrows(AEADBadTagException.class, () -> server.open(new SessionBytes(-1, new byte[32])));
+	}
+
+
+	@Test
+	void reflectedMessageIsRejected() throws Exception{
+		SessionBytes sealed = client.seal(bytes("to the server"));
+		SessionCipher otherClient = new SessionCipher(key, true);
+		assertThrows(AEADBadTagException.class, () -> otherClient.open(sealed));
+	}
+
+
+	@Test
+	void changedCiphertextIsRejected() throws Exception{
+		SessionBytes sealed = client.seal(bytes("hello"));
+		byte[] changed = sealed.getCiphertext().clone();
+		changed[0] ^= 1;
+		assertThrows(AEADBadTagException.class, () -> server.open(new SessionBytes(sealed.getSequence(), changed)));
+		assertEquals("hello", open(server, sealed));
+	}
+
+
+	@Test
+	void changedSequenceIsRejectedAndDoesNotMoveTheSequenceOn() throws Exception{
+		SessionBytes sealed = client.seal(bytes("hello"));
+		assertThrows(AEADBadTagException.class, () -> server.open(new SessionBytes(1000, sealed.getCiphertext())));
+		assertEquals("hello", open(server, sealed));
+	}
+
+
+	@Test
+	void otherKeyIsRejected() throws Exception{
+		SessionCipher stranger = new SessionCipher(SessionCipher.generateKey(), true);
+		SessionBytes sealed = stranger.seal(bytes("hello"));
+		assertThrows(AEADBadTagException.class, () -> server.open(sealed));
+	}
+
+
+	@Test
+	void emptyBodyRoundTrips() throws Exception{
+		assertArrayEquals(new byte[0], server.open(client.seal(new byte[0])));
+	}
+
+
+	private static byte[] bytes(String s){
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+
+	private static String open(SessionCipher cipher, SessionBytes sealed) throws Exception{
+		return new String(cipher.open(sealed), StandardCharsets.UTF_8);
+	}
+
+
+}// SessionCipherTest end
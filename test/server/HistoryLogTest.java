@@ -0,0 +1,257 @@
+package server;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Opening the history log again after the server stopped, with or without
+ * being closed and in the middle of a compaction, and deleting and compacting
+ * the old segments.
+ */
+class HistoryLogTest {
+
+	private static final long WEEK = 7L * 24 * 60 * 60 * 1000;
+	private static final int MB = 1024 * 1024;
+
+	@TempDir
+	File dir;
+	private HistoryLog log;
+
+
+	@AfterEach
+	void close(){
+		if(log != null){
+			log.close();
+		}
+	}
+
+
+	@Test
+	void reopenedLogKeepsItsMessagesAndOffsets() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		for(int i = 0; i < 1000; ++i){		//Many index entries
+			assertEquals(i, log.append(body("message " + i)));
+		}
+		log.close();
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		assertEquals(1000, log.getNextOffset());
+		assertMessages(log.readLast(3), "message 997", "message 998", "message 999");
+		assertEquals(1000, log.append(body("after")));
+		assertMessages(log.readLast(2), "message 999", "after");
+	}
+
+
+	@Test
+	void logThatWasNotClosedKeepsItsMessages() throws Exception{
+		HistoryLog crashed = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		crashed.append(body("one"));
+		crashed.append(body("two"));
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		assertEquals(2, log.getNextOffset());
+		assertMessages(log.readLast(10), "one", "two");
+		crashed.close();
+	}
+
+
+	@Test
+	void emptyLogReadsNothing() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		assertEquals(0, log.getNextOffset());
+		assertTrue(log.readLast(50).isEmpty());
+	}
+
+
+	@Test
+	void bodyTooLargeForASegmentIsNotAppended() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		assertEquals(-1, log.append(new byte[HistoryLog.SEGMENT_BYTES]));
+		assertEquals(0, log.getNextOffset());
+	}
+
+
+	@Test
+	void fullSegmentStartsANewOne() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		for(int i = 0; i < 5; ++i){
+			log.append(filled(i, 2 * MB));
+		}
+		assertEquals(2, log.segmentCount());
+		List<byte[]> last = log.readLast(5);
+		assertEquals(5, last.size());
+		for(int i = 0; i < 5; ++i){
+			assertArrayEquals(filled(i, 2 * MB), last.get(i));
+		}
+	}
+
+
+	@Test
+	void expiredSegmentsAreDeletedButNotTheOneWrittenTo() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		for(int i = 0; i < 9; ++i){
+			log.append(filled(i, 2 * MB));
+		}
+		assertEquals(3, log.segmentCount());
+		log.deleteOld(System.currentTimeMillis() + 1);
+		assertEquals(1, log.segmentCount());
+		assertEquals(9, log.getNextOffset());
+		List<byte[]> last = log.readLast(9);
+		assertEquals(3, last.size());		//Three fit in a segment
+		assertArrayEquals(filled(6, 2 * MB), last.get(0));
+	}
+
+
+	@Test
+	void expiredMessagesInTheSegmentWrittenToAreNotRead() throws Exception{
+		log = new HistoryLog(dir, 500, Long.MAX_VALUE);
+		log.append(body("old one"));
+		log.append(body("old two"));
+		Thread.sleep(600);
+		log.append(body("new"));
+		log.deleteOld(System.currentTimeMillis() - 500);
+		assertEquals(1, log.segmentCount());
+		assertEquals(3, log.getNextOffset());
+		assertMessages(log.readLast(10), "new");
+	}
+
+
+	@Test
+	void logTooLargeDeletesTheOldestSegments() throws Exception{
+		log = new HistoryLog(dir, WEEK, 7 * MB);
+		for(int i = 0; i < 9; ++i){
+			log.append(filled(i, 2 * MB));
+		}
+		log.deleteOld(0);
+		assertEquals(2, log.segmentCount());
+		assertEquals(6, log.readLast(9).size());
+	}
+
+
+	@Test
+	void oldestSegmentIsCompactedToWhatHasNotExpired() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		long cutoff = compactable(log);
+		log.compact(cutoff);
+		assertEquals(2, log.segmentCount());
+		List<byte[]> last = log.readLast(10);
+		assertEquals(2, last.size());
+		assertArrayEquals(filled(2, 2 * MB), last.get(0));
+		assertArrayEquals(filled(3, 3 * MB), last.get(1));
+		assertFalse(file(0, ".log").exists());
+		log.close();
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		assertEquals(4, log.getNextOffset());
+		assertEquals(2, log.readLast(10).size());
+	}
+
+
+	@Test
+	void segmentIsNotCompactedWhileLessThanHalfHasExpired() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		log.append(filled(0, 2 * MB));
+		Thread.sleep(5);
+		long cutoff = System.currentTimeMillis();
+		Thread.sleep(5);
+		log.append(filled(1, 2 * MB));
+		log.append(filled(2, 2 * MB));
+		log.append(filled(3, 3 * MB));
+		log.compact(cutoff);
+		assertEquals(4, log.readLast(10).size());
+		assertTrue(file(0, ".log").exists());
+	}
+
+
+	@Test
+	void segmentReplacedByACompactionIsDeletedWhenOpened() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		long cutoff = compactable(log);
+		log.close();
+		File saved = new File(dir, "saved");
+		saved.mkdir();
+		copy(file(0, ".log"), saved);
+		copy(file(0, ".idx"), saved);
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		log.compact(cutoff);
+		log.close();
+		copy(new File(saved, file(0, ".log").getName()), dir);		//Stopped before the delete
+		copy(new File(saved, file(0, ".idx").getName()), dir);
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		assertFalse(file(0, ".log").exists());
+		assertEquals(2, log.segmentCount());
+		assertEquals(2, log.readLast(10).size());
+	}
+
+
+	@Test
+	void unfinishedCompactionIsThrownAway() throws Exception{
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		log.append(body("kept"));
+		log.close();
+		File compact = file(5, ".log.compact");
+		Files.write(compact.toPath(), new byte[100]);
+		log = new HistoryLog(dir, WEEK, Long.MAX_VALUE);
+		assertFalse(compact.exists());
+		assertMessages(log.readLast(10), "kept");
+	}
+
+
+	/**
+	 * Fills the first segment with two messages that expire at the cutoff and one
+	 * that doesn't, and starts a second segment.
+	 * @return the cutoff.
+	 */
+	private static long compactable(HistoryLog log) throws Exception{
+		log.append(filled(0, 2 * MB));
+		log.append(filled(1, 2 * MB));
+		Thread.sleep(5);
+		long cutoff = System.currentTimeMillis();
+		Thread.sleep(5);
+		log.append(filled(2, 2 * MB));
+		log.append(filled(3, 3 * MB));
+		assertEquals(2, log.segmentCount());
+		return cutoff;
+	}
+
+
+	/**
+	 * @return a file of a segment, named after the offset of its first message.
+	 */
+	private File file(long base, String suffix){
+		return new File(dir, String.format("%020d", base) + suffix);
+	}
+
+
+	private static void copy(File file, File toDir) throws Exception{
+		Files.copy(file.toPath(), new File(toDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+
+	private static byte[] body(String s){
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+
+	private static byte[] filled(int value, int size){
+		byte[] b = new byte[size];
+		java.util.Arrays.fill(b, (byte) value);
+		return b;
+	}
+
+
+	private static void assertMessages(List<byte[]> bodies, String... expected){
+		assertEquals(expected.length, bodies.size());
+		for(int i = 0; i < expected.length; ++i){
+			assertEquals(expected[i], new String(bodies.get(i), StandardCharsets.UTF_8));
+		}
+	}
+
+
+}// HistoryLogTest end
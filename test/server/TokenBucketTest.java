@@ -0,0 +1,100 @@
+package server;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The token bucket of a session and of the server: a burst is let through,
+ * then the rate, and a token given back can't make it hold more than a burst.
+ */
+class TokenBucketTest {
+
+	@Test
+	void burstIsLetThroughThenTheBucketIsEmpty(){
+		TokenBucket bucket = new TokenBucket(1, 3);
+		assertTrue(bucket.tryTake());
+		assertTrue(bucket.tryTake());
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+	}
+
+
+	@Test
+	void emptyBucketRejectsUntilItIsRefilled(){
+		TokenBucket bucket = new TokenBucket(1, 1);
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+	}
+
+
+	@Test
+	void bucketIsRefilledAtTheRate() throws Exception{
+		TokenBucket bucket = new TokenBucket(100, 1);
+		assertTrue(bucket.tryTake());
+		Thread.sleep(30);
+		assertTrue(bucket.tryTake());
+	}
+
+
+	@Test
+	void fullBucketDoesNotSaveUpMoreThanABurst() throws Exception{
+		TokenBucket bucket = new TokenBucket(10, 2);
+		Thread.sleep(300);
+		assertTrue(bucket.tryTake());
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+	}
+
+
+	@Test
+	void tokenGivenBackCanBeTakenAgain(){
+		TokenBucket bucket = new TokenBucket(1, 2);
+		assertTrue(bucket.tryTake());
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+		bucket.giveBack();
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+	}
+
+
+	@Test
+	void tokensGivenBackToAFullBucketAreNotKept(){
+		TokenBucket bucket = new TokenBucket(1, 2);
+		for(int i = 0; i < 10; ++i){
+			bucket.giveBack();
+		}
+		assertTrue(bucket.tryTake());
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+	}
+
+
+	@Test
+	void sharedBucketLetsABurstThroughAllThreadsTogether() throws Exception{
+		TokenBucket bucket = new TokenBucket(1, 100);
+		AtomicInteger taken = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 8; ++i){
+			Thread thread = new Thread(() -> {
+				for(int j = 0; j < 1000; ++j){
+					if(bucket.tryTake()){
+						taken.incrementAndGet();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		assertEquals(100, taken.get());
+	}
+
+
+}// TokenBucketTest end